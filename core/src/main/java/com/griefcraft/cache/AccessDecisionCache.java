@@ -0,0 +1,241 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import com.griefcraft.model.Protection;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the result of access checks for a player on a protection. A decision is stale when the global epoch
+ * was bumped since it was made (permissions, groups or modules changed) or when the protection's own epoch
+ * changed (its permissions, flags, owner or type changed), and in any case after a short time so changes the
+ * cache cannot see (e.g. a player being opped) are picked up.
+ */
+public class AccessDecisionCache {
+
+    /**
+     * The maximum amount of decisions to keep
+     */
+    private static final int MAX_DECISIONS = 10000;
+
+    /**
+     * Source of protection epochs. Epochs are unique across protections so a protection that is loaded again
+     * from the database never matches a decision made for an older copy of it
+     */
+    private static final AtomicLong nextProtectionEpoch = new AtomicLong();
+
+    /**
+     * The decisions for each player and protection
+     */
+    private final LRUCache<DecisionKey, Decision> decisions = new LRUCache<DecisionKey, Decision>(MAX_DECISIONS);
+
+    /**
+     * How long decisions are cached for, in milliseconds
+     */
+    private final long expiry;
+
+    /**
+     * Decisions made before the current epoch are stale
+     */
+    private volatile long epoch = 0;
+
+    public AccessDecisionCache(long expiry) {
+        this.expiry = expiry;
+    }
+
+    /**
+     * @return a new epoch for a protection
+     */
+    public static long nextProtectionEpoch() {
+        return nextProtectionEpoch.incrementAndGet();
+    }
+
+    /**
+     * Get the cached decision for a player on a protection
+     *
+     * @param player
+     * @param protection
+     * @param admin true for the admin decision, false for the access decision
+     * @return the cached decision or null if there is none
+     */
+    public Boolean get(UUID player, Protection protection, boolean admin) {
+        if (expiry <= 0) {
+            return null;
+        }
+
+        synchronized (decisions) {
+            Decision decision = decisions.get(new DecisionKey(player, protection.getId()));
+
+            if (decision == null || !decision.isCurrent(epoch, protection.getAccessEpoch())) {
+                return null;
+            }
+
+            return admin ? decision.admin : decision.access;
+        }
+    }
+
+    /**
+     * Cache a decision for a player on a protection
+     *
+     * @param player
+     * @param protection
+     * @param admin true for the admin decision, false for the access decision
+     * @param result
+     */
+    public void put(UUID player, Protection protection, boolean admin, boolean result) {
+        if (expiry <= 0) {
+            return;
+        }
+
+        DecisionKey key = new DecisionKey(player, protection.getId());
+        long currentEpoch = epoch;
+        long protectionEpoch = protection.getAccessEpoch();
+
+        synchronized (decisions) {
+            Decision decision = decisions.get(key);
+
+            // keep the other decision if it is still current
+            if (decision == null || !decision.isCurrent(currentEpoch, protectionEpoch)) {
+                decision = new Decision(currentEpoch, protectionEpoch, System.currentTimeMillis() + expiry);
+                decisions.put(key, decision);
+            }
+
+            if (admin) {
+                decision.admin = result;
+            } else {
+                decision.access = result;
+            }
+        }
+    }
+
+    /**
+     * Make every cached decision stale
+     */
+    public void invalidateAll() {
+        synchronized (decisions) {
+            epoch++;
+            decisions.clear();
+        }
+    }
+
+    /**
+     * @return the amount of cached decisions
+     */
+    public int size() {
+        synchronized (decisions) {
+            return decisions.size();
+        }
+    }
+
+    /**
+     * A player and the id of a protection
+     */
+    private static final class DecisionKey {
+
+        private final UUID player;
+        private final int protectionId;
+
+        DecisionKey(UUID player, int protectionId) {
+            this.player = player;
+            this.protectionId = protectionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof DecisionKey)) {
+                return false;
+            }
+
+            DecisionKey other = (DecisionKey) o;
+            return protectionId == other.protectionId && player.equals(other.player);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * player.hashCode() + protectionId;
+        }
+
+    }
+
+    /**
+     * The decisions for a player on a protection
+     */
+    private static final class Decision {
+
+        /**
+         * The global epoch the decisions were made in
+         */
+        private final long epoch;
+
+        /**
+         * The protection's epoch when the decisions were made
+         */
+        private final long protectionEpoch;
+
+        /**
+         * When the decisions must be made again
+         */
+        private final long expires;
+
+        /**
+         * If the player can access the protection, or null if not yet known
+         */
+        private Boolean access;
+
+        /**
+         * If the player can administrate the protection, or null if not yet known
+         */
+        private Boolean admin;
+
+        Decision(long epoch, long protectionEpoch, long expires) {
+            this.epoch = epoch;
+            this.protectionEpoch = protectionEpoch;
+            this.expires = expires;
+        }
+
+        /**
+         * Check if the decisions can still be used
+         *
+         * @param epoch the current global epoch
+         * @param protectionEpoch the protection's current epoch
+         * @return
+         */
+        boolean isCurrent(long epoch, long protectionEpoch) {
+            return this.epoch == epoch && this.protectionEpoch == protectionEpoch && expires >= System.currentTimeMillis();
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import org.bukkit.Bukkit;
+import org.bukkit.block.Block;
+import org.bukkit.event.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the protection lookups done while handling a Bukkit event so that listeners at a later priority for the
+ * same event get the same answers without going to the protection cache or the database again. The lookups are
+ * forgotten at the end of the tick.
+ */
+public class EventProtectionCache {
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * The lookups done for each event. A block mapped to null has no protection
+     */
+    private final Map<Event, Map<Block, Protection>> lookups = new IdentityHashMap<Event, Map<Block, Protection>>();
+
+    /**
+     * If a task to clear the lookups is scheduled
+     */
+    private boolean clearScheduled = false;
+
+    public EventProtectionCache(LWC lwc) {
+        this.lwc = lwc;
+    }
+
+    /**
+     * Find the protection linked to a block while handling an event
+     *
+     * @param event
+     * @param block
+     * @return
+     */
+    public Protection findProtection(Event event, Block block) {
+        Map<Block, Protection> eventLookups = getLookups(event);
+
+        if (eventLookups == null) {
+            return lwc.findProtection(block);
+        }
+
+        if (eventLookups.containsKey(block)) {
+            return validate(eventLookups.get(block));
+        }
+
+        Protection protection = lwc.findProtection(block);
+        eventLookups.put(block, protection);
+        return protection;
+    }
+
+    /**
+     * Find the protections linked to any of the given blocks while handling an event
+     *
+     * @param event
+     * @param blocks
+     * @return the distinct protections that were found
+     */
+    public List<Protection> findProtections(Event event, Collection<Block> blocks) {
+        Map<Block, Protection> eventLookups = getLookups(event);
+
+        if (eventLookups == null) {
+            return lwc.findProtections(blocks);
+        }
+
+        List<Protection> found = new ArrayList<Protection>();
+        Set<Integer> foundIds = new HashSet<Integer>();
+        List<Block> missing = new ArrayList<Block>();
+
+        for (Block block : blocks) {
+            if (eventLookups.containsKey(block)) {
+                Protection protection = validate(eventLookups.get(block));
+
+                if (protection != null && foundIds.add(protection.getId())) {
+                    found.add(protection);
+                }
+            } else {
+                missing.add(block);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<Block, Protection> resolved = lwc.findProtectionsByBlock(missing);
+
+            for (Block block : missing) {
+                Protection protection = resolved.get(block);
+                eventLookups.put(block, protection);
+
+                if (protection != null && foundIds.add(protection.getId())) {
+                    found.add(protection);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Forget every lookup
+     */
+    public void clear() {
+        lookups.clear();
+    }
+
+    /**
+     * Get the lookups for an event, creating them if needed. Returns null if lookups cannot be remembered, i.e.
+     * the event is not being handled on the main thread
+     *
+     * @param event
+     * @return
+     */
+    private Map<Block, Protection> getLookups(Event event) {
+        if (event == null || !Bukkit.isPrimaryThread()) {
+            return null;
+        }
+
+        Map<Block, Protection> eventLookups = lookups.get(event);
+
+        if (eventLookups == null) {
+            eventLookups = new HashMap<Block, Protection>();
+            lookups.put(event, eventLookups);
+            scheduleClear();
+        }
+
+        return eventLookups;
+    }
+
+    /**
+     * Schedule the lookups to be forgotten at the end of the tick
+     */
+    private void scheduleClear() {
+        if (clearScheduled) {
+            return;
+        }
+
+        clearScheduled = true;
+        lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                clearScheduled = false;
+                lookups.clear();
+            }
+        });
+    }
+
+    /**
+     * A remembered protection may have been removed by an earlier listener
+     *
+     * @param protection
+     * @return
+     */
+    private Protection validate(Protection protection) {
+        return protection == null || protection.isRemoved() ? null : protection;
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import com.griefcraft.model.Protection;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches whether items may be moved between a hopper (or another initiator such as a dropper) and a container.
+ * Decisions are forgotten when a protection involved in them changes or is removed, when a block involved in
+ * them is broken, and when a new protection is created on a block involved in them. It is only used on the main thread.
+ */
+public class HopperTransferCache {
+
+    /**
+     * The maximum amount of decisions to keep before the cache is cleared
+     */
+    private static final int MAX_DECISIONS = 10000;
+
+    /**
+     * Blocks that can be part of a transfer
+     */
+    private static final Set<Material> CONTAINERS = EnumSet.of(Material.CHEST, Material.TRAPPED_CHEST, Material.HOPPER,
+            Material.DISPENSER, Material.DROPPER, Material.FURNACE, Material.BURNING_FURNACE, Material.BREWING_STAND);
+
+    /**
+     * true if the transfer is denied
+     */
+    private final Map<TransferKey, Boolean> decisions = new HashMap<TransferKey, Boolean>();
+
+    /**
+     * The decisions that involve each protection id
+     */
+    private final Map<Integer, Set<TransferKey>> byProtection = new HashMap<Integer, Set<TransferKey>>();
+
+    /**
+     * Get the cached decision for a transfer
+     *
+     * @param initiator the location of the hopper, or null if the initiator is not a hopper
+     * @param container
+     * @return true if the transfer is denied, false if it is allowed or null if there is no decision cached
+     */
+    public Boolean get(Location initiator, Location container) {
+        return decisions.get(new TransferKey(initiator, container));
+    }
+
+    /**
+     * Cache the decision for a transfer
+     *
+     * @param initiator the location of the hopper, or null if the initiator is not a hopper
+     * @param container
+     * @param deny
+     * @param protection the protection on the container, if any
+     * @param initiatorProtection the protection on the hopper, if it was checked
+     */
+    public void put(Location initiator, Location container, boolean deny, Protection protection, Protection initiatorProtection) {
+        if (decisions.size() >= MAX_DECISIONS) {
+            clear();
+        }
+
+        TransferKey key = new TransferKey(initiator, container);
+        decisions.put(key, deny);
+
+        if (protection != null) {
+            index(protection.getId(), key);
+        }
+
+        if (initiatorProtection != null) {
+            index(initiatorProtection.getId(), key);
+        }
+    }
+
+    /**
+     * Forget the decisions that involve a protection
+     *
+     * @param protection
+     */
+    public void invalidate(Protection protection) {
+        Set<TransferKey> keys = byProtection.remove(protection.getId());
+
+        if (keys == null) {
+            return;
+        }
+
+        for (TransferKey key : keys) {
+            decisions.remove(key);
+        }
+    }
+
+    /**
+     * Forget the decisions that involve a block
+     *
+     * @param block
+     */
+    public void invalidateBlock(Block block) {
+        if (!CONTAINERS.contains(block.getType())) {
+            return;
+        }
+
+        invalidateLocation(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Forget the decisions that involve a location, e.g when a protection is created there
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void invalidateLocation(String world, int x, int y, int z) {
+        if (decisions.isEmpty()) {
+            return;
+        }
+
+        // breaking or protecting a block is rare compared to hopper transfers so a scan is fine here
+        List<TransferKey> remove = new ArrayList<TransferKey>();
+
+        for (TransferKey key : decisions.keySet()) {
+            if (key.involves(world, x, y, z)) {
+                remove.add(key);
+            }
+        }
+
+        for (TransferKey key : remove) {
+            decisions.remove(key);
+        }
+    }
+
+    /**
+     * Forget all decisions
+     */
+    public void clear() {
+        decisions.clear();
+        byProtection.clear();
+    }
+
+    /**
+     * @return the amount of cached decisions
+     */
+    public int size() {
+        return decisions.size();
+    }
+
+    /**
+     * Index a decision under a protection id
+     *
+     * @param protectionId
+     * @param key
+     */
+    private void index(int protectionId, TransferKey key) {
+        Set<TransferKey> keys = byProtection.get(protectionId);
+
+        if (keys == null) {
+            keys = new HashSet<TransferKey>();
+            byProtection.put(protectionId, keys);
+        }
+
+        keys.add(key);
+    }
+
+    /**
+     * The blocks involved in a transfer
+     */
+    private static final class TransferKey {
+
+        private final String world;
+        private final boolean hasInitiator;
+        private final int initiatorX;
+        private final int initiatorY;
+        private final int initiatorZ;
+        private final int containerX;
+        private final int containerY;
+        private final int containerZ;
+        private final int hashCode;
+
+        TransferKey(Location initiator, Location container) {
+            world = container.getWorld().getName();
+            hasInitiator = initiator != null;
+            initiatorX = hasInitiator ? initiator.getBlockX() : 0;
+            initiatorY = hasInitiator ? initiator.getBlockY() : 0;
+            initiatorZ = hasInitiator ? initiator.getBlockZ() : 0;
+            containerX = container.getBlockX();
+            containerY = container.getBlockY();
+            containerZ = container.getBlockZ();
+
+            int hash = world.hashCode();
+            hash = 31 * hash + initiatorX;
+            hash = 31 * hash + initiatorY;
+            hash = 31 * hash + initiatorZ;
+            hash = 31 * hash + containerX;
+            hash = 31 * hash + containerY;
+            hash = 31 * hash + containerZ;
+            hashCode = hash;
+        }
+
+        /**
+         * Check if the block at the given coordinates is part of the transfer
+         *
+         * @param world
+         * @param x
+         * @param y
+         * @param z
+         * @return
+         */
+        boolean involves(String world, int x, int y, int z) {
+            if (!this.world.equals(world)) {
+                return false;
+            }
+
+            // double chests are keyed by either half so any block next to the container counts
+            if (Math.abs(containerX - x) <= 1 && containerY == y && Math.abs(containerZ - z) <= 1) {
+                return true;
+            }
+
+            return hasInitiator && initiatorX == x && initiatorY == y && initiatorZ == z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof TransferKey)) {
+                return false;
+            }
+
+            TransferKey other = (TransferKey) o;
+            return hashCode == other.hashCode && hasInitiator == other.hasInitiator && initiatorX == other.initiatorX
+                    && initiatorY == other.initiatorY && initiatorZ == other.initiatorZ && containerX == other.containerX
+                    && containerY == other.containerY && containerZ == other.containerZ && world.equals(other.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
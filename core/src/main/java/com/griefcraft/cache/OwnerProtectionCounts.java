@@ -0,0 +1,330 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the amount of protections owned by each loaded owner, in total and for each block id, so protection limits
+ * can be checked without querying the database. Owners are loaded from the database when needed (e.g. when a
+ * player joins) and counts are only kept up to date for loaded owners.
+ */
+public class OwnerProtectionCounts {
+
+    /**
+     * The protection counts of one owner
+     */
+    private static class Counts {
+
+        /**
+         * The owner, as it was loaded
+         */
+        private final String owner;
+
+        /**
+         * The total amount of protections
+         */
+        private final AtomicInteger total = new AtomicInteger(0);
+
+        /**
+         * The amount of protections of each block id
+         */
+        private final ConcurrentHashMap<Integer, AtomicInteger> blocks = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+        private Counts(String owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Add to the counts of a block id
+         *
+         * @param blockId
+         * @param amount
+         */
+        private void add(int blockId, int amount) {
+            total.addAndGet(amount);
+
+            AtomicInteger count = blocks.get(blockId);
+
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger(0);
+                count = blocks.putIfAbsent(blockId, created);
+
+                if (count == null) {
+                    count = created;
+                }
+            }
+
+            count.addAndGet(amount);
+        }
+
+        /**
+         * @param blockId
+         * @return
+         */
+        private int get(int blockId) {
+            AtomicInteger count = blocks.get(blockId);
+            return count == null ? 0 : Math.max(0, count.get());
+        }
+
+    }
+
+    /**
+     * The counts of an owner as they were at one point, to correct them with the database later on
+     */
+    public static class Snapshot {
+
+        /**
+         * The counts that were taken
+         */
+        private final Counts counts;
+
+        /**
+         * The amount of protections of each block id when they were taken
+         */
+        private final Map<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+
+        private Snapshot(Counts counts) {
+            this.counts = counts;
+
+            for (Map.Entry<Integer, AtomicInteger> entry : counts.blocks.entrySet()) {
+                blocks.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+
+        /**
+         * @return the owner, as it was loaded
+         */
+        public String getOwner() {
+            return counts.owner;
+        }
+
+    }
+
+    /**
+     * The counts of each loaded owner, keyed by the lowercase owner
+     */
+    private final ConcurrentHashMap<String, Counts> owners = new ConcurrentHashMap<String, Counts>();
+
+    /**
+     * Check if an owner's counts are loaded
+     *
+     * @param owner
+     * @return
+     */
+    public boolean isLoaded(String owner) {
+        return owner != null && owners.containsKey(owner.toLowerCase());
+    }
+
+    /**
+     * Set the counts of an owner, replacing any that were loaded
+     *
+     * @param owner
+     * @param blockCounts the amount of protections the owner has of each block id
+     */
+    public void load(String owner, Map<Integer, Integer> blockCounts) {
+        Counts counts = new Counts(owner);
+
+        for (Map.Entry<Integer, Integer> entry : blockCounts.entrySet()) {
+            counts.add(entry.getKey(), entry.getValue());
+        }
+
+        owners.put(owner.toLowerCase(), counts);
+    }
+
+    /**
+     * Take the counts of the given owners that are loaded
+     *
+     * @param owners
+     * @return
+     */
+    public List<Snapshot> snapshot(List<String> owners) {
+        List<Snapshot> result = new ArrayList<Snapshot>(owners.size());
+
+        for (String owner : owners) {
+            Counts counts = owner == null ? null : this.owners.get(owner.toLowerCase());
+
+            if (counts != null) {
+                result.add(new Snapshot(counts));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Correct the counts of an owner by the difference between the database and a snapshot taken before it was
+     * queried, so protections counted in the meantime are kept. Nothing is done if the owner was unloaded or
+     * loaded again since the snapshot was taken.
+     *
+     * @param snapshot
+     * @param actual the amount of protections the owner has of each block id in the database
+     */
+    public void reconcile(Snapshot snapshot, Map<Integer, Integer> actual) {
+        Counts counts = snapshot.counts;
+
+        if (owners.get(counts.owner.toLowerCase()) != counts) {
+            return;
+        }
+
+        Set<Integer> blockIds = new HashSet<Integer>(snapshot.blocks.keySet());
+        blockIds.addAll(actual.keySet());
+
+        for (int blockId : blockIds) {
+            Integer before = snapshot.blocks.get(blockId);
+            Integer after = actual.get(blockId);
+            int difference = (after == null ? 0 : after) - (before == null ? 0 : before);
+
+            if (difference != 0) {
+                counts.add(blockId, difference);
+            }
+        }
+    }
+
+    /**
+     * Forget the counts of an owner
+     *
+     * @param owner
+     */
+    public void unload(String owner) {
+        if (owner != null) {
+            owners.remove(owner.toLowerCase());
+        }
+    }
+
+    /**
+     * Forget the counts of all owners
+     */
+    public void clear() {
+        owners.clear();
+    }
+
+    /**
+     * Count a protection that was created. Nothing is done if the owner is not loaded.
+     *
+     * @param owner
+     * @param blockId
+     */
+    public void add(String owner, int blockId) {
+        add(owner, blockId, 1);
+    }
+
+    /**
+     * Uncount a protection that was removed. Nothing is done if the owner is not loaded.
+     *
+     * @param owner
+     * @param blockId
+     */
+    public void remove(String owner, int blockId) {
+        add(owner, blockId, -1);
+    }
+
+    /**
+     * Move a protection from one owner or block id to another
+     *
+     * @param fromOwner
+     * @param fromBlockId
+     * @param toOwner
+     * @param toBlockId
+     */
+    public void move(String fromOwner, int fromBlockId, String toOwner, int toBlockId) {
+        remove(fromOwner, fromBlockId);
+        add(toOwner, toBlockId);
+    }
+
+    /**
+     * Get the amount of protections an owner has
+     *
+     * @param owner
+     * @return the amount of protections, or -1 if the owner is not loaded
+     */
+    public int get(String owner) {
+        Counts counts = owner == null ? null : owners.get(owner.toLowerCase());
+        return counts == null ? -1 : Math.max(0, counts.total.get());
+    }
+
+    /**
+     * Get the amount of protections an owner has of a block id
+     *
+     * @param owner
+     * @param blockId
+     * @return the amount of protections, or -1 if the owner is not loaded
+     */
+    public int get(String owner, int blockId) {
+        Counts counts = owner == null ? null : owners.get(owner.toLowerCase());
+        return counts == null ? -1 : counts.get(blockId);
+    }
+
+    /**
+     * @return the owners that are loaded
+     */
+    public List<String> getLoadedOwners() {
+        List<String> result = new ArrayList<String>(owners.size());
+
+        for (Counts counts : owners.values()) {
+            result.add(counts.owner);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the amount of loaded owners
+     */
+    public int size() {
+        return owners.size();
+    }
+
+    /**
+     * Add to the counts of an owner if it is loaded
+     *
+     * @param owner
+     * @param blockId
+     * @param amount
+     */
+    private void add(String owner, int blockId, int amount) {
+        if (owner == null) {
+            return;
+        }
+
+        Counts counts = owners.get(owner.toLowerCase());
+
+        if (counts != null) {
+            counts.add(blockId, amount);
+        }
+    }
+
+}
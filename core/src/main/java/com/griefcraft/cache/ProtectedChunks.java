@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which chunks contain at least one protection so that frequent events (e.g. redstone) can be ignored
+ * without a protection lookup in chunks nowhere near a protection. Chunks are only ever added until the set is
+ * rebuilt from the database, so a chunk may be marked after its last protection was removed but a chunk with a
+ * protection is never unmarked.
+ */
+public class ProtectedChunks {
+
+    /**
+     * How far (in blocks) from a protection a block can still be matched to it
+     */
+    private static final int MATCH_RADIUS = 2;
+
+    /**
+     * The protected chunks in each world
+     */
+    private volatile ConcurrentHashMap<String, Set<Long>> chunks = new ConcurrentHashMap<String, Set<Long>>();
+
+    /**
+     * The chunks being rebuilt, if a rebuild is in progress. Chunks marked during the rebuild are added to it as well
+     * so they are not lost when it replaces the current chunks
+     */
+    private volatile ConcurrentHashMap<String, Set<Long>> rebuilding = null;
+
+    /**
+     * If the chunks have been loaded from the database. Until then every chunk is assumed to be protected
+     */
+    private volatile boolean loaded = false;
+
+    /**
+     * Mark the chunk the block at the given coordinates is in as protected
+     *
+     * @param world
+     * @param x
+     * @param z
+     */
+    public void add(String world, int x, int z) {
+        addChunk(chunks, world, x >> 4, z >> 4);
+
+        ConcurrentHashMap<String, Set<Long>> rebuilding = this.rebuilding;
+
+        if (rebuilding != null) {
+            addChunk(rebuilding, world, x >> 4, z >> 4);
+        }
+    }
+
+    /**
+     * Check if there could be a protection that matches the block at the given coordinates
+     *
+     * @param world
+     * @param x
+     * @param z
+     * @return
+     */
+    public boolean mayBeProtected(String world, int x, int z) {
+        if (!loaded) {
+            return true;
+        }
+
+        Set<Long> worldChunks = chunks.get(world);
+
+        if (worldChunks == null) {
+            return false;
+        }
+
+        // the protection can be in a neighbouring chunk if the block is close to the border
+        int minChunkX = (x - MATCH_RADIUS) >> 4;
+        int maxChunkX = (x + MATCH_RADIUS) >> 4;
+        int minChunkZ = (z - MATCH_RADIUS) >> 4;
+        int maxChunkZ = (z + MATCH_RADIUS) >> 4;
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                if (worldChunks.contains(chunkKey(chunkX, chunkZ))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Start rebuilding the protected chunks. This must be called before the protections are read from the database
+     */
+    public void beginRebuild() {
+        rebuilding = new ConcurrentHashMap<String, Set<Long>>();
+    }
+
+    /**
+     * Mark a chunk as protected in the rebuild that is in progress
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     */
+    public void addRebuiltChunk(String world, int chunkX, int chunkZ) {
+        ConcurrentHashMap<String, Set<Long>> rebuilding = this.rebuilding;
+
+        if (rebuilding != null) {
+            addChunk(rebuilding, world, chunkX, chunkZ);
+        }
+    }
+
+    /**
+     * Finish the rebuild that is in progress and replace the protected chunks with it
+     */
+    public void finishRebuild() {
+        ConcurrentHashMap<String, Set<Long>> rebuilt = rebuilding;
+
+        if (rebuilt == null) {
+            return;
+        }
+
+        chunks = rebuilt;
+        rebuilding = null;
+        loaded = true;
+    }
+
+    /**
+     * Abandon the rebuild that is in progress and keep the current chunks
+     */
+    public void abortRebuild() {
+        rebuilding = null;
+    }
+
+    /**
+     * @return the amount of protected chunks
+     */
+    public int size() {
+        int size = 0;
+
+        for (Set<Long> worldChunks : chunks.values()) {
+            size += worldChunks.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Mark a chunk as protected
+     *
+     * @param chunks
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     */
+    private static void addChunk(ConcurrentHashMap<String, Set<Long>> chunks, String world, int chunkX, int chunkZ) {
+        if (world == null) {
+            return;
+        }
+
+        Set<Long> worldChunks = chunks.get(world);
+
+        if (worldChunks == null) {
+            worldChunks = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> existing = chunks.putIfAbsent(world, worldChunks);
+
+            if (existing != null) {
+                worldChunks = existing;
+            }
+        }
+
+        worldChunks.add(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * Get the key for a chunk
+     *
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+}
@@ -31,10 +31,17 @@ package com.griefcraft.cache;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
+import com.griefcraft.util.ProtectionFinder;
+import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class ProtectionCache {
 
     /**
@@ -92,6 +99,26 @@ public class ProtectionCache {
      */
     private final MethodCounter counter = new MethodCounter();
 
+    /**
+     * The chunks that contain protections. Unlike the other caches this is not emptied by {@link #clear()}
+     */
+    private final ProtectedChunks protectedChunks = new ProtectedChunks();
+
+    /**
+     * Protections removed from the database off the main thread, waiting to be evicted
+     */
+    private final Queue<Protection> removals = new ConcurrentLinkedQueue<Protection>();
+
+    /**
+     * Protections inserted into the database off the main thread, waiting for their locations to be evicted
+     */
+    private final Queue<Protection> registrations = new ConcurrentLinkedQueue<Protection>();
+
+    /**
+     * If a task is scheduled to evict the waiting removals and registrations
+     */
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+
     /**
      * Used for byKnownNulls
      */
@@ -196,6 +223,13 @@ public class ProtectionCache {
         return references.size();
     }
 
+    /**
+     * @return the chunks that contain protections
+     */
+    public ProtectedChunks getProtectedChunks() {
+        return protectedChunks;
+    }
+
     /**
      * Cache a protection
      *
@@ -214,15 +248,19 @@ public class ProtectionCache {
         // Add weak references which are used to lookup protections
         byCacheKey.put(protection.getCacheKey(), protection);
         byId.put(protection.getId(), protection);
+        protectedChunks.add(protection.getWorld(), protection.getX(), protection.getZ());
 
         // get the protection's finder if it was found via that
-        if (protection.getProtectionFinder() != null) {
+        ProtectionFinder finder = protection.getProtectionFinder();
+
+        if (finder != null) {
             Block protectedBlock = protection.getBlock();
 
-            for (BlockState state : protection.getProtectionFinder().getBlocks()) {
-                if (!protectedBlock.equals(state.getBlock())) {
-                    String cacheKey = cacheKey(state.getLocation());
-                    byKnownBlock.put(cacheKey, protection);
+            for (int index = 0; index < finder.getBlockCount(); index++) {
+                Block block = finder.getBlock(index);
+
+                if (!protectedBlock.equals(block)) {
+                    byKnownBlock.put(cacheKey(block), protection);
                 }
             }
         }
@@ -239,10 +277,124 @@ public class ProtectionCache {
         references.remove(protection);
         byId.remove(protection.getId());
 
-        if (protection.getProtectionFinder() != null) {
-            for (BlockState state : protection.getProtectionFinder().getBlocks()) {
-                remove(cacheKey(state.getLocation()));
+        ProtectionFinder finder = protection.getProtectionFinder();
+
+        if (finder != null) {
+            for (int index = 0; index < finder.getBlockCount(); index++) {
+                remove(cacheKey(finder.getBlock(index)));
+            }
+        }
+    }
+
+    /**
+     * Evict protections that were removed from the database in bulk. Only they and the blocks around them are
+     * evicted, so the rest of the cache stays warm. Removals published off the main thread are evicted on the next tick
+     *
+     * @param protections the removed protections; they do not need to be the cached objects
+     */
+    public void publishRemovals(Collection<Protection> protections) {
+        if (protections.isEmpty()) {
+            return;
+        }
+
+        if (Bukkit.isPrimaryThread()) {
+            evict(protections);
+            return;
+        }
+
+        removals.addAll(protections);
+        scheduleEviction();
+    }
+
+    /**
+     * Evict the locations of protections that were inserted into the database in bulk, which may be known as
+     * unprotected, and forget the hopper transfers involving them. Registrations published off the main thread
+     * are evicted on the next tick
+     *
+     * @param protections the inserted protections
+     */
+    public void publishRegistrations(Collection<Protection> protections) {
+        if (protections.isEmpty()) {
+            return;
+        }
+
+        if (Bukkit.isPrimaryThread()) {
+            for (Protection protection : protections) {
+                evictLocation(protection);
+            }
+
+            return;
+        }
+
+        registrations.addAll(protections);
+        scheduleEviction();
+    }
+
+    /**
+     * Schedule a task on the main thread to evict the waiting removals and registrations
+     */
+    private void scheduleEviction() {
+        // nothing reads the cache once LWC is disabled
+        if (!lwc.getPlugin().isEnabled() || !evictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                evictionScheduled.set(false);
+                Protection protection;
+
+                while ((protection = removals.poll()) != null) {
+                    evict(protection);
+                }
+
+                while ((protection = registrations.poll()) != null) {
+                    evictLocation(protection);
+                }
             }
+        });
+    }
+
+    /**
+     * Evict the location of a protection that was inserted
+     *
+     * @param protection
+     */
+    private void evictLocation(Protection protection) {
+        counter.increment("evictLocation");
+        remove(protection.getCacheKey());
+        lwc.getHopperTransferCache().invalidateLocation(protection.getWorld(), protection.getX(), protection.getY(), protection.getZ());
+    }
+
+    /**
+     * Evict removed protections from the cache
+     *
+     * @param protections
+     */
+    private void evict(Collection<Protection> protections) {
+        for (Protection protection : protections) {
+            evict(protection);
+        }
+    }
+
+    /**
+     * Evict a removed protection, along with its known blocks and the known nulls around it
+     *
+     * @param protection
+     */
+    private void evict(Protection protection) {
+        counter.increment("evict");
+        Protection cached = byId.get(protection.getId());
+
+        if (cached == null) {
+            cached = getProtection(protection.getCacheKey());
+        }
+
+        if (cached != null && cached.getId() == protection.getId()) {
+            cached.removeCache();
+        } else {
+            // not cached, but its location may be a known null or another protection's known block
+            protection.removeCache();
         }
     }
 
@@ -305,7 +457,7 @@ public class ProtectionCache {
      * @return
      */
     public Protection getProtection(Block block) {
-        return getProtection(cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
+        return getProtection(cacheKey(block));
     }
 
     /**
@@ -326,7 +478,7 @@ public class ProtectionCache {
      */
     public boolean isKnownBlock(Block block) {
         counter.increment("isKnownBlock");
-        return byKnownBlock.containsKey(cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
+        return byKnownBlock.containsKey(cacheKey(block));
     }
 
     /**
@@ -340,6 +492,16 @@ public class ProtectionCache {
         return byId.get(id);
     }
 
+    /**
+     * Gets the cache key for the given block
+     *
+     * @param block
+     * @return
+     */
+    public String cacheKey(Block block) {
+        return cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+
     /**
      * Gets the cache key for the given location
      *
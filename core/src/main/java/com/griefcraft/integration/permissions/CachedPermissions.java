@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.integration.permissions;
+
+import com.griefcraft.integration.IPermissions;
+import com.griefcraft.lwc.LWC;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the groups of online players so they are not resolved from the permissions plugin on every access
+ * check. Groups are loaded when a player joins, refreshed after they expire or when the player changes world
+ * (some permission plugins have per-world groups), and dropped when the player quits.
+ */
+public class CachedPermissions implements IPermissions {
+
+    /**
+     * The permissions handler groups are resolved from
+     */
+    private final IPermissions delegate;
+
+    /**
+     * How long groups are cached for, in milliseconds
+     */
+    private final long expiry;
+
+    /**
+     * The cached groups for each player
+     */
+    private final Map<UUID, CachedGroups> groups = new ConcurrentHashMap<UUID, CachedGroups>();
+
+    public CachedPermissions(IPermissions delegate, long expiry) {
+        this.delegate = delegate;
+        this.expiry = expiry;
+    }
+
+    public List<String> getGroups(Player player) {
+        CachedGroups cached = groups.get(player.getUniqueId());
+
+        if (cached == null || cached.expires < System.currentTimeMillis()) {
+            cached = load(player);
+        }
+
+        return cached.groups;
+    }
+
+    /**
+     * Resolve and cache the groups for a player
+     *
+     * @param player
+     */
+    public void refresh(Player player) {
+        load(player);
+    }
+
+    /**
+     * Remove the cached groups for a player
+     *
+     * @param player
+     */
+    public void invalidate(Player player) {
+        groups.remove(player.getUniqueId());
+    }
+
+    /**
+     * Remove the cached groups for every player
+     */
+    public void invalidateAll() {
+        groups.clear();
+    }
+
+    /**
+     * @return the permissions handler groups are resolved from
+     */
+    public IPermissions getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Resolve the groups for a player from the permissions handler and cache them
+     *
+     * @param player
+     * @return
+     */
+    private CachedGroups load(Player player) {
+        List<String> resolved = delegate.getGroups(player);
+        List<String> copy = resolved == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(resolved));
+
+        CachedGroups cached = new CachedGroups(copy, System.currentTimeMillis() + expiry);
+        CachedGroups previous = groups.put(player.getUniqueId(), cached);
+
+        // limits depend on the groups and on permission nodes, which may have changed with them
+        if (previous != null) {
+            LWC.getInstance().invalidateLimits(player);
+        }
+
+        // access decisions may depend on the groups the player was in
+        if (previous != null && !previous.groups.equals(copy)) {
+            LWC.getInstance().getAccessDecisionCache().invalidateAll();
+        }
+
+        return cached;
+    }
+
+    private static class CachedGroups {
+
+        /**
+         * The player's groups
+         */
+        private final List<String> groups;
+
+        /**
+         * When the groups must be resolved again
+         */
+        private final long expires;
+
+        CachedGroups(List<String> groups, long expires) {
+            this.groups = groups;
+            this.expires = expires;
+        }
+
+    }
+
+}
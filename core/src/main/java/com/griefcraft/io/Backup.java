@@ -30,23 +30,57 @@ package com.griefcraft.io;
 
 import org.bukkit.inventory.ItemStack;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class Backup {
 
     /**
      * The backup file's current revision
      */
-    public static final int CURRENT_REVISION = 1;
+    public static final int CURRENT_REVISION = 2;
+
+    /**
+     * The marker revision 2 and later files start with ("LWCB"). Revision 1 files start with their revision
+     * or with a gzip header instead.
+     */
+    private static final int MAGIC = 0x4C574342;
+
+    /**
+     * The marker the block index starts and the file ends with ("LWCI")
+     */
+    private static final int INDEX_MAGIC = 0x4C574349;
+
+    /**
+     * The size of the header: magic, revision, created and reserved space
+     */
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * The size of the trailer: index offset, index checksum and magic
+     */
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * The amount of restorables buffered by {@link #writeRestorable(Restorable)} before they are written as a block
+     */
+    private static final int BLOCK_RESTORABLES = 1000;
 
     /**
      * The operations the backup is allowed to perform
@@ -81,15 +115,61 @@ public class Backup {
     private long created;
 
     /**
-     * The backup's input stream if we are reading
+     * The backup's input stream if we are reading a revision 1 backup
      */
     private DataInputStream inputStream;
 
     /**
-     * The backup's output stream if we are writing
+     * The backup file if we are reading a revision 2 or later backup
+     */
+    private RandomAccessFile randomAccess;
+
+    /**
+     * The block index if we are reading a revision 2 or later backup, or null if it could not be read and the
+     * blocks are scanned instead
+     */
+    private List<BackupBlock> index;
+
+    /**
+     * The next entry in the index to read
+     */
+    private int nextBlock;
+
+    /**
+     * The next offset to scan for a block at if there is no index
+     */
+    private long scanOffset;
+
+    /**
+     * The block restorables are currently read from
+     */
+    private DataInputStream blockStream;
+
+    /**
+     * If not null, only restorables in this region are read
+     */
+    private BackupRegion region;
+
+    /**
+     * The backup file's output stream if we are writing. Blocks are written to it as they are
      */
     private DataOutputStream outputStream;
 
+    /**
+     * The amount of bytes written to the output stream
+     */
+    private long position;
+
+    /**
+     * The blocks written so far, which become the index when the backup is closed
+     */
+    private final List<BackupBlock> written = new ArrayList<BackupBlock>();
+
+    /**
+     * Restorables written one at a time that have not been written as a block yet
+     */
+    private final List<Restorable> buffer = new ArrayList<Restorable>();
+
     public Backup(File file, OperationMode operationMode, EnumSet<BackupManager.Flag> flags) throws IOException {
         this.file = file;
         this.operationMode = operationMode;
@@ -109,16 +189,36 @@ public class Backup {
             created = System.currentTimeMillis() / 1000;
         }
 
-        // Are we using compression?
-        boolean compression = flags.contains(BackupManager.Flag.COMPRESSION);
-
         // create the stream we need
         if (operationMode == OperationMode.READ) {
-            FileInputStream fis = new FileInputStream(file);
-            inputStream = new DataInputStream(compression ? new GZIPInputStream(fis) : fis);
+            if (hasMagic(file)) {
+                randomAccess = new RandomAccessFile(file, "r");
+            } else {
+                // Are we using compression?
+                boolean compression = flags.contains(BackupManager.Flag.COMPRESSION);
+
+                // a revision 1 backup is one stream (or a series of gzip members, which GZIPInputStream reads as one)
+                InputStream fis = new BufferedInputStream(new FileInputStream(file));
+                inputStream = new DataInputStream(compression ? new GZIPInputStream(fis) : fis);
+            }
         } else if (operationMode == OperationMode.WRITE) {
-            FileOutputStream fos = new FileOutputStream(file);
-            outputStream = new DataOutputStream(compression ? new GZIPOutputStream(fos) : fos);
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+    }
+
+    /**
+     * Only read restorables in the given region from now on. On revision 2 and later backups, blocks outside of
+     * the region are skipped without being read; this also starts reading from the first block again.
+     *
+     * @param region the region, or null to read everything
+     */
+    public void seek(BackupRegion region) {
+        this.region = region;
+
+        if (randomAccess != null) {
+            nextBlock = 0;
+            scanOffset = HEADER_SIZE;
+            blockStream = null;
         }
     }
 
@@ -132,14 +232,98 @@ public class Backup {
             throw new UnsupportedOperationException("READ is not allowed on this backup.");
         }
 
-        // The object type
-        int type = (byte) inputStream.read();
+        while (true) {
+            DataInputStream stream;
 
-        // EOF
-        if (type == -1) {
-            return null;
+            if (randomAccess == null) {
+                stream = inputStream;
+            } else {
+                // move on to the next block when this one is done
+                if ((blockStream == null || blockStream.available() == 0) && !nextBlock()) {
+                    return null;
+                }
+
+                stream = blockStream;
+            }
+
+            // The object type
+            int type = stream.read();
+
+            // EOF
+            if (type == -1) {
+                return null;
+            }
+
+            Restorable restorable = decodeRestorable(stream, type);
+
+            if (region == null || region.contains(restorable)) {
+                return restorable;
+            }
         }
+    }
+
+    /**
+     * Load the next block of a revision 2 or later backup, skipping any that are corrupt or outside of the region
+     *
+     * @return false if there are no blocks left
+     */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            BackupBlock block;
+
+            if (index != null) {
+                if (nextBlock >= index.size()) {
+                    return false;
+                }
+
+                BackupBlock entry = index.get(nextBlock++);
+
+                if (region != null && !entry.intersects(region)) {
+                    continue;
+                }
+
+                try {
+                    block = BackupBlock.read(randomAccess, entry.getOffset());
+                } catch (IOException e) {
+                    System.out.println("[Backup] Skipping unreadable block in " + file.getName() + ": " + e.getMessage());
+                    continue;
+                }
+            } else {
+                // without an index, the blocks can only be found by following them from the start
+                if (scanOffset + BackupBlock.HEADER_SIZE > randomAccess.length()) {
+                    return false;
+                }
+
+                try {
+                    block = BackupBlock.read(randomAccess, scanOffset);
+                } catch (IOException e) {
+                    if (!isIndexAt(scanOffset)) {
+                        System.out.println("[Backup] Stopped reading " + file.getName() + ": " + e.getMessage());
+                    }
+
+                    return false;
+                }
+
+                scanOffset += block.getSize();
+            }
 
+            try {
+                blockStream = new DataInputStream(new ByteArrayInputStream(block.decode()));
+                return true;
+            } catch (IOException e) {
+                System.out.println("[Backup] Skipping corrupt block at offset " + block.getOffset() + " in " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Decode an entity from a stream
+     *
+     * @param inputStream
+     * @param type the entity's type, which has already been read
+     * @return
+     */
+    private static Restorable decodeRestorable(DataInputStream inputStream, int type) throws IOException {
         // TODO enum that shit yo
         if (type == 0) { // Protection
             RestorableProtection rprotection = new RestorableProtection();
@@ -182,6 +366,8 @@ public class Backup {
 
             // Woo!
             return rblock;
+        } else if (type == 2) { // Tombstone
+            return new RestorableTombstone(inputStream.readInt());
         }
 
         throw new UnsupportedOperationException("Read unknown type: " + type);
@@ -192,11 +378,69 @@ public class Backup {
      *
      * @param restorable
      */
-    protected void writeRestorable(Restorable restorable) throws IOException {
+    protected synchronized void writeRestorable(Restorable restorable) throws IOException {
         if (operationMode != OperationMode.WRITE) {
             throw new UnsupportedOperationException("WRITE is not allowed on this backup.");
         }
 
+        buffer.add(restorable);
+
+        if (buffer.size() >= BLOCK_RESTORABLES) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Write a block to the backup file. Blocks are written in the order this is called in.
+     *
+     * @param block a block from {@link #createBlock(List)}
+     */
+    protected synchronized void writeBlock(BackupBlock block) throws IOException {
+        if (operationMode != OperationMode.WRITE) {
+            throw new UnsupportedOperationException("WRITE is not allowed on this backup.");
+        }
+
+        // anything written one at a time comes first
+        flushBuffer();
+        appendBlock(block);
+    }
+
+    /**
+     * Encode and compress restorables into a block that can be written with {@link #writeBlock(BackupBlock)}.
+     * This does not touch the file and can be called from any thread.
+     *
+     * @param restorables
+     * @return
+     */
+    protected BackupBlock createBlock(List<Restorable> restorables) throws IOException {
+        return BackupBlock.create(restorables, flags.contains(BackupManager.Flag.COMPRESSION));
+    }
+
+    /**
+     * Encode restorables into the backup format
+     *
+     * @param restorables
+     * @return
+     */
+    protected static byte[] encode(List<Restorable> restorables) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(restorables.size() * 64);
+        DataOutputStream stream = new DataOutputStream(encoded);
+
+        for (Restorable restorable : restorables) {
+            encodeRestorable(stream, restorable);
+        }
+
+        stream.flush();
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Encode an entity into a stream
+     *
+     * @param outputStream
+     * @param restorable
+     */
+    private static void encodeRestorable(DataOutputStream outputStream, Restorable restorable) throws IOException {
         // write the id
         outputStream.write((byte) restorable.getType());
 
@@ -236,9 +480,116 @@ public class Backup {
                 outputStream.writeShort(stack.getAmount());
                 outputStream.writeShort(stack.getDurability());
             }
+        } else if (restorable.getType() == 2) { // Tombstone
+            outputStream.writeInt(((RestorableTombstone) restorable).getId());
+        }
+    }
+
+    /**
+     * Write the restorables that were written one at a time as a block
+     */
+    private void flushBuffer() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        BackupBlock block = createBlock(buffer);
+        buffer.clear();
+        appendBlock(block);
+    }
+
+    /**
+     * Append a block to the file and remember it for the index
+     *
+     * @param block
+     */
+    private void appendBlock(BackupBlock block) throws IOException {
+        long size = block.getSize();
+        block.write(outputStream, position);
+        position += size;
+        written.add(block);
+    }
+
+    /**
+     * Check if a file is a revision 2 or later backup
+     *
+     * @param file
+     * @return
+     */
+    private static boolean hasMagic(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+
+        try {
+            return stream.readInt() == MAGIC;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Check if the block index starts at the given offset
+     *
+     * @param offset
+     * @return
+     */
+    private boolean isIndexAt(long offset) throws IOException {
+        if (offset + 4 > randomAccess.length()) {
+            return false;
         }
 
-        outputStream.flush();
+        randomAccess.seek(offset);
+        return randomAccess.readInt() == INDEX_MAGIC;
+    }
+
+    /**
+     * Read the block index from the end of a revision 2 or later backup
+     *
+     * @return the index, or null if it is missing or corrupt
+     */
+    private List<BackupBlock> readIndex() throws IOException {
+        long length = randomAccess.length();
+
+        if (length < HEADER_SIZE + TRAILER_SIZE) {
+            return null;
+        }
+
+        randomAccess.seek(length - TRAILER_SIZE);
+        long indexOffset = randomAccess.readLong();
+        int checksum = randomAccess.readInt();
+
+        if (randomAccess.readInt() != INDEX_MAGIC || indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE) {
+            return null;
+        }
+
+        byte[] data = new byte[(int) (length - TRAILER_SIZE - indexOffset)];
+        randomAccess.seek(indexOffset);
+        randomAccess.readFully(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (stream.readInt() != INDEX_MAGIC) {
+            return null;
+        }
+
+        int count = stream.readInt();
+        List<BackupBlock> blocks = new ArrayList<BackupBlock>(count);
+
+        for (int i = 0; i < count; i++) {
+            blocks.add(BackupBlock.readIndexEntry(stream));
+        }
+
+        return blocks;
     }
 
     /**
@@ -247,9 +598,27 @@ public class Backup {
      * @throws IOException
      */
     protected void readHeader() throws IOException {
-        revision = inputStream.readShort();
-        created = inputStream.readLong();
-        inputStream.read(new byte[10]); // reserved space
+        if (randomAccess == null) {
+            revision = inputStream.readShort();
+            created = inputStream.readLong();
+            inputStream.read(new byte[10]); // reserved space
+            return;
+        }
+
+        randomAccess.seek(4); // magic
+        revision = randomAccess.readShort();
+        created = randomAccess.readLong();
+        randomAccess.skipBytes(10); // reserved space
+
+        index = readIndex();
+
+        if (index == null) {
+            System.out.println("[Backup] The index of " + file.getName() + " is missing or corrupt; scanning the blocks instead");
+        }
+
+        nextBlock = 0;
+        scanOffset = HEADER_SIZE;
+        blockStream = null;
     }
 
     /**
@@ -257,11 +626,41 @@ public class Backup {
      *
      * @throws IOException
      */
-    protected void writeHeader() throws IOException {
+    protected synchronized void writeHeader() throws IOException {
+        outputStream.writeInt(MAGIC);
         outputStream.writeShort(revision);
         outputStream.writeLong(created);
         outputStream.write(new byte[10]); // reserved space
-        outputStream.flush();
+        position += HEADER_SIZE;
+    }
+
+    /**
+     * Write the block index and the trailer that points to it
+     *
+     * @throws IOException
+     */
+    private void writeIndex() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(written.size() * 48 + 8);
+        DataOutputStream stream = new DataOutputStream(data);
+        stream.writeInt(INDEX_MAGIC);
+        stream.writeInt(written.size());
+
+        for (BackupBlock block : written) {
+            block.writeIndexEntry(stream);
+        }
+
+        stream.flush();
+        byte[] bytes = data.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        long indexOffset = position;
+        outputStream.write(bytes);
+        outputStream.writeLong(indexOffset);
+        outputStream.writeInt((int) crc.getValue());
+        outputStream.writeInt(INDEX_MAGIC);
+        position += bytes.length + TRAILER_SIZE;
     }
 
     /**
@@ -271,10 +670,32 @@ public class Backup {
      */
     protected void close() throws IOException {
         if (operationMode == OperationMode.READ) {
-            inputStream.close();
+            if (randomAccess != null) {
+                randomAccess.close();
+            } else {
+                inputStream.close();
+            }
         } else if (operationMode == OperationMode.WRITE) {
-            outputStream.close();
+            synchronized (this) {
+                flushBuffer();
+                writeIndex();
+                outputStream.close();
+            }
         }
     }
 
+    /**
+     * @return the backup's revision, once the header has been read
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return when the backup was created, in seconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
 }
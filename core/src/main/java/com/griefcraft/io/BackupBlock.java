@@ -0,0 +1,416 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An independently compressed and checksummed run of restorables in a revision 2 backup, along with the
+ * worlds and chunk ranges it covers
+ */
+class BackupBlock {
+
+    /**
+     * The marker each block starts with ("LWCK")
+     */
+    static final int MAGIC = 0x4C57434B;
+
+    /**
+     * The size of a block's header: magic, compression, stored length, raw length and checksum
+     */
+    static final int HEADER_SIZE = 17;
+
+    /**
+     * The largest block that will be read; anything larger is treated as corruption
+     */
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The compression methods a block can use
+     */
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_DEFLATE = 1;
+
+    /**
+     * The range written for restorables without a location, such as tombstones
+     */
+    private static final String NO_WORLD = "";
+
+    /**
+     * Where the block starts in the file, or -1 if it has not been written yet
+     */
+    private long offset = -1;
+
+    /**
+     * The compression method the payload uses
+     */
+    private int compression;
+
+    /**
+     * The stored (possibly compressed) restorables
+     */
+    private byte[] payload;
+
+    /**
+     * The length of the stored payload
+     */
+    private int length;
+
+    /**
+     * The length of the payload once decompressed
+     */
+    private int rawLength;
+
+    /**
+     * CRC32 of the decompressed payload
+     */
+    private int checksum;
+
+    /**
+     * The amount of restorables in the block
+     */
+    private int count;
+
+    /**
+     * The chunk ranges the block covers, at most one per world
+     */
+    private final List<BackupRegion> ranges = new ArrayList<BackupRegion>();
+
+    /**
+     * True if the block contains restorables without a location
+     */
+    private boolean unlocated;
+
+    private BackupBlock() {
+    }
+
+    /**
+     * Encode and compress restorables into a block. This does not touch the file and can be called from any thread.
+     *
+     * @param restorables
+     * @param compress
+     * @return
+     */
+    static BackupBlock create(List<Restorable> restorables, boolean compress) throws IOException {
+        BackupBlock block = new BackupBlock();
+        byte[] encoded = Backup.encode(restorables);
+
+        CRC32 crc = new CRC32();
+        crc.update(encoded);
+
+        block.rawLength = encoded.length;
+        block.checksum = (int) crc.getValue();
+        block.count = restorables.size();
+        block.compression = compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE;
+        block.payload = compress ? deflate(encoded) : encoded;
+        block.length = block.payload.length;
+
+        Map<String, BackupRegion> worlds = new LinkedHashMap<String, BackupRegion>();
+
+        for (Restorable restorable : restorables) {
+            String world;
+            int x;
+            int z;
+
+            if (restorable instanceof RestorableProtection) {
+                RestorableProtection rprotection = (RestorableProtection) restorable;
+                world = rprotection.getWorld();
+                x = rprotection.getX();
+                z = rprotection.getZ();
+            } else if (restorable instanceof RestorableBlock) {
+                RestorableBlock rblock = (RestorableBlock) restorable;
+                world = rblock.getWorld();
+                x = rblock.getX();
+                z = rblock.getZ();
+            } else {
+                block.unlocated = true;
+                continue;
+            }
+
+            BackupRegion range = worlds.get(world);
+
+            if (range == null) {
+                worlds.put(world, BackupRegion.ofChunk(world, x >> 4, z >> 4));
+            } else {
+                range.expand(x >> 4, z >> 4);
+            }
+        }
+
+        block.ranges.addAll(worlds.values());
+        return block;
+    }
+
+    /**
+     * Read a block's header and payload from the file
+     *
+     * @param file
+     * @param offset
+     * @return
+     */
+    static BackupBlock read(RandomAccessFile file, long offset) throws IOException {
+        if (offset + HEADER_SIZE > file.length()) {
+            throw new IOException("truncated block at offset " + offset);
+        }
+
+        file.seek(offset);
+
+        if (file.readInt() != MAGIC) {
+            throw new IOException("no block at offset " + offset);
+        }
+
+        BackupBlock block = new BackupBlock();
+        block.offset = offset;
+        block.compression = file.readByte();
+        int length = file.readInt();
+        block.rawLength = file.readInt();
+        block.checksum = file.readInt();
+
+        if (length < 0 || length > MAX_LENGTH || block.rawLength < 0 || block.rawLength > MAX_LENGTH
+                || offset + HEADER_SIZE + length > file.length()) {
+            throw new IOException("bad block length at offset " + offset);
+        }
+
+        block.length = length;
+        block.payload = new byte[length];
+        file.readFully(block.payload);
+        return block;
+    }
+
+    /**
+     * Decompress the block and verify its checksum
+     *
+     * @return the encoded restorables
+     */
+    byte[] decode() throws IOException {
+        byte[] decoded;
+
+        if (compression == COMPRESSION_NONE) {
+            decoded = payload;
+        } else if (compression == COMPRESSION_DEFLATE) {
+            decoded = inflate(payload, rawLength);
+        } else {
+            throw new IOException("unknown compression " + compression);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(decoded);
+
+        if (decoded.length != rawLength || (int) crc.getValue() != checksum) {
+            throw new IOException("checksum mismatch");
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Write the block to the file
+     *
+     * @param outputStream
+     * @param offset where the block starts in the file
+     */
+    void write(DataOutputStream outputStream, long offset) throws IOException {
+        this.offset = offset;
+
+        outputStream.writeInt(MAGIC);
+        outputStream.writeByte(compression);
+        outputStream.writeInt(payload.length);
+        outputStream.writeInt(rawLength);
+        outputStream.writeInt(checksum);
+        outputStream.write(payload);
+
+        // the index only needs the location
+        payload = null;
+    }
+
+    /**
+     * Write the block's index entry
+     *
+     * @param outputStream
+     */
+    void writeIndexEntry(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(offset);
+        outputStream.writeInt(count);
+        outputStream.writeShort(ranges.size() + (unlocated ? 1 : 0));
+
+        for (BackupRegion range : ranges) {
+            outputStream.writeUTF(range.getWorld());
+            outputStream.writeInt(range.getMinChunkX());
+            outputStream.writeInt(range.getMinChunkZ());
+            outputStream.writeInt(range.getMaxChunkX());
+            outputStream.writeInt(range.getMaxChunkZ());
+        }
+
+        if (unlocated) {
+            outputStream.writeUTF(NO_WORLD);
+            outputStream.writeInt(0);
+            outputStream.writeInt(0);
+            outputStream.writeInt(0);
+            outputStream.writeInt(0);
+        }
+    }
+
+    /**
+     * Read a block's index entry. The entry only knows where the block is, not its contents.
+     *
+     * @param inputStream
+     * @return
+     */
+    static BackupBlock readIndexEntry(DataInput inputStream) throws IOException {
+        BackupBlock block = new BackupBlock();
+        block.offset = inputStream.readLong();
+        block.count = inputStream.readInt();
+        int rangeCount = inputStream.readShort();
+
+        for (int i = 0; i < rangeCount; i++) {
+            String world = inputStream.readUTF();
+            BackupRegion range = new BackupRegion(world, inputStream.readInt(), inputStream.readInt(), inputStream.readInt(), inputStream.readInt());
+
+            if (world.equals(NO_WORLD)) {
+                block.unlocated = true;
+            } else {
+                block.ranges.add(range);
+            }
+        }
+
+        return block;
+    }
+
+    /**
+     * Check if the block may contain restorables in the given region
+     *
+     * @param region
+     * @return
+     */
+    boolean intersects(BackupRegion region) {
+        if (unlocated) {
+            return true;
+        }
+
+        for (BackupRegion range : ranges) {
+            if (range.intersects(region)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return where the block starts in the file
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the amount of bytes the block takes up in the file
+     */
+    long getSize() {
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * @return the amount of restorables in the block
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Deflate a byte array
+     *
+     * @param data
+     * @return
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Inflate a byte array
+     *
+     * @param data
+     * @param length the inflated length
+     * @return
+     */
+    private static byte[] inflate(byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] inflated = new byte[length];
+
+        try {
+            int read = 0;
+
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(inflated, read, length - read);
+
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated compressed data");
+                }
+
+                read += n;
+            }
+
+            if (read != length) {
+                throw new IOException("truncated compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        return inflated;
+    }
+
+}
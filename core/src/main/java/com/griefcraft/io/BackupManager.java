@@ -29,26 +29,21 @@
 package com.griefcraft.io;
 
 import com.griefcraft.lwc.LWC;
-import com.griefcraft.model.Protection;
-import com.griefcraft.sql.Database;
-import com.griefcraft.sql.PhysDB;
-import org.bukkit.Bukkit;
-import org.bukkit.Server;
-import org.bukkit.block.Block;
-import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitScheduler;
+import com.griefcraft.util.ChunkOrder;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
+import java.util.Map;
 
 public class BackupManager {
 
@@ -59,6 +54,15 @@ public class BackupManager {
         OK, FAILURE
     }
 
+    /**
+     * Orders protections by world and chunk so their blocks are restored one chunk at a time
+     */
+    private static final Comparator<RestorableProtection> CHUNK_ORDER = new Comparator<RestorableProtection>() {
+        public int compare(RestorableProtection o1, RestorableProtection o2) {
+            return ChunkOrder.compare(o1.getWorld(), o1.getX(), o1.getZ(), o2.getWorld(), o2.getX(), o2.getZ());
+        }
+    };
+
     /**
      * The folder where backups are stored at
      */
@@ -80,14 +84,14 @@ public class BackupManager {
     private static String FILE_EXTENSION_UNCOMPRESSED = ".lwc";
 
     /**
-     * The amount of protection block gets to batch at once
+     * The folder backups are stored in
      */
-    private static int BATCH_SIZE = 250;
+    private final File backupFolder = new File(BACKUP_FOLDER);
 
     /**
-     * The folder backups are stored in
+     * The restore in progress, if any
      */
-    private final File backupFolder = new File(BACKUP_FOLDER);
+    private BackupRestorer restorer = null;
 
     /**
      * Backup creation flags
@@ -125,14 +129,33 @@ public class BackupManager {
      * @return OK if successful, otherwise FAILURE
      */
     public Result restoreBackup(String name) {
+        return restoreBackup(name, null);
+    }
+
+    /**
+     * Begin restoring part of a backup. This should be ran in a separate thread.
+     * Any world calls are offloaded to the world thread using the scheduler. No world reads are done, only writes.
+     *
+     * @param name
+     * @param region the region to restore, or null to restore everything
+     * @return OK if successful, otherwise FAILURE
+     */
+    public Result restoreBackup(String name, BackupRegion region) {
         try {
+            List<String> chain = loadChain(name);
+
+            // an incremental backup is replayed on top of the backups it was made against
+            if (chain != null && chain.size() > 1) {
+                return restoreChain(chain, region);
+            }
+
             Backup backup = loadBackup(name);
 
             if (backup == null) {
                 return Result.FAILURE;
             }
 
-            return restoreBackup(backup);
+            return restoreBackup(backup, region);
         } catch (IOException e) {
             System.out.println("[BackupManager] Caught: " + e.getMessage());
             return Result.FAILURE;
@@ -147,37 +170,269 @@ public class BackupManager {
      * @return OK if successful, otherwise FAILURE
      */
     public Result restoreBackup(Backup backup) {
+        return restoreBackup(backup, null);
+    }
+
+    /**
+     * Begin restoring part of a backup. This should be ran in a separate thread.
+     * Any world calls are offloaded to the world thread using the scheduler. No world reads are done, only writes.
+     *
+     * @param backup
+     * @param region the region to restore, or null to restore everything
+     * @return OK if successful, otherwise FAILURE
+     */
+    public Result restoreBackup(Backup backup, BackupRegion region) {
+        BackupRestorer restorer = beginRestore();
+
+        if (restorer == null) {
+            return Result.FAILURE;
+        }
+
         try {
             // Read in the backup's header
             backup.readHeader();
+            backup.seek(region);
 
             // begin restoring :)
             Restorable restorable;
-            int count = 0;
-            int protectionCount = 0;
-            int blockCount = 0;
+
+            while (!restorer.isCancelled() && (restorable = backup.readRestorable()) != null) {
+                restorer.add(restorable);
+            }
+
+            backup.close();
+            return restorer.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+            restorer.cancel();
+            return Result.FAILURE;
+        } catch (InterruptedException e) {
+            restorer.cancel();
+            return Result.FAILURE;
+        } finally {
+            endRestore();
+        }
+    }
+
+    /**
+     * @return the progress of the restore in progress, or null if no backup is being restored
+     */
+    public synchronized String getRestoreProgress() {
+        return restorer == null ? null : restorer.getProgress();
+    }
+
+    /**
+     * Cancel the restore in progress. What was restored so far is kept
+     *
+     * @return false if no backup is being restored
+     */
+    public synchronized boolean cancelRestore() {
+        if (restorer == null) {
+            return false;
+        }
+
+        restorer.cancel();
+        return true;
+    }
+
+    /**
+     * Start a restore, unless one is already in progress
+     *
+     * @return the restore, or null if one is already in progress
+     */
+    private synchronized BackupRestorer beginRestore() {
+        if (restorer != null) {
+            System.out.println("[BackupManager] A backup is already being restored");
+            return null;
+        }
+
+        BackupRestorer started = new BackupRestorer(LWC.getInstance());
+
+        try {
+            started.start();
+        } catch (Exception e) {
+            System.out.println("[BackupManager] Could not start the restore: " + e.getMessage());
+            started.close();
+            return null;
+        }
+
+        restorer = started;
+        return restorer;
+    }
+
+    /**
+     * Mark the restore in progress as finished
+     */
+    private synchronized void endRestore() {
+        if (restorer != null) {
+            restorer.close();
+        }
+
+        restorer = null;
+    }
+
+    /**
+     * Replay a full backup and the incremental backups made on top of it, then restore the result
+     *
+     * @param chain the names of the backups, starting with the full backup
+     * @param region the region to restore, or null to restore everything
+     * @return OK if successful, otherwise FAILURE
+     */
+    private Result restoreChain(List<String> chain, BackupRegion region) throws IOException {
+        Map<Integer, RestorableProtection> protections = new LinkedHashMap<Integer, RestorableProtection>();
+        Map<String, RestorableBlock> blocks = new HashMap<String, RestorableBlock>();
+
+        for (String name : chain) {
+            Backup backup = loadBackup(name);
+
+            if (backup == null) {
+                System.out.println("[BackupManager] Missing backup in the chain: " + name);
+                return Result.FAILURE;
+            }
+
+            backup.readHeader();
+            backup.seek(region);
+            Restorable restorable;
+            int tombstones = 0;
+
             while ((restorable = backup.readRestorable()) != null) {
-                restorable.restore();
+                if (restorable instanceof RestorableProtection) {
+                    RestorableProtection rprotection = (RestorableProtection) restorable;
+                    protections.put(rprotection.getId(), rprotection);
+                } else if (restorable instanceof RestorableBlock) {
+                    RestorableBlock rblock = (RestorableBlock) restorable;
+                    blocks.put(locationKey(rblock.getWorld(), rblock.getX(), rblock.getY(), rblock.getZ()), rblock);
+                } else if (restorable instanceof RestorableTombstone) {
+                    RestorableProtection removed = protections.remove(((RestorableTombstone) restorable).getId());
+
+                    if (removed != null) {
+                        blocks.remove(locationKey(removed.getWorld(), removed.getX(), removed.getY(), removed.getZ()));
+                    }
+
+                    tombstones ++;
+                }
+            }
+
+            backup.close();
+            System.out.println(String.format("[BackupManager] Replayed %s: %d protections so far, %d removed", name, protections.size(), tombstones));
+        }
+
+        // restore one chunk at a time, each block before its protection as they are written
+        List<RestorableProtection> ordered = new ArrayList<RestorableProtection>(protections.values());
+        Collections.sort(ordered, CHUNK_ORDER);
+
+        BackupRestorer restorer = beginRestore();
 
-                if (count % 2000 == 0) {
-                    System.out.println("[Backup] Restored restorables: " + count);
+        if (restorer == null) {
+            return Result.FAILURE;
+        }
+
+        try {
+            for (RestorableProtection rprotection : ordered) {
+                if (restorer.isCancelled()) {
+                    break;
                 }
-                count ++;
 
-                // TODO THIS IS HACKS :-( ALSO ENUM ENUM
-                if (restorable.getType() == 0) {
-                    protectionCount ++;
-                } else if (restorable.getType() == 1) {
-                    blockCount ++;
+                RestorableBlock rblock = blocks.get(locationKey(rprotection.getWorld(), rprotection.getX(), rprotection.getY(), rprotection.getZ()));
+
+                if (rblock != null) {
+                    restorer.add(rblock);
                 }
+
+                restorer.add(rprotection);
             }
 
-            System.out.println(String.format("[BackupManager] Restored %d restorables. %d were protections, %d blocks.", count, protectionCount, blockCount));
-            return Result.OK;
-        } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println(String.format("[BackupManager] Restoring %d protections from %d backups.", ordered.size(), chain.size()));
+            return restorer.finish();
+        } catch (InterruptedException e) {
+            restorer.cancel();
             return Result.FAILURE;
+        } finally {
+            endRestore();
+        }
+    }
+
+    /**
+     * Get the key a block is stored with while replaying a backup chain
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    private String locationKey(String world, int x, int y, int z) {
+        return world + ":" + x + ":" + y + ":" + z;
+    }
+
+    /**
+     * Load the chain of backups a backup was made against
+     *
+     * @param name
+     * @return the names of the backups, starting with the full backup, or null if the backup has no state
+     * @throws IOException if a backup in the chain has no state
+     */
+    public List<String> loadChain(String name) throws IOException {
+        LinkedList<String> chain = new LinkedList<String>();
+        String current = name;
+
+        while (true) {
+            BackupState state = loadState(current);
+
+            if (state == null) {
+                if (chain.isEmpty()) {
+                    return null;
+                }
+
+                // restoring the incremental backups without their full base would lose protections
+                throw new IOException("The backup " + current + " in the backup chain of " + name + " is missing or incomplete");
+            }
+
+            chain.addFirst(current);
+
+            if (!state.isIncremental()) {
+                return chain;
+            }
+
+            current = state.getParent();
+
+            if (chain.contains(current)) {
+                throw new IOException("The backup chain of " + name + " loops at " + current);
+            }
+        }
+    }
+
+    /**
+     * Load the state stored next to a backup
+     *
+     * @param name
+     * @return the state, or null if the backup has none
+     */
+    public BackupState loadState(String name) throws IOException {
+        File file = new File(backupFolder, name + BackupState.FILE_EXTENSION);
+        return file.exists() ? BackupState.read(file) : null;
+    }
+
+    /**
+     * Find the most recent backup that an incremental backup can be made against
+     *
+     * @return the backup's name, or null if there is none
+     */
+    public String findLatestBackup() {
+        File[] files = backupFolder.listFiles();
+        File latest = null;
+
+        if (files == null) {
+            return null;
         }
+
+        for (File file : files) {
+            if (file.getName().endsWith(BackupState.FILE_EXTENSION) && (latest == null || file.lastModified() > latest.lastModified())) {
+                latest = file;
+            }
+        }
+
+        return latest == null ? null : latest.getName().substring(0, latest.getName().length() - BackupState.FILE_EXTENSION.length());
     }
 
     /**
@@ -216,124 +471,36 @@ public class BackupManager {
      * @param flags
      * @return
      */
-    public Backup createBackup(String name, final EnumSet<Flag> flags) {
-        final LWC lwc = LWC.getInstance();
-        final Plugin plugin = lwc.getPlugin();
-        Server server = Bukkit.getServer();
-        final BukkitScheduler scheduler = server.getScheduler();
+    public Backup createBackup(String name, EnumSet<Flag> flags) {
+        return createBackup(name, flags, null);
+    }
+
+    /**
+     * Create a backup of the given objects that only contains what changed since another backup.
+     * When this returns, it is not guaranteed that the backup is fully written to the disk.
+     *
+     * @param name
+     * @param flags
+     * @param parentName the backup to make the backup against, or null for a full backup
+     * @return
+     */
+    public Backup createBackup(String name, EnumSet<Flag> flags, String parentName) {
+        LWC lwc = LWC.getInstance();
         String extension = flags.contains(Flag.COMPRESSION) ? FILE_EXTENSION_COMPRESSED : FILE_EXTENSION_UNCOMPRESSED;
         File backupFile = new File(backupFolder, name + extension);
+        File stateFile = new File(backupFolder, name + BackupState.FILE_EXTENSION);
 
         // Our backup file
         try {
-            final Backup backup = new Backup(backupFile, Backup.OperationMode.WRITE, flags);
-
-            scheduler.scheduleAsyncDelayedTask(plugin, new Runnable() {
-                public void run() {
-                    try {
-                        System.out.println("Processing backup request now in a separate thread");
-
-                        // the list of protections work off of. We batch updates to the world
-                        // so we can more than 20 results/second.
-                        final List<Protection> protections = new ArrayList<Protection>(BATCH_SIZE);
-
-                        // amount of protections
-                        int totalProtections = lwc.getPhysicalDatabase().getProtectionCount();
-
-                        // Write the header
-                        backup.writeHeader();
-
-                        // TODO separate stream logic to somewhere else :)
-                        // Create a new database connection, we are just reading
-                        PhysDB database = new PhysDB();
-                        database.connect();
-                        database.load();
-
-                        // TODO separate stream logic to somewhere else :)
-                        Statement resultStatement = database.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-
-                        if (lwc.getPhysicalDatabase().getType() == Database.Type.MySQL) {
-                            resultStatement.setFetchSize(Integer.MIN_VALUE);
-                        }
-
-                        String prefix = lwc.getPhysicalDatabase().getPrefix();
-                        ResultSet result = resultStatement.executeQuery("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections");
-                        int count = 0;
-
-                        while (result.next()) {
-                            final Protection tprotection = database.resolveProtection(result);
-
-                            if (count % 2000 == 0) {
-                                System.out.println("[Backup] Parsed protections: " + count + "/" + totalProtections);
-                            }
-                            count ++;
-
-                            if (protections.size() != BATCH_SIZE) {
-                                // Wait until we have BATCH_SIZE protections
-                                protections.add(tprotection);
-
-                                if (protections.size() != totalProtections) {
-                                    continue;
-                                }
-                            }
-
-                            // Get all of the blocks in the world
-                            Future<Void> getBlocks = scheduler.callSyncMethod(plugin, new Callable<Void>() {
-                                public Void call() throws Exception {
-                                    for (Protection protection : protections) {
-                                        protection.getBlock(); // this will cache it also :D
-                                    }
-
-                                    return null;
-                                }
-                            });
-
-                            // Get all of the blocks
-                            getBlocks.get();
-
-                            for (Protection protection : protections) {
-                                try {
-                                    // if we are writing the block to the backup, do that before we write the protection
-                                    if (flags.contains(Flag.BACKUP_BLOCKS)) {
-                                        // now we can get the block from the world
-                                        Block block = protection.getBlock();
-
-                                        // Wrap the block object in a RestorableBlock object
-                                        RestorableBlock rblock = RestorableBlock.wrapBlock(block);
-
-                                        // Write it
-                                        backup.writeRestorable(rblock);
-                                    }
-
-                                    // Now write the protection after the block if we are writing protections
-                                    if (flags.contains(Flag.BACKUP_PROTECTIONS)) {
-                                        RestorableProtection rprotection = RestorableProtection.wrapProtection(protection);
-
-                                        // Write it
-                                        backup.writeRestorable(rprotection);
-                                    }
-                                } catch (Exception e) {
-                                    System.out.println("Caught: " + e.getMessage() + ". Carrying on...");
-                                }
-                            }
-
-                            // Clear the protection set, we are done with them
-                            protections.clear();
-                        }
-
-                        // close the sql statements
-                        result.close();
-                        resultStatement.close();
-
-                        // close the backup file
-                        backup.close();
-
-                        System.out.println("Backup completed!");
-                    } catch (Exception e) { // database.connect() throws Exception
-                        System.out.println("Backup exception caught: " + e.getMessage());
-                    }
-                }
-            });
+            BackupState parent = parentName == null ? null : loadState(parentName);
+
+            if (parentName != null && parent == null) {
+                System.out.println("[BackupManager] " + parentName + " has no backup state; making a full backup instead");
+                parentName = null;
+            }
+
+            Backup backup = new Backup(backupFile, Backup.OperationMode.WRITE, flags);
+            new BackupWriter(lwc, backup, flags, stateFile, parentName, parent).start();
 
             return backup;
         } catch (IOException e) {
@@ -343,6 +510,17 @@ public class BackupManager {
         return null;
     }
 
+    /**
+     * Create a backup of everything that changed since the most recent backup, or a full backup if there is none.
+     * When this returns, it is not guaranteed that the backup is fully written to the disk.
+     *
+     * @return
+     */
+    public Backup createIncrementalBackup() {
+        String name = new SimpleDateFormat(DATE_FORMAT).format(new Date()) + "-incremental";
+        return createBackup(name, EnumSet.of(Flag.COMPRESSION, Flag.BACKUP_BLOCKS, Flag.BACKUP_PROTECTIONS), findLatestBackup());
+    }
+
     /**
      * Create a backup of all protections, blocks, and their contents
      * When this returns, it is not guaranteed that the backup is fully written to the disk.
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.io;
+
+public class BackupRegion {
+
+    /**
+     * The world the region is in
+     */
+    private final String world;
+
+    /**
+     * The region's bounds in chunk coordinates, inclusive
+     */
+    private int minChunkX, minChunkZ, maxChunkX, maxChunkZ;
+
+    /**
+     * Create a region covering an entire world
+     *
+     * @param world
+     */
+    public BackupRegion(String world) {
+        this(world, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public BackupRegion(String world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        this.world = world;
+        this.minChunkX = Math.min(minChunkX, maxChunkX);
+        this.minChunkZ = Math.min(minChunkZ, maxChunkZ);
+        this.maxChunkX = Math.max(minChunkX, maxChunkX);
+        this.maxChunkZ = Math.max(minChunkZ, maxChunkZ);
+    }
+
+    /**
+     * Create a region covering a single chunk
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    public static BackupRegion ofChunk(String world, int chunkX, int chunkZ) {
+        return new BackupRegion(world, chunkX, chunkZ, chunkX, chunkZ);
+    }
+
+    /**
+     * Grow the region so it includes the given chunk
+     *
+     * @param chunkX
+     * @param chunkZ
+     */
+    void expand(int chunkX, int chunkZ) {
+        minChunkX = Math.min(minChunkX, chunkX);
+        minChunkZ = Math.min(minChunkZ, chunkZ);
+        maxChunkX = Math.max(maxChunkX, chunkX);
+        maxChunkZ = Math.max(maxChunkZ, chunkZ);
+    }
+
+    /**
+     * Check if the region overlaps with another region
+     *
+     * @param other
+     * @return
+     */
+    public boolean intersects(BackupRegion other) {
+        return world.equals(other.world) && minChunkX <= other.maxChunkX && other.minChunkX <= maxChunkX
+                && minChunkZ <= other.maxChunkZ && other.minChunkZ <= maxChunkZ;
+    }
+
+    /**
+     * Check if a block location is in the region
+     *
+     * @param world
+     * @param x
+     * @param z
+     * @return
+     */
+    public boolean contains(String world, int x, int z) {
+        int chunkX = x >> 4;
+        int chunkZ = z >> 4;
+
+        return this.world.equals(world) && chunkX >= minChunkX && chunkX <= maxChunkX && chunkZ >= minChunkZ && chunkZ <= maxChunkZ;
+    }
+
+    /**
+     * Check if a restorable is in the region. Restorables without a location, such as tombstones, always are.
+     *
+     * @param restorable
+     * @return
+     */
+    public boolean contains(Restorable restorable) {
+        if (restorable instanceof RestorableProtection) {
+            RestorableProtection rprotection = (RestorableProtection) restorable;
+            return contains(rprotection.getWorld(), rprotection.getX(), rprotection.getZ());
+        } else if (restorable instanceof RestorableBlock) {
+            RestorableBlock rblock = (RestorableBlock) restorable;
+            return contains(rblock.getWorld(), rblock.getX(), rblock.getZ());
+        }
+
+        return true;
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public int getMinChunkX() {
+        return minChunkX;
+    }
+
+    public int getMinChunkZ() {
+        return minChunkZ;
+    }
+
+    public int getMaxChunkX() {
+        return maxChunkX;
+    }
+
+    public int getMaxChunkZ() {
+        return maxChunkZ;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%d,%d] to [%d,%d]", world, minChunkX, minChunkZ, maxChunkX, maxChunkZ);
+    }
+
+}
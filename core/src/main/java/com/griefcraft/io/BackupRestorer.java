@@ -0,0 +1,366 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.io;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import org.bukkit.plugin.Plugin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Restores a backup as a pipeline. Restorables are handed over by the thread reading the backup; protections are
+ * inserted in batches, each in one transaction, on that thread using a connection of its own. Blocks are grouped by
+ * chunk and written to the world on the main thread within a per-tick time budget.
+ */
+class BackupRestorer {
+
+    /**
+     * The amount of protections inserted in each transaction
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * How long (in milliseconds) blocks may be written for each tick
+     */
+    private static final long TICK_BUDGET = 10L;
+
+    /**
+     * The maximum amount of chunks waiting to be written; the reading thread waits when this is reached
+     */
+    private static final int MAX_PENDING_CHUNKS = 256;
+
+    /**
+     * How often (in milliseconds) progress is printed
+     */
+    private static final long PROGRESS_INTERVAL = 10000L;
+
+    /**
+     * The blocks of one chunk waiting to be written
+     */
+    private static class ChunkBatch {
+
+        /**
+         * The chunk's key, or null if this marks the end of the restore
+         */
+        private final String chunk;
+
+        /**
+         * The blocks in the chunk
+         */
+        private final List<RestorableBlock> blocks = new ArrayList<RestorableBlock>();
+
+        /**
+         * The next block to write
+         */
+        private int next = 0;
+
+        private ChunkBatch(String chunk) {
+            this.chunk = chunk;
+        }
+
+    }
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * The connection protections are inserted with, so the restore's transactions are kept apart from the queries
+     * other threads make on the shared connection
+     */
+    private Connection connection = null;
+
+    /**
+     * Protections waiting to be inserted
+     */
+    private final List<Protection> protections = new ArrayList<Protection>(BATCH_SIZE);
+
+    /**
+     * The chunk blocks are currently being grouped into
+     */
+    private ChunkBatch current = null;
+
+    /**
+     * Chunks waiting for their blocks to be written on the main thread
+     */
+    private final Queue<ChunkBatch> chunks = new ConcurrentLinkedQueue<ChunkBatch>();
+
+    /**
+     * Limits the amount of chunks waiting to be written
+     */
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+
+    /**
+     * Released once every block was written or the restore was cancelled
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The id of the main thread task writing blocks
+     */
+    private int writeTask = -1;
+
+    /**
+     * The amount of protections inserted
+     */
+    private final AtomicInteger protectionCount = new AtomicInteger(0);
+
+    /**
+     * The amount of blocks handed over and written
+     */
+    private final AtomicInteger blocksRead = new AtomicInteger(0);
+    private final AtomicInteger blocksWritten = new AtomicInteger(0);
+
+    /**
+     * If the restore was cancelled
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * When the restore was started
+     */
+    private final long started = System.currentTimeMillis();
+
+    /**
+     * When progress was last printed
+     */
+    private long lastProgress = started;
+
+    BackupRestorer(LWC lwc) {
+        this.lwc = lwc;
+    }
+
+    /**
+     * Open the restore's connection and start writing blocks on the main thread
+     */
+    void start() throws Exception {
+        Plugin plugin = lwc.getPlugin();
+        connection = lwc.getPhysicalDatabase().openConnection();
+
+        writeTask = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, 1L, 1L);
+    }
+
+    /**
+     * Restore a restorable. Called on the thread reading the backup
+     *
+     * @param restorable
+     */
+    void add(Restorable restorable) throws InterruptedException {
+        if (cancelled) {
+            return;
+        }
+
+        if (restorable instanceof RestorableProtection) {
+            protections.add(((RestorableProtection) restorable).toProtection());
+
+            if (protections.size() >= BATCH_SIZE) {
+                flushProtections();
+            }
+        } else if (restorable instanceof RestorableBlock) {
+            RestorableBlock rblock = (RestorableBlock) restorable;
+            String chunk = rblock.getWorld() + ":" + (rblock.getX() >> 4) + ":" + (rblock.getZ() >> 4);
+
+            if (current == null || !current.chunk.equals(chunk)) {
+                flushChunk();
+                current = new ChunkBatch(chunk);
+            }
+
+            current.blocks.add(rblock);
+            blocksRead.incrementAndGet();
+        }
+
+        // tombstones are only used while replaying a backup chain
+
+        printProgressIfDue();
+    }
+
+    /**
+     * Insert what is left and wait for every block to be written
+     *
+     * @return OK if everything was restored, otherwise FAILURE
+     */
+    BackupManager.Result finish() throws InterruptedException {
+        if (!cancelled) {
+            flushProtections();
+            flushChunk();
+            chunks.offer(new ChunkBatch(null));
+        }
+
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            if (!lwc.getPlugin().isEnabled()) {
+                cancel();
+                break;
+            }
+
+            printProgressIfDue();
+        }
+
+        double seconds = (System.currentTimeMillis() - started) / 1000D;
+        System.out.println(String.format("[BackupManager] %s %d protections and %d/%d blocks in %.1fs (%.0f protections/s).",
+                cancelled ? "Cancelled after restoring" : "Restored", protectionCount.get(), blocksWritten.get(), blocksRead.get(),
+                seconds, protectionCount.get() / Math.max(seconds, 0.001D)));
+
+        return cancelled ? BackupManager.Result.FAILURE : BackupManager.Result.OK;
+    }
+
+    /**
+     * Stop the restore. What was restored so far is kept
+     */
+    void cancel() {
+        cancelled = true;
+
+        // let the reading thread through if it is waiting for the main thread
+        pendingChunks.release(MAX_PENDING_CHUNKS);
+        done.countDown();
+    }
+
+    /**
+     * Close the restore's connection. Called once the thread reading the backup is done
+     */
+    void close() {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        connection = null;
+    }
+
+    /**
+     * @return if the restore was cancelled
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return a summary of the restore's progress
+     */
+    String getProgress() {
+        double seconds = (System.currentTimeMillis() - started) / 1000D;
+
+        return String.format("%d protections and %d/%d blocks restored in %.0fs (%.0f protections/s)", protectionCount.get(),
+                blocksWritten.get(), blocksRead.get(), seconds, protectionCount.get() / Math.max(seconds, 0.001D));
+    }
+
+    /**
+     * Insert the waiting protections in one transaction
+     */
+    private void flushProtections() {
+        if (protections.isEmpty()) {
+            return;
+        }
+
+        protectionCount.addAndGet(lwc.getPhysicalDatabase().registerProtections(connection, protections));
+        protections.clear();
+    }
+
+    /**
+     * Hand the chunk blocks are being grouped into to the main thread, waiting if too many chunks are waiting
+     */
+    private void flushChunk() throws InterruptedException {
+        if (current == null) {
+            return;
+        }
+
+        pendingChunks.acquire();
+        chunks.offer(current);
+        current = null;
+    }
+
+    /**
+     * Print the restore's progress if it has not been printed for a while
+     */
+    private void printProgressIfDue() {
+        long now = System.currentTimeMillis();
+
+        if (now - lastProgress >= PROGRESS_INTERVAL) {
+            lastProgress = now;
+            System.out.println("[Backup] Restoring: " + getProgress());
+        }
+    }
+
+    /**
+     * Write the blocks of waiting chunks until this tick's budget is used. Runs on the main thread
+     */
+    private void writeBlocks() {
+        long deadline = System.nanoTime() + TICK_BUDGET * 1000000L;
+        ChunkBatch batch;
+
+        if (cancelled) {
+            chunks.clear();
+            lwc.getPlugin().getServer().getScheduler().cancelTask(writeTask);
+            return;
+        }
+
+        while ((batch = chunks.peek()) != null && System.nanoTime() < deadline) {
+            if (batch.chunk == null) {
+                chunks.poll();
+                lwc.getPlugin().getServer().getScheduler().cancelTask(writeTask);
+                done.countDown();
+                return;
+            }
+
+            // write up to the deadline, checking the time every few blocks
+            while (batch.next < batch.blocks.size()) {
+                if (batch.blocks.get(batch.next++).apply()) {
+                    blocksWritten.incrementAndGet();
+                }
+
+                if ((batch.next & 15) == 0 && System.nanoTime() >= deadline) {
+                    return;
+                }
+            }
+
+            chunks.poll();
+            pendingChunks.release();
+        }
+    }
+
+}
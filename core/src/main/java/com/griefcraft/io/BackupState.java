@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The state of the protections table when a backup was made. It is stored next to the backup and is what the next
+ * incremental backup is made against: protections with a greater id or that were changed since the change sequence
+ * are written again, and protections in the id list that no longer exist are written as tombstones.
+ */
+public class BackupState {
+
+    /**
+     * The file extension of backup state files
+     */
+    public static final String FILE_EXTENSION = ".state";
+
+    /**
+     * The state file's current revision
+     */
+    private static final int CURRENT_REVISION = 1;
+
+    /**
+     * The name of the backup this backup was made against, or an empty string for a full backup
+     */
+    private final String parent;
+
+    /**
+     * The time (in milliseconds) the backup started at. Protections changed at or after this are not in the backup
+     */
+    private final long changeSequence;
+
+    /**
+     * The greatest protection id when the backup was made
+     */
+    private final int maxId;
+
+    /**
+     * The ids of the protections that existed when the backup was made, sorted
+     */
+    private final int[] ids;
+
+    public BackupState(String parent, long changeSequence, int[] ids) {
+        this.parent = parent == null ? "" : parent;
+        this.changeSequence = changeSequence;
+        this.ids = ids;
+        this.maxId = ids.length == 0 ? 0 : ids[ids.length - 1];
+    }
+
+    /**
+     * Find the protections that existed in this state but not in a newer one
+     *
+     * @param current the sorted ids of the newer state
+     * @return the removed ids
+     */
+    public int[] findRemoved(int[] current) {
+        int[] removed = new int[ids.length];
+        int count = 0;
+        int index = 0;
+
+        for (int id : ids) {
+            while (index < current.length && current[index] < id) {
+                index++;
+            }
+
+            if (index >= current.length || current[index] != id) {
+                removed[count++] = id;
+            }
+        }
+
+        return Arrays.copyOf(removed, count);
+    }
+
+    /**
+     * Write the state to a file
+     *
+     * @param file
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+
+        try {
+            outputStream.writeShort(CURRENT_REVISION);
+            outputStream.writeUTF(parent);
+            outputStream.writeLong(changeSequence);
+            outputStream.writeInt(ids.length);
+
+            for (int id : ids) {
+                outputStream.writeInt(id);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Read a state from a file
+     *
+     * @param file
+     * @return
+     */
+    public static BackupState read(File file) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+
+        try {
+            int revision = inputStream.readShort();
+
+            if (revision > CURRENT_REVISION) {
+                throw new IOException("Unsupported backup state revision: " + revision);
+            }
+
+            String parent = inputStream.readUTF();
+            long changeSequence = inputStream.readLong();
+            int[] ids = new int[inputStream.readInt()];
+
+            for (int index = 0; index < ids.length; index++) {
+                ids[index] = inputStream.readInt();
+            }
+
+            return new BackupState(parent, changeSequence, ids);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return the name of the backup this backup was made against, or an empty string for a full backup
+     */
+    public String getParent() {
+        return parent;
+    }
+
+    /**
+     * @return true if the backup was made against another backup
+     */
+    public boolean isIncremental() {
+        return !parent.isEmpty();
+    }
+
+    public long getChangeSequence() {
+        return changeSequence;
+    }
+
+    public int getMaxId() {
+        return maxId;
+    }
+
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.io;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import com.griefcraft.sql.Database;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.util.ChunkOrder;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a backup as a pipeline. Protections are streamed from the database on an async thread and grouped into
+ * batches. When blocks are backed up, each batch is sorted by chunk and its blocks are captured on the main thread
+ * within a per-tick time budget. Batches are then encoded and compressed into independent blocks by a pool of
+ * threads and written to the file in order by a writer thread.
+ */
+class BackupWriter {
+
+    /**
+     * The amount of protections in each batch
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * How long (in milliseconds) blocks may be captured for each tick
+     */
+    private static final long TICK_BUDGET = 10L;
+
+    /**
+     * How far (in milliseconds) to move the change watermark back for saves that are not committed yet
+     */
+    private static final long COMMIT_MARGIN = 5000L;
+
+    /**
+     * A batch of protections on its way to the backup file
+     */
+    private static class Batch {
+
+        /**
+         * The protections in the batch
+         */
+        private final List<Protection> protections;
+
+        /**
+         * The blocks captured for the protections so far, in the same order. Null for blocks that were not found
+         */
+        private final List<RestorableBlock> blocks;
+
+        /**
+         * Restorables written after the protections
+         */
+        private final List<Restorable> extra = new ArrayList<Restorable>();
+
+        /**
+         * If this marks the end of the backup
+         */
+        private final boolean end;
+
+        private Batch(List<Protection> protections, boolean end) {
+            this.protections = protections;
+            this.blocks = new ArrayList<RestorableBlock>(protections.size());
+            this.end = end;
+        }
+
+    }
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * The backup being written
+     */
+    private final Backup backup;
+
+    /**
+     * What the backup contains
+     */
+    private final EnumSet<BackupManager.Flag> flags;
+
+    /**
+     * The file the state of the backup is written to once it is complete
+     */
+    private final File stateFile;
+
+    /**
+     * The name of the backup this is an incremental backup of, or null for a full backup
+     */
+    private final String parentName;
+
+    /**
+     * The state of the backup this is an incremental backup of, or null for a full backup
+     */
+    private final BackupState parent;
+
+    /**
+     * The state of this backup, set once every protection was read
+     */
+    private volatile BackupState state = null;
+
+    /**
+     * Encodes and compresses batches
+     */
+    private final ExecutorService compressors;
+
+    /**
+     * The maximum amount of batches between the reader and the file; the reader waits when this is reached
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Batches waiting for their blocks to be captured on the main thread
+     */
+    private final Queue<Batch> capture = new ConcurrentLinkedQueue<Batch>();
+
+    /**
+     * Compressed blocks in the order they are written to the file. A null block marks the end of the backup
+     */
+    private final BlockingQueue<Future<BackupBlock>> blocks = new LinkedBlockingQueue<Future<BackupBlock>>();
+
+    /**
+     * The id of the main thread task capturing blocks
+     */
+    private int captureTask = -1;
+
+    /**
+     * The amount of protections read from the database
+     */
+    private volatile int read = 0;
+
+    /**
+     * If the backup failed and the pipeline should stop
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * When the backup was started
+     */
+    private final long started = System.currentTimeMillis();
+
+    BackupWriter(LWC lwc, Backup backup, EnumSet<BackupManager.Flag> flags, File stateFile, String parentName, BackupState parent) {
+        this.lwc = lwc;
+        this.backup = backup;
+        this.flags = flags;
+        this.stateFile = stateFile;
+        this.parentName = parentName;
+        this.parent = parent;
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LWC Backup Compressor #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.inFlight = new Semaphore(threads * 4);
+    }
+
+    /**
+     * Start writing the backup
+     */
+    void start() {
+        Plugin plugin = lwc.getPlugin();
+        BukkitScheduler scheduler = plugin.getServer().getScheduler();
+
+        if (flags.contains(BackupManager.Flag.BACKUP_BLOCKS)) {
+            captureTask = scheduler.scheduleSyncRepeatingTask(plugin, new Runnable() {
+                public void run() {
+                    captureBlocks();
+                }
+            }, 1L, 1L);
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "LWC Backup Writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        scheduler.scheduleAsyncDelayedTask(plugin, new Runnable() {
+            public void run() {
+                readProtections();
+            }
+        });
+    }
+
+    /**
+     * Stream the protections from the database into batches. Runs on an async thread
+     */
+    private void readProtections() {
+        System.out.println("Processing backup request now in a separate thread");
+        int totalProtections = lwc.getPhysicalDatabase().getProtectionCount();
+        int count = 0;
+
+        // protections changed from now on are picked up by the next incremental backup. Saves stamped
+        // before now may not be committed when the protections are read, so go back to the start of the
+        // flush in progress: those protections are backed up twice rather than missed
+        long changeSequence = System.currentTimeMillis() - COMMIT_MARGIN;
+        long flushStarted = lwc.getDatabaseThread().getFlushStarted();
+
+        if (flushStarted > 0) {
+            changeSequence = Math.min(changeSequence, flushStarted);
+        }
+
+        try {
+            // Write the header
+            backup.writeHeader();
+
+            // Create a new database connection, we are just reading
+            PhysDB database = new PhysDB();
+            database.connect();
+            database.load();
+
+            Statement resultStatement = database.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+            if (lwc.getPhysicalDatabase().getType() == Database.Type.MySQL) {
+                resultStatement.setFetchSize(Integer.MIN_VALUE);
+            }
+
+            String prefix = lwc.getPhysicalDatabase().getPrefix();
+            String query = "SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections";
+
+            // only protections created or changed since the parent backup
+            if (parent != null) {
+                query += " WHERE id > " + parent.getMaxId() + " OR changed >= " + parent.getChangeSequence();
+            }
+
+            ResultSet result = resultStatement.executeQuery(query);
+            List<Protection> protections = new ArrayList<Protection>(BATCH_SIZE);
+            int[] streamedIds = new int[1024];
+
+            while (!failed && result.next()) {
+                Protection protection = database.resolveProtection(result);
+                protections.add(protection);
+
+                if (count == streamedIds.length) {
+                    streamedIds = Arrays.copyOf(streamedIds, count * 2);
+                }
+
+                streamedIds[count] = protection.getId();
+
+                if (count % 2000 == 0) {
+                    System.out.println("[Backup] Parsed protections: " + count + "/" + totalProtections);
+                }
+                count ++;
+
+                if (protections.size() == BATCH_SIZE) {
+                    submit(protections);
+                    protections = new ArrayList<Protection>(BATCH_SIZE);
+                }
+            }
+
+            if (!protections.isEmpty()) {
+                submit(protections);
+            }
+
+            read = count;
+
+            // close the sql statements
+            result.close();
+            resultStatement.close();
+
+            // protections removed after they were read are still in the backup, so their ids are kept in the
+            // state for the next incremental backup to write their tombstones
+            int[] ids = mergeIds(loadIds(database), Arrays.copyOf(streamedIds, count));
+
+            // protections that were removed since the parent backup
+            if (parent != null && !failed) {
+                Batch tombstones = new Batch(Collections.<Protection>emptyList(), false);
+
+                for (int id : parent.findRemoved(ids)) {
+                    tombstones.extra.add(new RestorableTombstone(id));
+                }
+
+                inFlight.acquire();
+                enqueue(tombstones);
+                System.out.println("[Backup] Removed protections since " + parentName + ": " + tombstones.extra.size());
+            }
+
+            state = new BackupState(parentName, changeSequence, ids);
+            database.dispose();
+        } catch (Exception e) { // database.connect() throws Exception
+            System.out.println("Backup exception caught: " + e.getMessage());
+            failed = true;
+        }
+
+        // the end marker follows the same path as the batches so it arrives after them
+        Batch end = new Batch(Collections.<Protection>emptyList(), true);
+
+        if (captureTask != -1) {
+            capture.offer(end);
+        } else {
+            blocks.offer(encode(end));
+        }
+    }
+
+    /**
+     * Hand a batch of protections to the next stage, waiting if too many batches are in flight
+     *
+     * @param protections
+     */
+    private void submit(List<Protection> protections) throws InterruptedException {
+        inFlight.acquire();
+        Batch batch = new Batch(protections, false);
+        Collections.sort(batch.protections, ChunkOrder.PROTECTIONS);
+        enqueue(batch);
+    }
+
+    /**
+     * Hand a batch to the next stage
+     *
+     * @param batch
+     */
+    private void enqueue(Batch batch) {
+        if (captureTask != -1) {
+            capture.offer(batch);
+        } else {
+            blocks.offer(encode(batch));
+        }
+    }
+
+    /**
+     * Load the ids of every protection, sorted
+     *
+     * @param database
+     * @return
+     */
+    private int[] loadIds(PhysDB database) throws SQLException {
+        Statement statement = database.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+        if (database.getType() == Database.Type.MySQL) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+        }
+
+        ResultSet result = statement.executeQuery("SELECT id FROM " + database.getPrefix() + "protections ORDER BY id");
+        int[] ids = new int[1024];
+        int count = 0;
+
+        while (result.next()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+
+            ids[count++] = result.getInt("id");
+        }
+
+        result.close();
+        statement.close();
+
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Merge two sets of ids
+     *
+     * @param sorted sorted ids
+     * @param other ids in any order
+     * @return the ids in either set, sorted and without duplicates
+     */
+    private int[] mergeIds(int[] sorted, int[] other) {
+        int[] merged = Arrays.copyOf(sorted, sorted.length + other.length);
+        System.arraycopy(other, 0, merged, sorted.length, other.length);
+        Arrays.sort(merged);
+
+        int count = 0;
+
+        for (int index = 0; index < merged.length; index++) {
+            if (count == 0 || merged[count - 1] != merged[index]) {
+                merged[count++] = merged[index];
+            }
+        }
+
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Capture the blocks of waiting batches until this tick's budget is used. Runs on the main thread
+     */
+    private void captureBlocks() {
+        long deadline = System.nanoTime() + TICK_BUDGET * 1000000L;
+        Batch batch;
+
+        while ((batch = capture.peek()) != null && System.nanoTime() < deadline) {
+            if (batch.end) {
+                capture.poll();
+                blocks.offer(encode(batch));
+                lwc.getPlugin().getServer().getScheduler().cancelTask(captureTask);
+                return;
+            }
+
+            if (failed) {
+                capture.poll();
+                inFlight.release();
+                continue;
+            }
+
+            // capture up to the deadline, checking the time every few blocks
+            while (batch.blocks.size() < batch.protections.size()) {
+                Protection protection = batch.protections.get(batch.blocks.size());
+                Block block = protection.getBlock();
+                batch.blocks.add(block == null ? null : RestorableBlock.wrapBlock(block));
+
+                if ((batch.blocks.size() & 15) == 0 && System.nanoTime() >= deadline) {
+                    return;
+                }
+            }
+
+            capture.poll();
+            blocks.offer(encode(batch));
+        }
+    }
+
+    /**
+     * Encode and compress a batch on the compressor pool
+     *
+     * @param batch
+     * @return the compressed block, or null for the end marker
+     */
+    private Future<BackupBlock> encode(final Batch batch) {
+        if (batch.end) {
+            FutureTask<BackupBlock> end = new FutureTask<BackupBlock>(new Callable<BackupBlock>() {
+                public BackupBlock call() {
+                    return null;
+                }
+            });
+            end.run();
+            return end;
+        }
+
+        Callable<BackupBlock> task = new Callable<BackupBlock>() {
+            public BackupBlock call() throws Exception {
+                List<Restorable> restorables = new ArrayList<Restorable>(batch.protections.size() * 2);
+
+                for (int index = 0; index < batch.protections.size(); index++) {
+                    Protection protection = batch.protections.get(index);
+
+                    try {
+                        // if we are writing the block to the backup, do that before we write the protection
+                        if (index < batch.blocks.size() && batch.blocks.get(index) != null) {
+                            restorables.add(batch.blocks.get(index));
+                        }
+
+                        // Now write the protection after the block if we are writing protections
+                        if (flags.contains(BackupManager.Flag.BACKUP_PROTECTIONS)) {
+                            RestorableProtection rprotection = RestorableProtection.wrapProtection(protection);
+
+                            if (rprotection != null) {
+                                restorables.add(rprotection);
+                            }
+                        }
+                    } catch (Exception e) {
+                        // one bad protection is left out instead of failing the backup
+                        System.out.println("[Backup] Skipped protection " + protection.getId() + ": " + e.getMessage());
+                    }
+                }
+
+                restorables.addAll(batch.extra);
+
+                return backup.createBlock(restorables);
+            }
+        };
+
+        try {
+            return compressors.submit(task);
+        } catch (RejectedExecutionException e) {
+            // the writer failed and shut the compressors down; nothing reads the block any more
+            failed = true;
+            FutureTask<BackupBlock> rejected = new FutureTask<BackupBlock>(task);
+            rejected.cancel(false);
+            return rejected;
+        }
+    }
+
+    /**
+     * Write the compressed blocks to the file in order. Runs on the writer thread
+     */
+    private void writeBlocks() {
+        try {
+            while (true) {
+                BackupBlock block = blocks.take().get();
+
+                if (block == null) {
+                    break;
+                }
+
+                backup.writeBlock(block);
+                inFlight.release();
+            }
+
+            // close the backup file
+            backup.close();
+
+            // the next incremental backup is made against this one
+            if (!failed && state != null) {
+                state.write(stateFile);
+            }
+
+            if (failed) {
+                System.out.println("Backup failed; the backup file is incomplete.");
+            } else {
+                System.out.println(String.format("Backup completed! %d protections in %.1fs", read, (System.currentTimeMillis() - started) / 1000D));
+            }
+        } catch (Exception e) {
+            System.out.println("Backup exception caught: " + e.getMessage());
+            failed = true;
+
+            // stop capturing blocks for batches that will not be written
+            if (captureTask != -1) {
+                lwc.getPlugin().getServer().getScheduler().cancelTask(captureTask);
+            }
+
+            // let the reader finish instead of waiting on a full pipeline forever
+            inFlight.release(Integer.MAX_VALUE / 2);
+        } finally {
+            compressors.shutdown();
+        }
+    }
+
+}
@@ -87,46 +87,58 @@ public class RestorableBlock implements Restorable {
 
         lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
             public void run() {
-                Server server = Bukkit.getServer();
+                apply();
+            }
+        });
+    }
 
-                // Get the world
-                World bworld = server.getWorld(world);
+    /**
+     * Write the block to the world. Must be called on the main thread.
+     *
+     * @return false if the world is not loaded
+     */
+    public boolean apply() {
+        Server server = Bukkit.getServer();
 
-                // Not found :-(
-                if (world == null) {
-                    return;
-                }
+        // Get the world
+        World bworld = server.getWorld(world);
 
-                // Get the block we want
-                Block block = bworld.getBlockAt(x, y, z);
+        // Not found :-(
+        if (bworld == null) {
+            return false;
+        }
 
-                // Begin screwing with shit :p
-                block.setTypeId(id);
-                block.setData((byte) data);
+        // Get the block we want
+        Block block = bworld.getBlockAt(x, y, z);
 
-                if (items.size() > 0) {
-                    if (!(block.getState() instanceof InventoryHolder)) {
-                        System.out.println(String.format("The block at [%d, %d, %d] has backed up items but no longer supports them. Why? %s", x, y, z, block.toString()));
-                    }
+        // Begin screwing with shit :p
+        block.setTypeId(id);
+        block.setData((byte) data);
 
-                    // Get the block's inventory
-                    Inventory inventory = ((InventoryHolder) block.getState()).getInventory();
+        if (items.size() > 0) {
+            if (!(block.getState() instanceof InventoryHolder)) {
+                System.out.println(String.format("The block at [%d, %d, %d] has backed up items but no longer supports them. Why? %s", x, y, z, block.toString()));
+                return true;
+            }
 
-                    // Set all of the items to it
-                    for (Map.Entry<Integer, ItemStack> entry : items.entrySet()) {
-                        int slot = entry.getKey();
-                        ItemStack stack = entry.getValue();
+            // Get the block's inventory
+            Inventory inventory = ((InventoryHolder) block.getState()).getInventory();
 
-                        if (stack == null) {
-                            continue;
-                        }
+            // Set all of the items to it
+            for (Map.Entry<Integer, ItemStack> entry : items.entrySet()) {
+                int slot = entry.getKey();
+                ItemStack stack = entry.getValue();
 
-                        // Add it to the inventory
-                        inventory.setItem(slot, stack);
-                    }
+                if (stack == null) {
+                    continue;
                 }
+
+                // Add it to the inventory
+                inventory.setItem(slot, stack);
             }
-        });
+        }
+
+        return true;
     }
 
     /**
@@ -162,7 +174,8 @@ public class RestorableBlock implements Restorable {
                     continue; // don't waste space!
                 }
 
-                rblock.setSlot(slot, stack);
+                // copied so the backup can be written off the main thread
+                rblock.setSlot(slot, stack.clone());
             }
         }
 
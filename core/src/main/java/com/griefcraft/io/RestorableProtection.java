@@ -30,9 +30,14 @@ package com.griefcraft.io;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 
+import java.sql.Connection;
+import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 
 public class RestorableProtection implements Restorable {
 
@@ -97,11 +102,52 @@ public class RestorableProtection implements Restorable {
 
     public void restore() {
         LWC lwc = LWC.getInstance();
-        Protection protection = lwc.getPhysicalDatabase().registerProtection(blockId, Protection.Type.values()[protectionType],
-                world, owner, data, x, y, z);
+
+        try {
+            // inserted in a transaction of its own, away from the shared connection
+            Connection connection = lwc.getPhysicalDatabase().openConnection();
+
+            try {
+                lwc.getPhysicalDatabase().registerProtections(connection, Collections.singletonList(toProtection()));
+            } finally {
+                connection.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
         // TODO fix the ID?
     }
 
+    /**
+     * Create the protection this restores, without an id
+     *
+     * @return
+     */
+    public Protection toProtection() {
+        Protection protection = new Protection();
+        protection.setType(Protection.Type.values()[protectionType]);
+        protection.setBlockId(blockId);
+        protection.setOwner(owner);
+        protection.setWorld(world);
+        protection.setX(x);
+        protection.setY(y);
+        protection.setZ(z);
+        protection.setCreation(new Timestamp(created * 1000L).toString());
+        protection.setLastAccessed(updated);
+
+        try {
+            Object root = new JSONParser().parse(data);
+
+            if (root instanceof JSONObject) {
+                protection.getData().putAll((JSONObject) root);
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to restore the data of protection #" + id + ": " + e.getMessage());
+        }
+
+        return protection;
+    }
+
     /**
      * Wrap a protection object around a RestorableProtection object
      *
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.jobs;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.util.ChunkOrder;
+import com.griefcraft.util.Colors;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Removes protections whose block no longer exists: /lwc admin cleanup
+ * <p/>
+ * Protections are read in windows of ids. Each window is sorted by world and chunk and verified on the main thread,
+ * one chunk at a time, and the protections that no longer exist are removed in batches. The checkpoint is the last
+ * id of the window and the amount removed so far.
+ */
+public class CleanupJob extends Job {
+
+    /**
+     * The job's type
+     */
+    public static final String TYPE = "cleanup";
+
+    /**
+     * Creates cleanup jobs when they are continued
+     */
+    public static final JobFactory FACTORY = new JobFactory() {
+        public Job create(JobRecord record) {
+            return new CleanupJob(record);
+        }
+    };
+
+    /**
+     * The amount of protections read and sorted by chunk at once
+     */
+    private static final int WINDOW_SIZE = 5000;
+
+    /**
+     * The amount of protections removed in each transaction
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * The last id that was verified
+     */
+    private int lastId = 0;
+
+    /**
+     * The amount of protections removed
+     */
+    private int removed = 0;
+
+    /**
+     * The last percentage that was reported
+     */
+    private int percentChecked = -1;
+
+    public CleanupJob(JobRecord record) {
+        super(record);
+
+        String[] checkpoint = record.getCheckpoint().split(",");
+
+        if (checkpoint.length == 2) {
+            lastId = Integer.parseInt(checkpoint[0]);
+            removed = Integer.parseInt(checkpoint[1]);
+        }
+    }
+
+    /**
+     * Create a cleanup job
+     *
+     * @param owner who started the job
+     * @param silent true to not report each protection that is removed
+     * @return
+     */
+    public static CleanupJob create(String owner, boolean silent) {
+        return new CleanupJob(new JobRecord(TYPE, silent ? "silent" : "", owner));
+    }
+
+    @Override
+    protected void prepare() {
+        if (record.getTotal() == 0) {
+            record.setTotal(getLWC().getPhysicalDatabase().getProtectionCount());
+        }
+    }
+
+    @Override
+    protected boolean step() throws Exception {
+        final LWC lwc = getLWC();
+        PhysDB database = lwc.getPhysicalDatabase();
+        final List<Protection> window = database.loadProtectionsAfter(getManager().getConnection(), lastId, WINDOW_SIZE, null);
+
+        if (window.isEmpty()) {
+            return false;
+        }
+
+        int windowLastId = window.get(window.size() - 1).getId();
+        Collections.sort(window, ChunkOrder.PROTECTIONS);
+
+        final boolean silent = record.getArguments().equals("silent");
+        final List<Protection> missing = new ArrayList<Protection>();
+
+        getManager().runSync(new JobManager.TickTask() {
+            private int next = 0;
+            private World world = null;
+            private int chunkX;
+            private int chunkZ;
+            private boolean wasLoaded = true;
+
+            public boolean tick(long deadline) {
+                // verify up to the deadline, checking the time every few protections
+                while (next < window.size()) {
+                    Protection protection = window.get(next++);
+                    World protectionWorld = protection.getBukkitWorld();
+
+                    if (protectionWorld != world || protection.getX() >> 4 != chunkX || protection.getZ() >> 4 != chunkZ) {
+                        leaveChunk();
+                        world = protectionWorld;
+                        chunkX = protection.getX() >> 4;
+                        chunkZ = protection.getZ() >> 4;
+                        wasLoaded = world == null || world.isChunkLoaded(chunkX, chunkZ);
+                    }
+
+                    Block block = protection.getBlock();
+
+                    // remove protections not found in the world
+                    if (block == null || !lwc.isProtectable(block)) {
+                        missing.add(protection);
+
+                        if (!silent) {
+                            lwc.sendLocale(getTarget(), "protection.admin.cleanup.removednoexist", "protection", protection.toString());
+                        }
+                    }
+
+                    if ((next & 15) == 0 && System.nanoTime() >= deadline) {
+                        return false;
+                    }
+                }
+
+                leaveChunk();
+                return true;
+            }
+
+            /**
+             * Unload the chunk that was only loaded to be verified
+             */
+            private void leaveChunk() {
+                if (world != null && !wasLoaded) {
+                    world.unloadChunkRequest(chunkX, chunkZ);
+                }
+
+                world = null;
+            }
+        });
+
+        for (int index = 0; index < missing.size(); index += DELETE_BATCH_SIZE) {
+            List<Protection> batch = missing.subList(index, Math.min(missing.size(), index + DELETE_BATCH_SIZE));
+            getManager().throttleWrites(batch.size());
+            removed += database.removeProtections(getManager().getConnection(), batch);
+        }
+
+        lastId = windowLastId;
+        record.setCheckpoint(lastId + "," + removed);
+        addProcessed(window.size());
+
+        // percentage dump
+        if (record.getTotal() > 0) {
+            int percent = (int) (record.getProcessed() * 100 / record.getTotal());
+
+            if (percent / 5 != percentChecked / 5) {
+                percentChecked = percent;
+                sendMessage(Colors.Red + "Cleanup @ " + percent + "% [ " + record.getProcessed() + "/" + record.getTotal() + " protections ] [ removed " + removed + " protections ] [ " + getRate() + " protections/s ]");
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void complete() {
+        record.setMessage("Removed " + removed + " protections");
+        sendMessage("Cleanup completed. Removed " + removed + " protections out of " + record.getProcessed() + " checked protections.");
+    }
+
+}
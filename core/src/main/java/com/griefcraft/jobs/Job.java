@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.jobs;
+
+import com.griefcraft.lwc.LWC;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * A long running admin task that works in small steps on the job thread. Where it is after each step is kept in
+ * its {@link JobRecord} so it can be paused, resumed and continued after a restart. Steps may be repeated after a
+ * restart, so they must be safe to run twice.
+ */
+public abstract class Job {
+
+    /**
+     * The job's persistent state
+     */
+    protected final JobRecord record;
+
+    /**
+     * The manager running the job
+     */
+    private JobManager manager;
+
+    /**
+     * Who started the job, if they are still around
+     */
+    private CommandSender sender;
+
+    /**
+     * If {@link #prepare()} was called since the job was loaded
+     */
+    private boolean prepared = false;
+
+    /**
+     * When the job was last stepped after being loaded and how much was processed then, used for its rate
+     */
+    private long startedAt = -1;
+    private long startedProcessed;
+
+    protected Job(JobRecord record) {
+        this.record = record;
+    }
+
+    /**
+     * Called on the job thread before the first step each time the job is loaded, e.g to count the work
+     */
+    protected void prepare() throws Exception {
+    }
+
+    /**
+     * Do one small unit of work starting at the checkpoint, then move the checkpoint past it
+     *
+     * @return false once there is nothing left to do
+     */
+    protected abstract boolean step() throws Exception;
+
+    /**
+     * Called on the job thread once the job has completed
+     */
+    protected void complete() throws Exception {
+    }
+
+    /**
+     * @return a short description of the job for /lwc admin jobs
+     */
+    public String describe() {
+        return record.getType() + (record.getArguments().isEmpty() ? "" : " " + record.getArguments());
+    }
+
+    /**
+     * Send a message to whoever started the job, or the console if they are gone
+     *
+     * @param message
+     */
+    public void sendMessage(String message) {
+        getTarget().sendMessage("[Job #" + record.getId() + "] " + message);
+    }
+
+    /**
+     * @return whoever started the job, or the console if they are gone
+     */
+    protected CommandSender getTarget() {
+        CommandSender target = sender;
+
+        if (target == null || (target instanceof Player && !((Player) target).isOnline())) {
+            Player player = Bukkit.getServer().getPlayerExact(record.getOwner());
+            target = player != null ? player : Bukkit.getServer().getConsoleSender();
+        }
+
+        return target;
+    }
+
+    /**
+     * Add to the amount of processed items
+     *
+     * @param amount
+     */
+    protected void addProcessed(long amount) {
+        record.setProcessed(record.getProcessed() + amount);
+    }
+
+    /**
+     * @return the amount of items processed each second since the job was loaded
+     */
+    public long getRate() {
+        if (startedAt == -1) {
+            return 0;
+        }
+
+        long elapsed = System.currentTimeMillis() - startedAt;
+        long processed = record.getProcessed() - startedProcessed;
+        return elapsed <= 0 ? 0 : processed * 1000L / elapsed;
+    }
+
+    /**
+     * Prepare the job if it was not yet since it was loaded. Called by the manager
+     */
+    void ensurePrepared() throws Exception {
+        if (!prepared) {
+            prepare();
+            prepared = true;
+            startedAt = System.currentTimeMillis();
+            startedProcessed = record.getProcessed();
+        }
+    }
+
+    public JobRecord getRecord() {
+        return record;
+    }
+
+    public int getId() {
+        return record.getId();
+    }
+
+    public JobRecord.Status getStatus() {
+        return record.getStatus();
+    }
+
+    protected JobManager getManager() {
+        return manager;
+    }
+
+    protected LWC getLWC() {
+        return LWC.getInstance();
+    }
+
+    void setManager(JobManager manager) {
+        this.manager = manager;
+    }
+
+    void setSender(CommandSender sender) {
+        this.sender = sender;
+    }
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.jobs;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.util.TimeUtil;
+import com.griefcraft.util.config.Configuration;
+import org.bukkit.command.CommandSender;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs long running admin jobs one step at a time on a job thread. Jobs that need the world hand work to the main
+ * thread, which is given a time budget each tick, and jobs that write to the database are held to a write rate.
+ * Each job's state is saved to the jobs table every few seconds so unfinished jobs continue where they left off
+ * after a restart.
+ */
+public class JobManager {
+
+    /**
+     * How long (in milliseconds) the job thread waits when there is nothing to do
+     */
+    private static final long IDLE_WAIT = 1000L;
+
+    /**
+     * How long (in milliseconds) to wait for the current step to finish when stopping
+     */
+    private static final long STOP_WAIT = 10000L;
+
+    /**
+     * Work a job does on the main thread. It is called each tick until it returns true
+     */
+    public interface TickTask {
+
+        /**
+         * Do work until the deadline
+         *
+         * @param deadline the {@link System#nanoTime()} to stop at
+         * @return true once the work is done
+         */
+        public boolean tick(long deadline);
+
+    }
+
+    /**
+     * A tick task waiting to be run on the main thread
+     */
+    private static class SyncWork {
+
+        private final TickTask task;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private RuntimeException error;
+
+        private SyncWork(TickTask task) {
+            this.task = task;
+        }
+
+    }
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * The factories for each type of job
+     */
+    private final Map<String, JobFactory> factories = new HashMap<String, JobFactory>();
+
+    /**
+     * The jobs loaded or started since the server started
+     */
+    private final List<Job> jobs = new CopyOnWriteArrayList<Job>();
+
+    /**
+     * Work waiting to be run on the main thread
+     */
+    private final Queue<SyncWork> syncWork = new ConcurrentLinkedQueue<SyncWork>();
+
+    /**
+     * Guards the job thread's waits and the write rate
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The job thread
+     */
+    private Thread thread;
+
+    /**
+     * The job thread's own connection, so the transactions jobs run are not shared with other threads
+     */
+    private Connection connection;
+
+    /**
+     * If the job thread should keep running
+     */
+    private volatile boolean running = false;
+
+    /**
+     * The id of the main thread task
+     */
+    private int syncTask = -1;
+
+    /**
+     * The next job to step, so running jobs take turns
+     */
+    private int next = 0;
+
+    /**
+     * How long (in milliseconds) jobs may use the main thread each tick
+     */
+    private long tickBudget = 10L;
+
+    /**
+     * The most rows jobs may write each second, or 0 for no limit
+     */
+    private int writesPerSecond = 2000;
+
+    /**
+     * How often (in milliseconds) a running job is saved
+     */
+    private long checkpointInterval = 5000L;
+
+    /**
+     * The writes jobs may do before they have to wait, refilled at the write rate
+     */
+    private double writeAllowance = 0;
+
+    /**
+     * When the write allowance was last refilled
+     */
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * When each job was last saved
+     */
+    private final Map<Job, Long> lastSaved = new HashMap<Job, Long>();
+
+    public JobManager(LWC lwc) {
+        this.lwc = lwc;
+
+        registerType(CleanupJob.TYPE, CleanupJob.FACTORY);
+        registerType(RemoveProtectionsJob.EXPIRE, RemoveProtectionsJob.FACTORY);
+        registerType(RemoveProtectionsJob.PURGE, RemoveProtectionsJob.FACTORY);
+        registerType(RemoveProtectionsJob.PURGE_BANNED, RemoveProtectionsJob.FACTORY);
+        registerType(RemoveProtectionsJob.QUERY, RemoveProtectionsJob.FACTORY);
+    }
+
+    /**
+     * Register a type of job so it can continue after a restart
+     *
+     * @param type
+     * @param factory
+     */
+    public void registerType(String type, JobFactory factory) {
+        factories.put(type, factory);
+    }
+
+    /**
+     * Load the unfinished jobs and start running them
+     */
+    public void start() {
+        Configuration configuration = lwc.getConfiguration();
+        tickBudget = Math.max(1, configuration.getInt("jobs.tickBudget", 10));
+        writesPerSecond = Math.max(0, configuration.getInt("jobs.writesPerSecond", 2000));
+        checkpointInterval = Math.max(1, configuration.getInt("jobs.checkpointInterval", 5)) * 1000L;
+        long keepFinished = TimeUtil.parseTime(configuration.getString("jobs.keepFinished", "7 days"));
+
+        PhysDB database = lwc.getPhysicalDatabase();
+
+        if (keepFinished > 0) {
+            database.removeFinishedJobs(System.currentTimeMillis() - keepFinished * 1000L);
+        }
+
+        for (JobRecord record : database.loadJobs()) {
+            JobFactory factory = factories.get(record.getType());
+
+            if (factory == null) {
+                if (!record.getStatus().isFinished()) {
+                    lwc.log("Unknown job type " + record.getType() + " for job #" + record.getId() + "; it will not be continued");
+                }
+
+                continue;
+            }
+
+            Job job = factory.create(record);
+            job.setManager(this);
+            jobs.add(job);
+
+            if (record.getStatus() == JobRecord.Status.RUNNING) {
+                lwc.log("Continuing job #" + record.getId() + ": " + job.describe());
+            }
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runJobs();
+            }
+        }, "LWC Jobs");
+        thread.setDaemon(true);
+        thread.start();
+
+        syncTask = lwc.getPlugin().getServer().getScheduler().scheduleSyncRepeatingTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                runSyncWork();
+            }
+        }, 1L, 1L);
+    }
+
+    /**
+     * Stop running jobs. Running jobs are saved where they are and continue when LWC is next started
+     */
+    public void stop() {
+        running = false;
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        if (syncTask != -1) {
+            lwc.getPlugin().getServer().getScheduler().cancelTask(syncTask);
+            syncTask = -1;
+        }
+
+        if (thread != null) {
+            try {
+                thread.join(STOP_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            thread = null;
+        }
+
+        for (Job job : jobs) {
+            if (!job.getStatus().isFinished()) {
+                save(job);
+            }
+        }
+    }
+
+    /**
+     * Start a job
+     *
+     * @param job
+     * @param sender who started it
+     * @return the job
+     */
+    public Job submit(Job job, CommandSender sender) {
+        job.setManager(this);
+        job.setSender(sender);
+        save(job);
+        jobs.add(job);
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        return job;
+    }
+
+    /**
+     * @return the jobs loaded or started since the server started, oldest first
+     */
+    public List<Job> getJobs() {
+        return new ArrayList<Job>(jobs);
+    }
+
+    /**
+     * Get a job by its id
+     *
+     * @param id
+     * @return the job, or null if it is not known
+     */
+    public Job getJob(int id) {
+        for (Job job : jobs) {
+            if (job.getId() == id) {
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Pause a job
+     *
+     * @param job
+     * @return false if the job is not running
+     */
+    public boolean pause(Job job) {
+        return changeStatus(job, JobRecord.Status.PAUSED);
+    }
+
+    /**
+     * Resume a paused job
+     *
+     * @param job
+     * @return false if the job is not paused
+     */
+    public boolean resume(Job job) {
+        if (job.getStatus() != JobRecord.Status.PAUSED) {
+            return false;
+        }
+
+        return changeStatus(job, JobRecord.Status.RUNNING);
+    }
+
+    /**
+     * Cancel a job. What it did so far is kept
+     *
+     * @param job
+     * @return false if the job already finished
+     */
+    public boolean cancel(Job job) {
+        return changeStatus(job, JobRecord.Status.CANCELLED);
+    }
+
+    /**
+     * Run work on the main thread within the per-tick budget, waiting until it is done. Called from a job's step
+     *
+     * @param task
+     */
+    public void runSync(TickTask task) throws InterruptedException {
+        SyncWork work = new SyncWork(task);
+        syncWork.offer(work);
+
+        while (!work.done.await(1, TimeUnit.SECONDS)) {
+            if (!running) {
+                syncWork.remove(work);
+                throw new InterruptedException("LWC is stopping");
+            }
+        }
+
+        if (work.error != null) {
+            throw work.error;
+        }
+    }
+
+    /**
+     * Wait until the write rate allows the given amount of rows to be written. Called from a job's step before it
+     * writes to the database
+     *
+     * @param writes
+     */
+    public void throttleWrites(int writes) throws InterruptedException {
+        if (writesPerSecond <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            refillWrites();
+            writeAllowance -= writes;
+
+            // a batch larger than a second's worth is allowed, but the next one waits for it to be paid back
+            while (writeAllowance < 0) {
+                if (!running) {
+                    throw new InterruptedException("LWC is stopping");
+                }
+
+                long wait = (long) Math.ceil(-writeAllowance * 1000D / writesPerSecond);
+                lock.wait(Math.max(1, Math.min(wait, IDLE_WAIT)));
+                refillWrites();
+            }
+        }
+    }
+
+    /**
+     * Refill the write allowance for the time since it was last refilled, up to one second's worth
+     */
+    private void refillWrites() {
+        long now = System.nanoTime();
+        writeAllowance = Math.min(writesPerSecond, writeAllowance + (now - lastRefill) / 1000000000D * writesPerSecond);
+        lastRefill = now;
+    }
+
+    /**
+     * Change a job's status and save it
+     *
+     * @param job
+     * @param status
+     * @return false if the job already finished, or is already in that status
+     */
+    private boolean changeStatus(Job job, JobRecord.Status status) {
+        synchronized (job) {
+            if (job.getStatus().isFinished() || job.getStatus() == status) {
+                return false;
+            }
+
+            job.getRecord().setStatus(status);
+        }
+
+        save(job);
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Save a job's state
+     *
+     * @param job
+     */
+    private void save(Job job) {
+        PhysDB database = lwc.getPhysicalDatabase();
+        Connection connection = database.getConnection();
+
+        // the job thread saves with its own connection
+        if (Thread.currentThread() == thread) {
+            try {
+                connection = getConnection();
+            } catch (Exception e) {
+                lwc.log("Failed to save job #" + job.getId() + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        database.saveJob(connection, job.getRecord());
+
+        synchronized (lastSaved) {
+            lastSaved.put(job, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Find the next job to step
+     *
+     * @return the job, or null if no job is running
+     */
+    private Job nextJob() {
+        List<Job> snapshot = getJobs();
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            Job job = snapshot.get((next + i) % snapshot.size());
+            JobRecord.Status status = job.getStatus();
+
+            if (status == JobRecord.Status.QUEUED || status == JobRecord.Status.RUNNING) {
+                next = (next + i + 1) % snapshot.size();
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the job thread's database connection, opening it if needed. Jobs write with it instead of the shared
+     * connection. Must only be called from the job thread
+     *
+     * @return the connection
+     * @throws Exception if the connection could not be opened
+     */
+    public Connection getConnection() throws Exception {
+        if (connection == null || connection.isClosed()) {
+            connection = lwc.getPhysicalDatabase().openConnection();
+        }
+
+        return connection;
+    }
+
+    /**
+     * Step the running jobs in turn. Runs on the job thread
+     */
+    private void runJobs() {
+        try {
+            stepJobs();
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                }
+
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * Step the running jobs in turn until the job thread is stopped
+     */
+    private void stepJobs() {
+        while (running) {
+            Job job = nextJob();
+
+            if (job == null) {
+                synchronized (lock) {
+                    try {
+                        lock.wait(IDLE_WAIT);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                continue;
+            }
+
+            try {
+                if (job.getStatus() == JobRecord.Status.QUEUED) {
+                    changeStatus(job, JobRecord.Status.RUNNING);
+                    job.sendMessage("Started: " + job.describe());
+                }
+
+                job.ensurePrepared();
+                boolean more = job.step();
+
+                if (!more) {
+                    synchronized (job) {
+                        if (job.getStatus().isFinished()) {
+                            continue;
+                        }
+
+                        job.getRecord().setStatus(JobRecord.Status.COMPLETED);
+                    }
+
+                    job.complete();
+                    save(job);
+                    job.sendMessage("Completed: " + job.describe() + " (" + job.getRecord().getProcessed() + " processed)");
+                    continue;
+                }
+
+                long saved;
+
+                synchronized (lastSaved) {
+                    Long time = lastSaved.get(job);
+                    saved = time == null ? 0 : time;
+                }
+
+                if (System.currentTimeMillis() - saved >= checkpointInterval) {
+                    save(job);
+                }
+            } catch (InterruptedException e) {
+                // LWC is stopping; the job is saved where it is
+                return;
+            } catch (Exception e) {
+                job.getRecord().setStatus(JobRecord.Status.FAILED);
+                job.getRecord().setMessage(e.toString());
+                save(job);
+                job.sendMessage("Failed: " + job.describe() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run waiting main thread work until this tick's budget is used. Runs on the main thread
+     */
+    private void runSyncWork() {
+        long deadline = System.nanoTime() + tickBudget * 1000000L;
+        SyncWork work;
+
+        while ((work = syncWork.peek()) != null && System.nanoTime() < deadline) {
+            try {
+                if (!work.task.tick(deadline)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                work.error = e;
+            }
+
+            syncWork.poll();
+            work.done.countDown();
+        }
+    }
+
+}
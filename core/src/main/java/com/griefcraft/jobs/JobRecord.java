@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.jobs;
+
+/**
+ * The state of a job that is kept in the database, so the job can continue after a restart
+ */
+public class JobRecord {
+
+    public enum Status {
+
+        /**
+         * Waiting for its first step
+         */
+        QUEUED,
+
+        /**
+         * Being worked on
+         */
+        RUNNING,
+
+        /**
+         * Paused by an admin
+         */
+        PAUSED,
+
+        /**
+         * Done
+         */
+        COMPLETED,
+
+        /**
+         * Stopped by an admin
+         */
+        CANCELLED,
+
+        /**
+         * Stopped by an error
+         */
+        FAILED;
+
+        /**
+         * @return true if the job will not run again
+         */
+        public boolean isFinished() {
+            return this == COMPLETED || this == CANCELLED || this == FAILED;
+        }
+
+    }
+
+    /**
+     * The job's id in the database, or 0 if it has not been saved yet
+     */
+    private int id;
+
+    /**
+     * The type of job, which decides how it is created again after a restart
+     */
+    private final String type;
+
+    /**
+     * What the job was started with
+     */
+    private final String arguments;
+
+    /**
+     * The name of who started the job
+     */
+    private final String owner;
+
+    /**
+     * The job's status
+     */
+    private volatile Status status = Status.QUEUED;
+
+    /**
+     * Where the job continues from. The format is up to the job
+     */
+    private volatile String checkpoint = "";
+
+    /**
+     * The amount of items processed and the expected total, or 0 if it is not known
+     */
+    private volatile long processed;
+    private volatile long total;
+
+    /**
+     * A short note about the job's result, e.g the error that stopped it
+     */
+    private volatile String message = "";
+
+    /**
+     * When the job was created and last saved, in milliseconds since the epoch
+     */
+    private long created = System.currentTimeMillis();
+    private long updated = created;
+
+    public JobRecord(String type, String arguments, String owner) {
+        this.type = type;
+        this.arguments = arguments == null ? "" : arguments;
+        this.owner = owner;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getArguments() {
+        return arguments;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint == null ? "" : checkpoint;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(long processed) {
+        this.processed = processed;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        if (message == null) {
+            message = "";
+        }
+
+        this.message = message.length() > 255 ? message.substring(0, 255) : message;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.jobs;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Flag;
+import com.griefcraft.model.Protection;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.util.Colors;
+import org.bukkit.block.Block;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Removes every protection matching a condition: /lwc admin expire, /lwc admin purge, /lwc admin purgebanned and
+ * /lwc admin deleteprotections
+ * <p/>
+ * The matching protections are read in id order, one batch at a time, and their blocks are optionally removed on the
+ * main thread. The checkpoint is the last id that was read and the amount removed so far, followed by the name of
+ * the player being purged when purging banned players.
+ */
+public class RemoveProtectionsJob extends Job {
+
+    /**
+     * Removes protections not accessed since a timestamp; the arguments are "threshold [remove]"
+     */
+    public static final String EXPIRE = "expire";
+
+    /**
+     * Removes the protections of a player; the arguments are "player [remove]"
+     */
+    public static final String PURGE = "purge";
+
+    /**
+     * Removes the protections of every player in banned-players.txt, one player after another in alphabetical order
+     * so the job can continue from a player's name even if the list changed; the arguments are
+     * "[remove]"
+     */
+    public static final String PURGE_BANNED = "purgebanned";
+
+    /**
+     * Removes the protections matching a raw condition, including exempt ones; the arguments are the condition
+     */
+    public static final String QUERY = "deleteprotections";
+
+    /**
+     * Creates removal jobs when they are continued
+     */
+    public static final JobFactory FACTORY = new JobFactory() {
+        public Job create(JobRecord record) {
+            return new RemoveProtectionsJob(record);
+        }
+    };
+
+    /**
+     * The amount of protections removed in each step
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * The condition the protections must match
+     */
+    private final String condition;
+
+    /**
+     * The condition's parameters
+     */
+    private Object[] parameters;
+
+    /**
+     * If the protected blocks should be removed from the world
+     */
+    private final boolean removeBlocks;
+
+    /**
+     * The last id that was read
+     */
+    private int lastId = 0;
+
+    /**
+     * The amount of protections removed
+     */
+    private int removed = 0;
+
+    /**
+     * The banned players to purge, loaded when the job is prepared
+     */
+    private List<String> players = null;
+
+    /**
+     * The index of the banned player being purged
+     */
+    private int playerIndex = 0;
+
+    /**
+     * The banned player that was being purged when the job was saved, or null
+     */
+    private String resumePlayer = null;
+
+    public RemoveProtectionsJob(JobRecord record) {
+        super(record);
+
+        String[] arguments = record.getArguments().split(" ");
+        String[] checkpoint = record.getCheckpoint().split(",");
+
+        if (record.getType().equals(PURGE_BANNED)) {
+            removeBlocks = arguments[0].equals("remove");
+            condition = "Lower(owner) = Lower(?)";
+            parameters = null;
+            checkpoint = record.getCheckpoint().split(",", 3);
+
+            if (checkpoint.length == 3) {
+                lastId = Integer.parseInt(checkpoint[0]);
+                removed = Integer.parseInt(checkpoint[1]);
+                resumePlayer = checkpoint[2];
+            }
+
+            return;
+        }
+
+        if (record.getType().equals(QUERY)) {
+            removeBlocks = false;
+            condition = record.getArguments();
+            parameters = new Object[0];
+        } else {
+            removeBlocks = arguments.length > 1 && arguments[1].equals("remove");
+
+            if (record.getType().equals(EXPIRE)) {
+                condition = "last_accessed <= ? AND last_accessed >= 0";
+                parameters = new Object[] { Integer.parseInt(arguments[0]) };
+            } else {
+                condition = "Lower(owner) = Lower(?)";
+                parameters = new Object[] { arguments[0] };
+            }
+        }
+
+        if (checkpoint.length == 2) {
+            lastId = Integer.parseInt(checkpoint[0]);
+            removed = Integer.parseInt(checkpoint[1]);
+        }
+    }
+
+    /**
+     * Create a job removing the protections not accessed since a timestamp
+     *
+     * @param owner who started the job
+     * @param threshold the last access time, in seconds
+     * @param removeBlocks
+     * @return
+     */
+    public static RemoveProtectionsJob expire(String owner, int threshold, boolean removeBlocks) {
+        return new RemoveProtectionsJob(new JobRecord(EXPIRE, threshold + (removeBlocks ? " remove" : ""), owner));
+    }
+
+    /**
+     * Create a job removing the protections of a player
+     *
+     * @param owner who started the job
+     * @param player
+     * @param removeBlocks
+     * @return
+     */
+    public static RemoveProtectionsJob purge(String owner, String player, boolean removeBlocks) {
+        return new RemoveProtectionsJob(new JobRecord(PURGE, player + (removeBlocks ? " remove" : ""), owner));
+    }
+
+    /**
+     * Create a job removing the protections matching a raw condition
+     *
+     * @param owner who started the job
+     * @param condition the WHERE clause, without the WHERE
+     * @return
+     */
+    public static RemoveProtectionsJob query(String owner, String condition) {
+        return new RemoveProtectionsJob(new JobRecord(QUERY, condition, owner));
+    }
+
+    /**
+     * Create a job removing the protections of every banned player
+     *
+     * @param owner who started the job
+     * @param removeBlocks
+     * @return
+     */
+    public static RemoveProtectionsJob purgeBanned(String owner, boolean removeBlocks) {
+        return new RemoveProtectionsJob(new JobRecord(PURGE_BANNED, removeBlocks ? "remove" : "", owner));
+    }
+
+    @Override
+    protected void prepare() {
+        // flush all changes to the database before working on the live database
+        getLWC().getDatabaseThread().flush();
+
+        if (record.getType().equals(PURGE_BANNED)) {
+            players = loadBannedPlayers();
+            Collections.sort(players, String.CASE_INSENSITIVE_ORDER);
+
+            // continue with the player that was being purged, or the next one if they are no longer banned
+            if (resumePlayer != null && resumePlayer.isEmpty()) {
+                // every player was purged
+                playerIndex = players.size();
+            } else if (resumePlayer != null) {
+                while (playerIndex < players.size() && players.get(playerIndex).compareToIgnoreCase(resumePlayer) < 0) {
+                    playerIndex++;
+                }
+
+                if (playerIndex >= players.size() || !players.get(playerIndex).equalsIgnoreCase(resumePlayer)) {
+                    lastId = 0;
+                }
+            }
+
+            resumePlayer = null;
+        }
+    }
+
+    @Override
+    protected boolean step() throws Exception {
+        final LWC lwc = getLWC();
+        PhysDB database = lwc.getPhysicalDatabase();
+
+        if (players != null) {
+            if (playerIndex >= players.size()) {
+                return false;
+            }
+
+            parameters = new Object[] { players.get(playerIndex) };
+        }
+
+        List<Protection> batch = database.loadProtectionsAfter(getManager().getConnection(), lastId, BATCH_SIZE, condition, parameters);
+
+        if (batch.isEmpty()) {
+            if (players == null) {
+                return false;
+            }
+
+            // this player is done, move on to the next one
+            finishPurge(players.get(playerIndex));
+            playerIndex++;
+            lastId = 0;
+            record.setCheckpoint(getCheckpoint());
+            return true;
+        }
+
+        List<Integer> exemptedBlocks = lwc.getConfiguration().getIntList("optional.exemptBlocks", new ArrayList<Integer>());
+        final List<Protection> toRemove = new ArrayList<Protection>(batch.size());
+
+        for (Protection protection : batch) {
+            // a raw condition removes exactly what it matches
+            if (record.getType().equals(QUERY)) {
+                toRemove.add(protection);
+                continue;
+            }
+
+            // check if the protection is exempt from being removed
+            if (protection.hasFlag(Flag.Type.EXEMPTION) || exemptedBlocks.contains(protection.getBlockId())) {
+                continue;
+            }
+
+            if (protection.getBukkitWorld() == null) {
+                continue;
+            }
+
+            toRemove.add(protection);
+        }
+
+        if (removeBlocks && !toRemove.isEmpty()) {
+            getManager().runSync(new JobManager.TickTask() {
+                private int next = 0;
+
+                public boolean tick(long deadline) {
+                    while (next < toRemove.size() && System.nanoTime() < deadline) {
+                        Block block = toRemove.get(next++).getBlock();
+                        lwc.removeBlock(block);
+                    }
+
+                    return next >= toRemove.size();
+                }
+            });
+        }
+
+        getManager().throttleWrites(toRemove.size());
+        removed += database.removeProtections(getManager().getConnection(), toRemove);
+
+        lastId = batch.get(batch.size() - 1).getId();
+        record.setCheckpoint(getCheckpoint());
+        addProcessed(batch.size());
+
+        if (batch.size() == BATCH_SIZE) {
+            sendMessage(Colors.Red + "Removed " + removed + " protections [ " + getRate() + " protections/s ]");
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void complete() throws Exception {
+        LWC lwc = getLWC();
+        record.setMessage("Removed " + removed + " protections");
+
+        if (record.getType().equals(PURGE)) {
+            finishPurge(record.getArguments().split(" ")[0]);
+        } else if (record.getType().equals(EXPIRE)) {
+            lwc.sendLocale(getTarget(), "protection.admin.expire.removed", "count", removed);
+        } else if (record.getType().equals(QUERY)) {
+            getTarget().sendMessage(Colors.Green + "Affected rows: " + removed);
+        }
+    }
+
+    /**
+     * @return the checkpoint for the current position
+     */
+    private String getCheckpoint() {
+        if (players != null) {
+            String player = playerIndex < players.size() ? players.get(playerIndex) : "";
+            return lastId + "," + removed + "," + player;
+        }
+
+        return lastId + "," + removed;
+    }
+
+    /**
+     * Finish purging a player once all of their protections are removed
+     *
+     * @param player
+     */
+    private void finishPurge(String player) throws Exception {
+        LWC lwc = getLWC();
+
+        // invalid any history objects associated with the player
+        lwc.getPhysicalDatabase().invalidateHistory(getManager().getConnection(), player);
+        lwc.sendLocale(getTarget(), "protection.admin.purge.finalize", "player", player);
+    }
+
+    /**
+     * Load the list of currently banned players
+     *
+     * @return
+     */
+    private static List<String> loadBannedPlayers() {
+        List<String> banned = new ArrayList<String>();
+
+        File file = new File("banned-players.txt");
+
+        if (!file.exists()) {
+            return banned;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+            String line;
+
+            try {
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        banned.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return banned;
+    }
+
+}
@@ -32,11 +32,12 @@ import com.griefcraft.cache.ProtectionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCPlugin;
 import com.griefcraft.model.Protection;
+import com.griefcraft.scripting.ModuleLoader;
 import com.griefcraft.scripting.event.LWCProtectionDestroyEvent;
 import com.griefcraft.scripting.event.LWCProtectionRegisterEvent;
 import com.griefcraft.scripting.event.LWCProtectionRegistrationPostEvent;
 import com.griefcraft.scripting.event.LWCRedstoneEvent;
-import com.griefcraft.util.Colors;
+import com.griefcraft.util.config.ProtectionPolicy;
 import com.griefcraft.util.matchers.DoubleChestMatcher;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
@@ -64,6 +65,11 @@ import java.util.Set;
 
 public class LWCBlockListener implements Listener {
 
+    /**
+     * The 6 faces around a block
+     */
+    private static final BlockFace[] ALL_FACES = new BlockFace[]{BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN};
+
     /**
      * The plugin instance
      */
@@ -92,6 +98,15 @@ public class LWCBlockListener implements Listener {
             return;
         }
 
+        // nothing to look up if no protection is close enough to match the block
+        if (!lwc.getProtectionCache().getProtectedChunks().mayBeProtected(block.getWorld().getName(), block.getX(), block.getZ())) {
+            return;
+        }
+
+        if (!lwc.getModuleLoader().hasListeners(ModuleLoader.Event.REDSTONE)) {
+            return;
+        }
+
         Protection protection = lwc.findProtection(block.getLocation());
 
         if (protection == null) {
@@ -114,21 +129,19 @@ public class LWCBlockListener implements Listener {
 
         LWC lwc = LWC.getInstance();
         // the blocks that were changed / replaced
-        List<BlockState> blocks = event.getBlocks();
-
-        for (BlockState block : blocks) {
-            if (!lwc.isProtectable(block.getBlock())) {
-                continue;
-            }
+        List<Block> blocks = new ArrayList<Block>();
 
-            // we don't have the block id of the block before it
-            // so we have to do some raw lookups (these are usually cache hits however, at least!)
-            Protection protection = lwc.getPhysicalDatabase().loadProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        for (BlockState state : event.getBlocks()) {
+            Block block = state.getBlock();
 
-            if (protection != null) {
-                event.setCancelled(true);
+            if (lwc.isProtectable(block)) {
+                blocks.add(block);
             }
         }
+
+        if (!blocks.isEmpty() && !lwc.findProtections(blocks).isEmpty()) {
+            event.setCancelled(true);
+        }
     }
 
     @EventHandler
@@ -168,9 +181,9 @@ public class LWCBlockListener implements Listener {
         Player player = event.getPlayer();
         Block block = event.getBlock();
 
-        boolean ignoreBlockDestruction = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "ignoreBlockDestruction"));
+        lwc.getHopperTransferCache().invalidateBlock(block);
 
-        if (ignoreBlockDestruction) {
+        if (lwc.getProtectionPolicy(block).isIgnoreBlockDestruction()) {
             return;
         }
 
@@ -212,7 +225,7 @@ public class LWCBlockListener implements Listener {
                 protection.radiusRemoveCache();
 
                 if (protection.getProtectionFinder() != null) {
-                    protection.getProtectionFinder().removeBlock(block.getState());
+                    protection.getProtectionFinder().removeBlock(block);
                 }
 
                 lwc.getProtectionCache().addProtection(protection);
@@ -259,17 +272,15 @@ public class LWCBlockListener implements Listener {
         // the block that the piston moved
         Block moved = piston.getRelative(direction, 2);
 
+        List<Block> blocks = new ArrayList<Block>(2);
+        blocks.add(moved);
+
         // TODO remove this when spout fixes their shit
         if (moved.getType() == Material.WOODEN_DOOR || moved.getType() == Material.IRON_DOOR_BLOCK) {
-            Block below = moved.getRelative(BlockFace.DOWN).getRelative(direction.getOppositeFace());
-
-            if (lwc.findProtection(below.getLocation()) != null) {
-                event.setCancelled(true);
-                return;
-            }
+            blocks.add(moved.getRelative(BlockFace.DOWN).getRelative(direction.getOppositeFace()));
         }
 
-        if (lwc.findProtection(moved.getLocation()) != null) {
+        if (!lwc.findProtections(blocks).isEmpty()) {
             event.setCancelled(true);
         }
     }
@@ -289,14 +300,6 @@ public class LWCBlockListener implements Listener {
         // Check the block it pushed directly
         if (data instanceof PistonBaseMaterial) {
             direction = ((PistonBaseMaterial) data).getFacing();
-            Block block = event.getBlock().getRelative(direction);
-
-            Protection protection = lwc.findProtection(block.getLocation());
-
-            if (protection != null) {
-                event.setCancelled(true);
-                return;
-            }
         }
 
         // if no direction was found, no point in going on
@@ -304,20 +307,23 @@ public class LWCBlockListener implements Listener {
             return;
         }
 
-        // Check the affected blocks
+        // The block it pushed directly and the rest of the affected blocks
+        List<Block> blocks = new ArrayList<Block>(event.getLength() + 3);
+        blocks.add(piston.getRelative(direction));
+
         for (int i = 0; i < event.getLength() + 2; i++) {
             Block block = piston.getRelative(direction, i);
-            Protection protection = lwc.findProtection(block.getLocation());
 
             // We don't want that!
             if (block.getType() == Material.AIR) {
                 break;
             }
 
-            if (protection != null) {
-                event.setCancelled(true);
-                break;
-            }
+            blocks.add(block);
+        }
+
+        if (!lwc.findProtections(blocks).isEmpty()) {
+            event.setCancelled(true);
         }
     }
 
@@ -344,7 +350,9 @@ public class LWCBlockListener implements Listener {
 
         if (blockIsBlacklisted) {
             // it's blacklisted, check for a protected chest
-            for (Protection protection : lwc.findAdjacentProtectionsOnAllSides(block)) {
+            for (BlockFace face : ALL_FACES) {
+                Protection protection = lwc.findProtection(event, block.getRelative(face));
+
                 if (protection != null) {
                     if (!lwc.canAccessProtection(player, protection) || (protection.getType() == Protection.Type.DONATION && !lwc.canAdminProtection(player, protection))) {
                         // they can't access the protection ..
@@ -362,13 +370,14 @@ public class LWCBlockListener implements Listener {
         Block block = event.getBlock();
 
         if (block.getType() == Material.BED_BLOCK) {
+            List<Block> blocks = new ArrayList<Block>();
+
             for (BlockState state : event.getReplacedBlockStates()) {
-                Protection protection = lwc.findProtection(state);
+                blocks.add(state.getBlock());
+            }
 
-                if (protection != null) {
-                    event.setCancelled(true);
-                    return;
-                }
+            if (!lwc.findProtections(event, blocks).isEmpty()) {
+                event.setCancelled(true);
             }
         }
     }
@@ -387,7 +396,7 @@ public class LWCBlockListener implements Listener {
         Block block = event.getBlockPlaced();
 
         // Update the cache if a protection is matched here
-        Protection current = lwc.findProtection(block.getLocation());
+        Protection current = lwc.findProtection(event, block);
         if (current != null) {
             if (!current.isBlockInWorld()) {
                 // Corrupted protection
@@ -408,30 +417,17 @@ public class LWCBlockListener implements Listener {
             return;
         }
 
-        String autoRegisterType = lwc.resolveProtectionConfiguration(block, "autoRegister");
+        ProtectionPolicy policy = lwc.getProtectionPolicy(block);
+        Protection.Type type = policy.getAutoRegister();
 
         // is it auto protectable?
-        if (!autoRegisterType.equalsIgnoreCase("private") && !autoRegisterType.equalsIgnoreCase("public")) {
-            return;
-        }
-
-        if (!lwc.hasPermission(player, "lwc.create." + autoRegisterType, "lwc.create", "lwc.protect")) {
+        if (type == null) {
             return;
         }
 
-        // Parse the type
-        Protection.Type type;
+        String autoRegisterType = type.toString().toLowerCase();
 
-        try {
-            type = Protection.Type.valueOf(autoRegisterType.toUpperCase());
-        } catch (IllegalArgumentException e) {
-            // No auto protect type found
-            return;
-        }
-
-        // Is it okay?
-        if (type == null) {
-            player.sendMessage(Colors.Red + "LWC_INVALID_CONFIG_autoRegister");
+        if (!lwc.hasPermission(player, "lwc.create." + autoRegisterType, "lwc.create", "lwc.protect")) {
             return;
         }
 
@@ -444,7 +440,7 @@ public class LWCBlockListener implements Listener {
 
                 //They're placing it beside a chest, check if it's already protected
                 if (face.getType() == block.getType()) {
-                    if (lwc.findProtection(face.getLocation()) != null) {
+                    if (lwc.findProtection(event, face) != null) {
                         return;
                     }
                 }
@@ -463,7 +459,7 @@ public class LWCBlockListener implements Listener {
             // All good!
             Protection protection = lwc.getPhysicalDatabase().registerProtection(block.getTypeId(), type, block.getWorld().getName(), player.getUniqueId().toString(), "", block.getX(), block.getY(), block.getZ());
 
-            if (!Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "quiet"))) {
+            if (!policy.isQuiet()) {
                 lwc.sendLocale(player, "protection.onplace.create.finalize", "type", lwc.getPlugin().getMessageParser().parseMessage(autoRegisterType.toLowerCase()), "block", LWC.materialToString(block));
             }
 
@@ -97,15 +97,11 @@ public class LWCEntityListener implements Listener {
 
         LWC lwc = LWC.getInstance();
 
-        for (Block block : event.blockList()) {
-            Protection protection = plugin.getLWC().findProtection(block.getLocation());
+        for (Protection protection : lwc.findProtections(event, event.blockList())) {
+            boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
 
-            if (protection != null) {
-                boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
-
-                if (!(ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS))) {
-                    event.setCancelled(true);
-                }
+            if (!(ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS))) {
+                event.setCancelled(true);
             }
         }
     }
@@ -118,20 +114,16 @@ public class LWCEntityListener implements Listener {
 
         LWC lwc = LWC.getInstance();
 
-        for (Block block : event.blockList()) {
-            Protection protection = plugin.getLWC().findProtection(block.getLocation());
+        for (Protection protection : lwc.findProtections(event, event.blockList())) {
+            boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
 
-            if (protection != null) {
-                boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
-
-                if (ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS)) {
-                    // If creeper heal is active for the block, halt all thrusters!
-                    if (isCreeperHealActive(event.getEntity())) {
-                        break;
-                    }
-
-                    protection.remove();
+            if (ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS)) {
+                // If creeper heal is active for the block, halt all thrusters!
+                if (isCreeperHealActive(event.getEntity())) {
+                    break;
                 }
+
+                protection.remove();
             }
         }
     }
@@ -28,12 +28,17 @@
 
 package com.griefcraft.listeners;
 
+import com.griefcraft.cache.HopperTransferCache;
+import com.griefcraft.cache.OwnerProtectionCounts;
+import com.griefcraft.integration.IPermissions;
+import com.griefcraft.integration.permissions.CachedPermissions;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCPlugin;
 import com.griefcraft.model.Flag;
 import com.griefcraft.model.LWCPlayer;
 import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.Module;
+import com.griefcraft.scripting.ModuleLoader;
 import com.griefcraft.scripting.event.LWCBlockInteractEvent;
 import com.griefcraft.scripting.event.LWCDropItemEvent;
 import com.griefcraft.scripting.event.LWCProtectionInteractEvent;
@@ -54,6 +59,7 @@ import org.bukkit.event.inventory.InventoryAction;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryMoveItemEvent;
 import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
@@ -80,6 +86,31 @@ public class LWCPlayerListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         UUIDRegistry.updateCache(player.getUniqueId(), player.getName());
+
+        IPermissions permissions = plugin.getLWC().getPermissions();
+
+        if (permissions instanceof CachedPermissions) {
+            ((CachedPermissions) permissions).refresh(player);
+        }
+
+        plugin.getLWC().invalidateLimits(player);
+
+        // load their protection counts so limit checks do not need the database
+        if (LWC.ENABLED) {
+            plugin.getLWC().getPhysicalDatabase().getProtectionCount(player);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        IPermissions permissions = plugin.getLWC().getPermissions();
+
+        // groups can be per-world
+        if (permissions instanceof CachedPermissions) {
+            ((CachedPermissions) permissions).refresh(event.getPlayer());
+        }
+
+        plugin.getLWC().invalidateLimits(event.getPlayer());
     }
 
     @EventHandler(ignoreCancelled = true)
@@ -138,6 +169,13 @@ public class LWCPlayerListener implements Listener {
             return false;
         }
 
+        HopperTransferCache transfers = lwc.getHopperTransferCache();
+        Boolean cached = transfers.get(hopperLocation, location);
+
+        if (cached != null) {
+            return cached;
+        }
+
         // High-intensity zone: increase protection cache if it's full, otherwise
         // the database will be getting rammed
         lwc.getProtectionCache().increaseIfNecessary();
@@ -147,28 +185,31 @@ public class LWCPlayerListener implements Listener {
 
         // If no protection was found we can safely ignore it
         if (protection == null) {
+            transfers.put(hopperLocation, location, false, null, null);
             return false;
         }
 
-        if (hopperLocation != null && Boolean.parseBoolean(lwc.resolveProtectionConfiguration(Material.HOPPER, "enabled"))) {
-            Protection hopperProtection = lwc.findProtection(hopperLocation);
+        Protection hopperProtection = null;
+
+        if (hopperLocation != null && lwc.getProtectionPolicy(Material.HOPPER).isEnabled()) {
+            hopperProtection = lwc.findProtection(hopperLocation);
 
             if (hopperProtection != null) {
                 // if they're owned by the same person then we can allow the move
                 if (protection.getOwner().equals(hopperProtection.getOwner())) {
+                    transfers.put(hopperLocation, location, false, protection, hopperProtection);
                     return false;
                 }
             }
         }
 
-        boolean denyHoppers = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(Material.getMaterial(protection.getBlockId()), "denyHoppers"));
+        boolean denyHoppers = lwc.getProtectionPolicy(Material.getMaterial(protection.getBlockId())).isDenyHoppers();
 
         // xor = (a && !b) || (!a && b)
-        if (denyHoppers ^ protection.hasFlag(Flag.Type.HOPPER)) {
-            return true;
-        }
+        boolean deny = denyHoppers ^ protection.hasFlag(Flag.Type.HOPPER);
 
-        return false;
+        transfers.put(hopperLocation, location, deny, protection, hopperProtection);
+        return deny;
     }
 
     @EventHandler(priority = EventPriority.HIGH)
@@ -177,6 +218,10 @@ public class LWCPlayerListener implements Listener {
             return;
         }
 
+        if (!plugin.getLWC().getModuleLoader().hasListeners(ModuleLoader.Event.DROP_ITEM)) {
+            return;
+        }
+
         Player player = event.getPlayer();
 
         LWCDropItemEvent evt = new LWCDropItemEvent(player, event);
@@ -353,6 +398,16 @@ public class LWCPlayerListener implements Listener {
 
         // remove the place from the player cache and reset anything they can access
         LWCPlayer.removePlayer(event.getPlayer());
+
+        IPermissions permissions = plugin.getLWC().getPermissions();
+
+        if (permissions instanceof CachedPermissions) {
+            ((CachedPermissions) permissions).invalidate(event.getPlayer());
+        }
+
+        OwnerProtectionCounts counts = plugin.getLWC().getPhysicalDatabase().getOwnerProtectionCounts();
+        counts.unload(event.getPlayer().getUniqueId().toString());
+        counts.unload(event.getPlayer().getName());
     }
 
     @EventHandler(ignoreCancelled = true)
@@ -28,6 +28,9 @@
 
 package com.griefcraft.lwc;
 
+import com.griefcraft.cache.AccessDecisionCache;
+import com.griefcraft.cache.EventProtectionCache;
+import com.griefcraft.cache.HopperTransferCache;
 import com.griefcraft.cache.ProtectionCache;
 import com.griefcraft.integration.ICurrency;
 import com.griefcraft.integration.IPermissions;
@@ -38,11 +41,13 @@ import com.griefcraft.integration.currency.VaultCurrency;
 import com.griefcraft.integration.currency.iConomy5Currency;
 import com.griefcraft.integration.currency.iConomy6Currency;
 import com.griefcraft.integration.permissions.BukkitPermissions;
+import com.griefcraft.integration.permissions.CachedPermissions;
 import com.griefcraft.integration.permissions.PEXPermissions;
 import com.griefcraft.integration.permissions.SuperPermsPermissions;
 import com.griefcraft.integration.permissions.VaultPermissions;
 import com.griefcraft.integration.permissions.bPermissions;
 import com.griefcraft.io.BackupManager;
+import com.griefcraft.jobs.JobManager;
 import com.griefcraft.listeners.LWCMCPCSupport;
 import com.griefcraft.migration.ConfigPost300;
 import com.griefcraft.migration.MySQLPost200;
@@ -67,7 +72,10 @@ import com.griefcraft.modules.admin.AdminQuery;
 import com.griefcraft.modules.admin.AdminRebuild;
 import com.griefcraft.modules.admin.AdminReload;
 import com.griefcraft.modules.admin.AdminRemove;
+import com.griefcraft.modules.admin.AdminProfile;
 import com.griefcraft.modules.admin.AdminReport;
+import com.griefcraft.modules.admin.AdminJobs;
+import com.griefcraft.modules.admin.AdminRetention;
 import com.griefcraft.modules.admin.AdminVersion;
 import com.griefcraft.modules.admin.AdminView;
 import com.griefcraft.modules.admin.BaseAdminModule;
@@ -112,6 +120,8 @@ import com.griefcraft.util.Statistics;
 import com.griefcraft.util.StringUtil;
 import com.griefcraft.util.UUIDRegistry;
 import com.griefcraft.util.config.Configuration;
+import com.griefcraft.util.config.ProtectionPolicies;
+import com.griefcraft.util.config.ProtectionPolicy;
 import com.griefcraft.util.locale.LocaleUtil;
 import com.griefcraft.util.matchers.DoubleChestMatcher;
 import org.apache.commons.lang.StringUtils;
@@ -123,6 +133,7 @@ import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.command.CommandSender;
+import org.bukkit.event.Event;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
@@ -136,11 +147,15 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class LWC {
@@ -155,6 +170,16 @@ public class LWC {
      */
     private static LWC instance;
 
+    /**
+     * How far (in blocks) a protection can be from a block that matches it, e.g. the block under a door
+     */
+    private static final int MATCH_RADIUS = 2;
+
+    /**
+     * The largest span (in blocks along x or z) a batch protection lookup covers with a single query
+     */
+    private static final int MAX_BATCH_QUERY_SIZE = 64;
+
     /**
      * Core LWC configuration
      */
@@ -175,6 +200,21 @@ public class LWC {
      */
     private final ProtectionCache protectionCache;
 
+    /**
+     * The protection lookups done for the events handled this tick
+     */
+    private final EventProtectionCache eventProtectionCache;
+
+    /**
+     * The cached hopper transfer decisions
+     */
+    private final HopperTransferCache hopperTransferCache;
+
+    /**
+     * The cached access decisions
+     */
+    private final AccessDecisionCache accessDecisionCache;
+
     /**
      * Physical database instance
      */
@@ -190,6 +230,11 @@ public class LWC {
      */
     private DatabaseThread databaseThread;
 
+    /**
+     * Runs long admin jobs in the background
+     */
+    private JobManager jobManager;
+
     /**
      * The permissions handler
      */
@@ -201,15 +246,18 @@ public class LWC {
     private ICurrency currency;
 
     /**
-     * Protection configuration cache
+     * The compiled protections.blocks configuration
      */
-    private final Map<String, String> protectionConfigurationCache = new HashMap<String, String>();
+    private ProtectionPolicies protectionPolicies;
 
     public LWC(LWCPlugin plugin) {
         this.plugin = plugin;
         LWC.instance = this;
         configuration = Configuration.load("core.yml");
         protectionCache = new ProtectionCache(this);
+        eventProtectionCache = new EventProtectionCache(this);
+        hopperTransferCache = new HopperTransferCache();
+        accessDecisionCache = new AccessDecisionCache(configuration.getInt("core.accessCacheTime", 10) * 1000L);
         backupManager = new BackupManager();
         moduleLoader = new ModuleLoader(this);
     }
@@ -396,6 +444,30 @@ public class LWC {
             return true;
         }
 
+        Boolean cached = accessDecisionCache.get(player.getUniqueId(), protection, true);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        boolean canAdmin = resolveAdminAccess(player, protection);
+
+        // password access is remembered for the session, which the cache does not know about
+        if (protection.getType() != Protection.Type.PASSWORD) {
+            accessDecisionCache.put(player.getUniqueId(), protection, true, canAdmin);
+        }
+
+        return canAdmin;
+    }
+
+    /**
+     * Check if a player that is not an LWC admin has the ability to administrate a protection
+     *
+     * @param player
+     * @param protection
+     * @return
+     */
+    private boolean resolveAdminAccess(Player player, Protection protection) {
         // Their access level
         Permission.Access access = Permission.Access.NONE;
 
@@ -437,6 +509,10 @@ public class LWC {
                 break;
         }
 
+        if (!moduleLoader.hasListeners(ModuleLoader.Event.ACCESS_REQUEST)) {
+            return access == Permission.Access.ADMIN;
+        }
+
         // call the canAccessProtection hook
         LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
         moduleLoader.dispatchEvent(event);
@@ -583,6 +659,12 @@ public class LWC {
         // destroy the modules
         moduleLoader.shutdown();
 
+        // save the running jobs so they continue next time
+        if (jobManager != null) {
+            jobManager.stop();
+            jobManager = null;
+        }
+
         log("Flushing protection updates (" + databaseThread.size() + ")");
 
         if (databaseThread != null) {
@@ -656,7 +738,7 @@ public class LWC {
 
         boolean permShowNotices = hasPermission(player, "lwc.shownotices");
         if ((permShowNotices && configuration.getBoolean("core.showNotices", true))
-                && !Boolean.parseBoolean(resolveProtectionConfiguration(block, "quiet"))) {
+                && !getProtectionPolicy(block).isQuiet()) {
             boolean isOwner = protection.isOwner(player);
             boolean showMyNotices = configuration.getBoolean("core.showMyNotices", true);
 
@@ -726,6 +808,31 @@ public class LWC {
             }
         }
 
+        Boolean cached = accessDecisionCache.get(player.getUniqueId(), protection, false);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        boolean hasAccess = resolveAccess(player, protection);
+
+        // password access is remembered for the session and item keys depend on the item in hand,
+        // neither of which the cache knows about
+        if (protection.getType() != Protection.Type.PASSWORD && !protection.hasItemKeys()) {
+            accessDecisionCache.put(player.getUniqueId(), protection, false, hasAccess);
+        }
+
+        return hasAccess;
+    }
+
+    /**
+     * Check if a player that is not an LWC admin or mod has the ability to access a protection
+     *
+     * @param player
+     * @param protection
+     * @return
+     */
+    private boolean resolveAccess(Player player, Protection protection) {
         // Their access level
         Permission.Access access = Permission.Access.NONE;
 
@@ -755,18 +862,10 @@ public class LWC {
                 }
 
                 // Check for item keys
-                for (Permission permission : protection.getPermissions()) {
-                    if (permission.getType() != Permission.Type.ITEM) {
-                        continue;
-                    }
+                ItemStack itemInHand = player.getItemInHand();
 
-                    // Get the item they need to have
-                    int item = Integer.parseInt(permission.getName());
-
-                    // Are they wielding it?
-                    if (player.getItemInHand().getTypeId() == item) {
-                        return true;
-                    }
+                if (itemInHand != null && protection.isItemKey(itemInHand.getTypeId())) {
+                    return true;
                 }
 
                 for (String groupName : permissions.getGroups(player)) {
@@ -778,6 +877,10 @@ public class LWC {
                 break;
         }
 
+        if (!moduleLoader.hasListeners(ModuleLoader.Event.ACCESS_REQUEST)) {
+            return access == Permission.Access.PLAYER || access == Permission.Access.ADMIN;
+        }
+
         // call the canAccessProtection hook
         LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
         moduleLoader.dispatchEvent(event);
@@ -892,7 +995,7 @@ public class LWC {
         message = StringUtils.split(parsed, '\n');
 
         // broadcast an event if they are a player
-        if (sender instanceof Player) {
+        if (sender instanceof Player && moduleLoader.hasListeners(ModuleLoader.Event.SEND_LOCALE)) {
             LWCSendLocaleEvent evt = new LWCSendLocaleEvent((Player) sender, key);
             moduleLoader.dispatchEvent(evt);
 
@@ -957,6 +1060,8 @@ public class LWC {
     public int fastRemoveProtections(CommandSender sender, String where, boolean shouldRemoveBlocks) {
         List<Integer> exemptedBlocks = configuration.getIntList("optional.exemptBlocks", new ArrayList<Integer>());
         List<Integer> toRemove = new LinkedList<Integer>();
+        List<Protection> removed = new ArrayList<Protection>();
+        int[] removedTypes = new int[Protection.Type.values().length];
         List<Block> removeBlocks = null;
         int totalProtections = physicalDatabase.getProtectionCount();
         int completed = 0;
@@ -1006,18 +1111,15 @@ public class LWC {
 
                 // remove the protection
                 toRemove.add(protection.getId());
+                removedTypes[protection.getType().ordinal()]++;
+                physicalDatabase.getOwnerProtectionCounts().remove(protection.getOwner(), protection.getBlockId());
 
                 // remove the block ?
                 if (shouldRemoveBlocks) {
                     removeBlocks.add(protection.getBlock());
                 }
 
-                // Remove it from the cache if it's in there
-                Protection cached = protectionCache.getProtection(protection.getCacheKey());
-                if (cached != null) {
-                    cached.removeCache();
-                }
-
+                removed.add(protection);
                 completed++;
             }
 
@@ -1028,6 +1130,14 @@ public class LWC {
             // flush all of the queries
             fullRemoveProtections(sender, toRemove);
 
+            // evict only the removed protections from the cache
+            protectionCache.publishRemovals(removed);
+
+            // update the known protection counters
+            for (Protection.Type type : Protection.Type.values()) {
+                physicalDatabase.decrementProtectionCount(type, removedTypes[type.ordinal()]);
+            }
+
             if (shouldRemoveBlocks) {
                 removeBlocks(sender, removeBlocks);
             }
@@ -1082,7 +1192,6 @@ public class LWC {
             }
 
             count++;
-            physicalDatabase.decrementProtectionCount();
         }
 
         statement.close();
@@ -1098,30 +1207,41 @@ public class LWC {
         int count = 0;
 
         for (Block block : blocks) {
-            if (block == null || !isProtectable(block)) {
-                continue;
+            if (removeBlock(block)) {
+                count++;
             }
+        }
 
-            // possibility of a double chest
-            if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(block.getType())) {
-                Block doubleChest = findAdjacentDoubleChest(block);
-
-                if (doubleChest != null) {
-                    removeInventory(doubleChest);
-                    doubleChest.setType(Material.AIR);
-                }
-            }
+        sender.sendMessage("Removed " + count + " blocks from the world");
+    }
 
-            // remove the inventory from the block if it has one
-            removeInventory(block);
+    /**
+     * Remove a protectable block and its inventory from the world, along with the other half of a double chest
+     *
+     * @param block
+     * @return false if the block is not protectable
+     */
+    public boolean removeBlock(Block block) {
+        if (block == null || !isProtectable(block)) {
+            return false;
+        }
 
-            // and now remove the block
-            block.setType(Material.AIR);
+        // possibility of a double chest
+        if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(block.getType())) {
+            Block doubleChest = findAdjacentDoubleChest(block);
 
-            count++;
+            if (doubleChest != null) {
+                removeInventory(doubleChest);
+                doubleChest.setType(Material.AIR);
+            }
         }
 
-        sender.sendMessage("Removed " + count + " blocks from the world");
+        // remove the inventory from the block if it has one
+        removeInventory(block);
+
+        // and now remove the block
+        block.setType(Material.AIR);
+        return true;
     }
 
     /**
@@ -1191,31 +1311,34 @@ public class LWC {
      * @return
      */
     public Protection findProtection(Block block) {
-        return findProtection(block.getState());
-    }
-
-    /**
-     * Find a protection linked to the block
-     *
-     * @param state
-     * @return
-     */
-    public Protection findProtection(BlockState state) {
         // If the block type is AIR, then we have a problem .. but attempt to load a protection anyway
         // Note: this call stems from a very old bug in Bukkit that likely does not exist anymore at all
         //       but is kept just incase. At one point getBlock() in Bukkit would sometimes say a block
         //       is an eir block even though the client and server sees it differently (ie a chest).
         //       This was of course very problematic!
-        if (state.getType() == Material.AIR) {
+        if (block.getType() == Material.AIR) {
             // We won't be able to match any other blocks anyway, so the least we can do is attempt to load a protection
-            return physicalDatabase.loadProtection(state.getWorld().getName(), state.getX(), state.getY(), state.getZ());
+            return physicalDatabase.loadProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        }
+
+        String cacheKey = protectionCache.cacheKey(block);
+
+        if (protectionCache.isKnownNull(cacheKey)) {
+            return null;
+        }
+
+        // A protection that was already matched can be returned without matching the blocks again
+        Protection protection = protectionCache.getProtection(cacheKey);
+
+        if (protection != null && protection.getProtectionFinder() != null) {
+            return protection;
         }
 
         // Create a protection finder
         ProtectionFinder finder = new ProtectionFinder(this);
 
         // Search for a protection
-        boolean result = finder.matchBlocks(state);
+        boolean result = finder.matchBlocks(block);
 
         Protection found = null;
 
@@ -1225,12 +1348,245 @@ public class LWC {
         }
 
         if (found == null) {
-            protectionCache.addKnownNull(protectionCache.cacheKey(state.getLocation()));
+            protectionCache.addKnownNull(cacheKey);
+        }
+
+        return found;
+    }
+
+    /**
+     * Find a protection linked to the block
+     *
+     * @param state
+     * @return
+     */
+    public Protection findProtection(BlockState state) {
+        // The state may be a snapshot that differs from the block in the world (ie the replaced state of a block place)
+        if (state.getType() == Material.AIR) {
+            return physicalDatabase.loadProtection(state.getWorld().getName(), state.getX(), state.getY(), state.getZ());
+        }
+
+        return findProtection(state.getBlock());
+    }
+
+    /**
+     * Find a protection linked to the block while handling an event. Lookups for the same block are remembered
+     * for the rest of the event (until the end of the tick) so listeners at later priorities can reuse them.
+     *
+     * @param event
+     * @param block
+     * @return
+     */
+    public Protection findProtection(Event event, Block block) {
+        return eventProtectionCache.findProtection(event, block);
+    }
+
+    /**
+     * Find the protections linked to any of the given blocks while handling an event. See
+     * {@link #findProtection(Event, Block)} and {@link #findProtections(Collection)}.
+     *
+     * @param event
+     * @param blocks
+     * @return the distinct protections that were found
+     */
+    public List<Protection> findProtections(Event event, Collection<Block> blocks) {
+        return eventProtectionCache.findProtections(event, blocks);
+    }
+
+    /**
+     * Find the protections linked to any of the given blocks. Protections that are not cached are loaded with one
+     * range query per world (or per chunk if the blocks are spread out) instead of a query per block.
+     *
+     * @param blocks
+     * @return the distinct protections that were found
+     */
+    public List<Protection> findProtections(Collection<Block> blocks) {
+        List<Protection> found = new ArrayList<Protection>();
+        Set<Integer> foundIds = new HashSet<Integer>();
+
+        for (Protection protection : findProtectionsByBlock(blocks).values()) {
+            if (foundIds.add(protection.getId())) {
+                found.add(protection);
+            }
         }
 
         return found;
     }
 
+    /**
+     * Find the protection linked to each of the given blocks, loading protections that are not cached in a batch.
+     * See {@link #findProtections(Collection)}.
+     *
+     * @param blocks
+     * @return the protection for each block that has one. Blocks without a protection are not in the map
+     */
+    public Map<Block, Protection> findProtectionsByBlock(Collection<Block> blocks) {
+        Map<Block, Protection> found = new LinkedHashMap<Block, Protection>();
+
+        // the blocks that could not be answered from the cache, by world
+        Map<String, List<Block>> unresolved = new HashMap<String, List<Block>>();
+
+        for (Block block : blocks) {
+            String cacheKey = protectionCache.cacheKey(block);
+
+            if (protectionCache.isKnownNull(cacheKey)) {
+                continue;
+            }
+
+            Protection protection = protectionCache.getProtection(cacheKey);
+
+            if (protection != null && protection.getProtectionFinder() != null) {
+                found.put(block, protection);
+                continue;
+            }
+
+            String world = block.getWorld().getName();
+            List<Block> worldBlocks = unresolved.get(world);
+
+            if (worldBlocks == null) {
+                worldBlocks = new ArrayList<Block>();
+                unresolved.put(world, worldBlocks);
+            }
+
+            worldBlocks.add(block);
+        }
+
+        if (unresolved.isEmpty()) {
+            return found;
+        }
+
+        // if every protection is cached, findProtection will never query the database
+        boolean allCached = physicalDatabase.hasAllProtectionsCached();
+
+        for (Map.Entry<String, List<Block>> entry : unresolved.entrySet()) {
+            List<Block> worldBlocks = entry.getValue();
+            List<Protection> nearby = allCached ? null : preloadProtections(entry.getKey(), worldBlocks);
+
+            for (Block block : worldBlocks) {
+                if (nearby != null && !isNearProtection(nearby, block)) {
+                    // no protection is close enough to be matched by the block
+                    protectionCache.addKnownNull(protectionCache.cacheKey(block));
+                    continue;
+                }
+
+                Protection protection = findProtection(block);
+
+                if (protection != null) {
+                    found.put(block, protection);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Load and cache every protection that could be matched by the given blocks
+     *
+     * @param world
+     * @param blocks
+     * @return the protections that were loaded
+     */
+    private List<Protection> preloadProtections(String world, List<Block> blocks) {
+        // the bounds of the blocks in each chunk: minX, maxX, minY, maxY, minZ, maxZ
+        Map<Long, int[]> chunks = new HashMap<Long, int[]>();
+        int[] total = null;
+
+        for (Block block : blocks) {
+            long chunkKey = ((long) (block.getX() >> 4) << 32) | ((block.getZ() >> 4) & 0xFFFFFFFFL);
+            int[] bounds = chunks.get(chunkKey);
+
+            if (bounds == null) {
+                chunks.put(chunkKey, newBounds(block));
+            } else {
+                expandBounds(bounds, block);
+            }
+
+            if (total == null) {
+                total = newBounds(block);
+            } else {
+                expandBounds(total, block);
+            }
+        }
+
+        List<int[]> queries = new ArrayList<int[]>();
+
+        if (total[1] - total[0] <= MAX_BATCH_QUERY_SIZE && total[5] - total[4] <= MAX_BATCH_QUERY_SIZE) {
+            queries.add(total);
+        } else {
+            queries.addAll(chunks.values());
+        }
+
+        List<Protection> loaded = new ArrayList<Protection>();
+
+        for (int[] bounds : queries) {
+            List<Protection> protections = physicalDatabase.loadProtections(world,
+                    bounds[0] - MATCH_RADIUS, bounds[1] + MATCH_RADIUS,
+                    bounds[2] - MATCH_RADIUS, bounds[3] + MATCH_RADIUS,
+                    bounds[4] - MATCH_RADIUS, bounds[5] + MATCH_RADIUS);
+
+            for (Protection protection : protections) {
+                Protection cached = protectionCache.getProtectionById(protection.getId());
+
+                if (cached != null) {
+                    loaded.add(cached);
+                } else {
+                    protectionCache.addProtection(protection);
+                    loaded.add(protection);
+                }
+            }
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Check if a block is close enough to any of the protections to be matched to one of them
+     *
+     * @param protections
+     * @param block
+     * @return
+     */
+    private boolean isNearProtection(List<Protection> protections, Block block) {
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+
+        for (Protection protection : protections) {
+            if (Math.abs(protection.getX() - x) <= MATCH_RADIUS && Math.abs(protection.getY() - y) <= MATCH_RADIUS
+                    && Math.abs(protection.getZ() - z) <= MATCH_RADIUS) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Create bounds (minX, maxX, minY, maxY, minZ, maxZ) that contain only the given block
+     *
+     * @param block
+     * @return
+     */
+    private static int[] newBounds(Block block) {
+        return new int[] { block.getX(), block.getX(), block.getY(), block.getY(), block.getZ(), block.getZ() };
+    }
+
+    /**
+     * Expand bounds (minX, maxX, minY, maxY, minZ, maxZ) to contain the given block
+     *
+     * @param bounds
+     * @param block
+     */
+    private static void expandBounds(int[] bounds, Block block) {
+        bounds[0] = Math.min(bounds[0], block.getX());
+        bounds[1] = Math.max(bounds[1], block.getX());
+        bounds[2] = Math.min(bounds[2], block.getY());
+        bounds[3] = Math.max(bounds[3], block.getY());
+        bounds[4] = Math.min(bounds[4], block.getZ());
+        bounds[5] = Math.max(bounds[5], block.getZ());
+    }
+
     /**
      * Find a protection linked to the block at [x, y, z]
      *
@@ -1334,13 +1690,7 @@ public class LWC {
      * @return
      */
     public boolean isProtectable(Block block) {
-        Material material = block.getType();
-
-        if (material == null) {
-            return false;
-        }
-
-        return Boolean.parseBoolean(resolveProtectionConfiguration(block, "enabled"));
+        return getProtectionPolicy(block).isEnabled();
     }
 
     /**
@@ -1350,59 +1700,61 @@ public class LWC {
      * @return
      */
     public boolean isProtectable(BlockState state) {
-        Material material = state.getType();
+        return getProtectionPolicy(state).isEnabled();
+    }
 
-        if (material == null) {
-            return false;
+    /**
+     * Get the compiled protections.blocks configuration, compiling it if it has not been yet
+     *
+     * @return
+     */
+    public ProtectionPolicies getProtectionPolicies() {
+        if (protectionPolicies == null) {
+            protectionPolicies = ProtectionPolicies.compile(configuration);
         }
 
-        return Boolean.parseBoolean(resolveProtectionConfiguration(state, "enabled"));
+        return protectionPolicies;
     }
 
     /**
-     * Get the appropriate config value for the block (protections.block.node)
+     * Get the protection configuration for the block
      *
      * @param block
-     * @param node
      * @return
      */
-    public String resolveProtectionConfiguration(Block block, String node) {
-        Material material = block.getType();
-        String cacheKey = block.getData() + "-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-        names.add(material.getId() + ":" + block.getData());
-        names.add(materialName + ":" + block.getData());
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
-        }
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        String value = configuration.getString("protections." + node);
+    public ProtectionPolicy getProtectionPolicy(Block block) {
+        return getProtectionPolicies().get(block);
+    }
 
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
+    /**
+     * Get the protection configuration for the block
+     *
+     * @param state
+     * @return
+     */
+    public ProtectionPolicy getProtectionPolicy(BlockState state) {
+        return getProtectionPolicies().get(state);
+    }
 
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
+    /**
+     * Get the protection configuration for the material
+     *
+     * @param material
+     * @return
+     */
+    public ProtectionPolicy getProtectionPolicy(Material material) {
+        return getProtectionPolicies().get(material);
+    }
 
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+    /**
+     * Get the appropriate config value for the block (protections.block.node)
+     *
+     * @param block
+     * @param node
+     * @return
+     */
+    public String resolveProtectionConfiguration(Block block, String node) {
+        return getProtectionPolicy(block).getString(node);
     }
 
     /**
@@ -1413,42 +1765,7 @@ public class LWC {
      * @return
      */
     public String resolveProtectionConfiguration(BlockState state, String node) {
-        Material material = state.getType();
-        String cacheKey = state.getRawData() + "-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-        names.add(material.getId() + ":" + state.getRawData());
-        names.add(materialName + ":" + state.getRawData());
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
-        }
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        String value = configuration.getString("protections." + node);
-
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
-
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
-
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+        return getProtectionPolicy(state).getString(node);
     }
 
     /**
@@ -1459,39 +1776,7 @@ public class LWC {
      * @return
      */
     public String resolveProtectionConfiguration(Material material, String node) {
-        String cacheKey = "00-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
-        }
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        String value = configuration.getString("protections." + node);
-
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
-
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
-
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+        return getProtectionPolicy(material).getString(node);
     }
 
     /**
@@ -1523,6 +1808,12 @@ public class LWC {
             permissions = new bPermissions();
         }
 
+        int groupCacheTime = configuration.getInt("core.groupCacheTime", 30);
+
+        if (groupCacheTime > 0) {
+            permissions = new CachedPermissions(permissions, groupCacheTime * 1000L);
+        }
+
         // Currency init
         currency = new NoCurrency();
 
@@ -1567,12 +1858,19 @@ public class LWC {
         // check any major conversions
         new MySQLPost200().run();
 
+        // compile the block configuration now that any database updates to it are done
+        protectionPolicies = ProtectionPolicies.compile(configuration);
+
         // precache protections
         physicalDatabase.precache();
 
         // We are now done loading!
         moduleLoader.loadAll();
 
+        // continue any jobs that were running when the server stopped
+        jobManager = new JobManager(this);
+        jobManager.start();
+
         // Should we try metrics?
         if (!configuration.getBoolean("optional.optOut", false)) {
             try {
@@ -1672,6 +1970,9 @@ public class LWC {
         registerModule(new AdminReload());
         registerModule(new AdminRemove());
         registerModule(new AdminReport());
+        registerModule(new AdminProfile());
+        registerModule(new AdminRetention());
+        registerModule(new AdminJobs());
         registerModule(new AdminVersion());
         registerModule(new AdminQuery());
         registerModule(new AdminPurgeBanned());
@@ -1889,13 +2190,33 @@ public class LWC {
         }
     }
 
+    /**
+     * Forget the protection limits compiled for a player, e.g when their groups or permissions may have changed
+     *
+     * @param player
+     */
+    public void invalidateLimits(Player player) {
+        LimitsV2 limits = (LimitsV2) moduleLoader.getModule(LimitsV2.class);
+
+        if (limits != null) {
+            limits.invalidate(player);
+        }
+    }
+
     /**
      * Reload internal data structures
      */
     public void reload() {
         plugin.loadLocales();
-        protectionConfigurationCache.clear();
         Configuration.reload();
+
+        if (permissions instanceof CachedPermissions) {
+            ((CachedPermissions) permissions).invalidateAll();
+        }
+
+        protectionPolicies = ProtectionPolicies.compile(configuration);
+        hopperTransferCache.clear();
+        accessDecisionCache.invalidateAll();
         moduleLoader.dispatchEvent(new LWCReloadEvent());
     }
 
@@ -1904,12 +2225,21 @@ public class LWC {
      */
     public void reloadDatabase() {
         try {
+            if (jobManager != null) {
+                jobManager.stop();
+            }
+
             databaseThread.flush();
             databaseThread.stop();
             physicalDatabase = new PhysDB();
             physicalDatabase.connect();
             physicalDatabase.load();
             databaseThread = new DatabaseThread(this);
+
+            if (jobManager != null) {
+                jobManager = new JobManager(this);
+                jobManager.start();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -2015,6 +2345,20 @@ public class LWC {
         return plugin;
     }
 
+    /**
+     * @return the cached hopper transfer decisions
+     */
+    public HopperTransferCache getHopperTransferCache() {
+        return hopperTransferCache;
+    }
+
+    /**
+     * @return the cached access decisions
+     */
+    public AccessDecisionCache getAccessDecisionCache() {
+        return accessDecisionCache;
+    }
+
     /**
      * @return the protection cache
      */
@@ -2029,6 +2373,13 @@ public class LWC {
         return databaseThread;
     }
 
+    /**
+     * @return the background job manager
+     */
+    public JobManager getJobManager() {
+        return jobManager;
+    }
+
     /**
      * @return the plugin version
      */
@@ -50,8 +50,8 @@ public class DatabaseMigrator {
             toDatabase.getConnection().setAutoCommit(false);
 
             // some prelim data
-            int startProtections = toDatabase.getProtectionCount();
-            int protectionCount = fromDatabase.getProtectionCount();
+            int startProtections = toDatabase.countProtections();
+            int protectionCount = fromDatabase.countProtections();
             int historyCount = fromDatabase.getHistoryCount();
             int expectedProtections = protectionCount + startProtections;
 
@@ -64,7 +64,7 @@ public class DatabaseMigrator {
                 }
 
                 toDatabase.getConnection().commit();
-                if (expectedProtections != (protectionCount = fromDatabase.getProtectionCount())) {
+                if (expectedProtections != (protectionCount = fromDatabase.countProtections())) {
                     logger.info("Weird, only " + protectionCount + " protections are in the database? Continuing...");
                 }
             }
@@ -29,10 +29,15 @@
 package com.griefcraft.model;
 
 import com.griefcraft.lwc.LWC;
-import com.griefcraft.util.StringUtil;
+import com.griefcraft.util.DatabaseThread;
+import com.griefcraft.util.HistoryWriter;
 
 import java.util.Arrays;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class History {
 
@@ -120,7 +125,17 @@ public class History {
      * for iConomy prices to be pushed in here. Any module can modify the
      * meta data and add their own data about the transaction.
      */
-    private String[] metadata;
+    private final Map<String, String> metadata = new LinkedHashMap<String, String>();
+
+    /**
+     * The metadata keys that are also stored in the history_meta table so history can be looked up by them
+     */
+    public static final Set<String> INDEXED_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("creator", "charge", "discount", "discountId")));
+
+    /**
+     * If metadata with an indexed key changed since the history object was last saved
+     */
+    private boolean indexedMetaDataModified = false;
 
     /**
      * The seconds (since linux epoch) this History object was created
@@ -142,10 +157,24 @@ public class History {
      */
     private boolean saving = false;
 
+    /**
+     * The history object this is a copy of (see {@link #copy()}), or null
+     */
+    private History original = null;
+
+    /**
+     * The metadata keys changed on a copy since it was made
+     */
+    private Set<String> changedKeys = null;
+
+    /**
+     * If the status of a copy changed since it was made
+     */
+    private boolean statusChanged = false;
+
     public History() {
         // set some defaults to account for stupidness
         status = Status.INACTIVE;
-        metadata = new String[0];
     }
 
     /**
@@ -170,19 +199,56 @@ public class History {
     /**
      * Add a string of data to the stored metadata
      *
-     * @param data
+     * @param data key=value
      */
     public void addMetaData(String data) {
-        String[] temp = new String[metadata.length + 1];
-        System.arraycopy(metadata, 0, temp, 0, metadata.length);
+        int index = data.indexOf('=');
 
-        // push the data to the end of the temporary array
-        // array.length doesn't start at 0, so we can be sure this is valid
-        temp[metadata.length] = data;
+        if (index == -1) {
+            putMetaData(data, null);
+        } else {
+            putMetaData(data.substring(0, index), data.substring(index + 1));
+        }
+    }
 
-        // we're okey
-        this.metadata = temp;
-        this.modified = true;
+    /**
+     * Set a String value in the metadata
+     *
+     * @param key
+     * @param value
+     */
+    public void setString(String key, String value) {
+        putMetaData(key, value);
+    }
+
+    /**
+     * Set a boolean value in the metadata
+     *
+     * @param key
+     * @param value
+     */
+    public void setBoolean(String key, boolean value) {
+        putMetaData(key, Boolean.toString(value));
+    }
+
+    /**
+     * Set an integer value in the metadata
+     *
+     * @param key
+     * @param value
+     */
+    public void setInteger(String key, int value) {
+        putMetaData(key, Integer.toString(value));
+    }
+
+    /**
+     * Set a double value in the metadata
+     *
+     * @param key
+     * @param value
+     */
+    public void setDouble(String key, double value) {
+        putMetaData(key, Double.toString(value));
     }
 
     /**
@@ -192,7 +258,7 @@ public class History {
      * @return
      */
     public boolean hasKey(String key) {
-        return getMetaDataStartsWith(key + "=") != null;
+        return metadata.get(key) != null;
     }
 
     /**
@@ -202,10 +268,9 @@ public class History {
      * @return
      */
     public boolean getBoolean(String key) {
-        String metadata = getMetaDataStartsWith(key + "=");
-
-        return metadata != null && Boolean.parseBoolean(metadata.substring((key + "=").length()));
+        String value = metadata.get(key);
 
+        return value != null && Boolean.parseBoolean(value);
     }
 
     /**
@@ -215,13 +280,13 @@ public class History {
      * @return
      */
     public String getString(String key) {
-        String metadata = getMetaDataStartsWith(key + "=");
+        String value = metadata.get(key);
 
-        if (metadata == null) {
+        if (value == null) {
             return "";
         }
 
-        return metadata.substring((key + "=").length());
+        return value;
     }
 
     /**
@@ -231,13 +296,13 @@ public class History {
      * @return
      */
     public int getInteger(String key) {
-        String metadata = getMetaDataStartsWith(key + "=");
+        String value = metadata.get(key);
 
-        if (metadata == null) {
+        if (value == null) {
             return 0;
         }
 
-        return Integer.parseInt(metadata.substring((key + "=").length()));
+        return Integer.parseInt(value);
     }
 
     /**
@@ -247,13 +312,13 @@ public class History {
      * @return
      */
     public double getDouble(String key) {
-        String metadata = getMetaDataStartsWith(key + "=");
+        String value = metadata.get(key);
 
-        if (metadata == null) {
+        if (value == null) {
             return 0;
         }
 
-        return Double.parseDouble(metadata.substring((key + "=").length()));
+        return Double.parseDouble(value);
     }
 
     /**
@@ -263,7 +328,9 @@ public class History {
      * @return the full metadata if a match is found, otherwise NULL
      */
     public String getMetaDataStartsWith(String startsWith) {
-        for (String temp : metadata) {
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            String temp = toString(entry);
+
             if (temp.startsWith(startsWith)) {
                 return temp;
             }
@@ -275,21 +342,79 @@ public class History {
     /**
      * Remove a string of known data from the stored metadata
      *
-     * @param data
+     * @param data key=value
      * @return true if the given metadata was successfully removed
      */
     public boolean removeMetaData(String data) {
-        // sorry
-        List<String> temp = Arrays.asList(metadata);
-        int expected = metadata.length - 1;
+        int index = data.indexOf('=');
+        String key = index == -1 ? data : data.substring(0, index);
+        String value = index == -1 ? null : data.substring(index + 1);
 
-        temp.remove(data);
+        if (!metadata.containsKey(key)) {
+            return false;
+        }
+
+        String current = metadata.get(key);
+
+        if (current == null ? value != null : !current.equals(value)) {
+            return false;
+        }
+
+        metadata.remove(key);
+        metaDataChanged(key);
+        return true;
+    }
 
-        // that went better than expected
-        this.metadata = temp.toArray(new String[temp.size()]);
+    /**
+     * @return the metadata keys and their values
+     */
+    public Map<String, String> getMetaDataMap() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * @return true if metadata with an indexed key changed since the history object was last saved
+     */
+    public boolean isIndexedMetaDataModified() {
+        return indexedMetaDataModified;
+    }
+
+    /**
+     * Set a metadata value
+     *
+     * @param key
+     * @param value
+     */
+    private void putMetaData(String key, String value) {
+        metadata.put(key, value);
+        metaDataChanged(key);
+    }
+
+    /**
+     * Called when the metadata for a key changes
+     *
+     * @param key
+     */
+    private void metaDataChanged(String key) {
         this.modified = true;
 
-        return metadata.length == expected;
+        if (original != null) {
+            changedKeys.add(key);
+        }
+
+        if (INDEXED_KEYS.contains(key)) {
+            indexedMetaDataModified = true;
+        }
+    }
+
+    /**
+     * Get the key=value representation of a metadata entry
+     *
+     * @param entry
+     * @return
+     */
+    private static String toString(Map.Entry<String, String> entry) {
+        return entry.getValue() == null ? entry.getKey() : entry.getKey() + "=" + entry.getValue();
     }
 
     /**
@@ -324,10 +449,163 @@ public class History {
     }
 
     /**
+     * Encode the metadata for the database as key=value pairs separated by commas. Commas, equal signs and
+     * backslashes in keys and values are escaped with a backslash.
+     *
      * @return a STRING representation of the metadata for use in the database
      */
     public String getSafeMetaData() {
-        return StringUtil.join(metadata, 0, ",");
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+
+            escape(builder, entry.getKey());
+
+            if (entry.getValue() != null) {
+                builder.append('=');
+                escape(builder, entry.getValue());
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Replace the metadata with metadata encoded by {@link #getSafeMetaData()}
+     *
+     * @param encoded
+     */
+    public void setSafeMetaData(String encoded) {
+        metadata.clear();
+
+        if (encoded != null && !encoded.isEmpty()) {
+            StringBuilder key = new StringBuilder();
+            StringBuilder value = null;
+
+            for (int index = 0; index < encoded.length(); index++) {
+                char c = encoded.charAt(index);
+                StringBuilder current = value == null ? key : value;
+
+                if (c == '\\' && index + 1 < encoded.length()) {
+                    current.append(encoded.charAt(++index));
+                } else if (c == '=' && value == null) {
+                    value = new StringBuilder();
+                } else if (c == ',') {
+                    putEncoded(key, value);
+                    key = new StringBuilder();
+                    value = null;
+                } else {
+                    current.append(c);
+                }
+            }
+
+            putEncoded(key, value);
+        }
+
+        this.modified = true;
+        this.indexedMetaDataModified = true;
+    }
+
+    /**
+     * Add a decoded metadata entry
+     *
+     * @param key
+     * @param value
+     */
+    private void putEncoded(StringBuilder key, StringBuilder value) {
+        if (key.length() > 0) {
+            metadata.put(key.toString(), value == null ? null : value.toString());
+        }
+    }
+
+    /**
+     * Append a string escaped for the metadata encoding
+     *
+     * @param builder
+     * @param string
+     */
+    private static void escape(StringBuilder builder, String string) {
+        for (int index = 0; index < string.length(); index++) {
+            char c = string.charAt(index);
+
+            if (c == ',' || c == '=' || c == '\\') {
+                builder.append('\\');
+            }
+
+            builder.append(c);
+        }
+    }
+
+    /**
+     * Mark the indexed metadata as saved to the history_meta table
+     */
+    public void markIndexedMetaDataSaved() {
+        indexedMetaDataModified = false;
+    }
+
+    /**
+     * Copy the history object so it can be read and changed off the main thread. The copy is never written to the
+     * database; the changes made to its status and metadata are applied to this history object by
+     * {@link #applyCopy()}
+     *
+     * @return
+     */
+    public History copy() {
+        History copy = new History();
+
+        copy.id = id;
+        copy.protectionId = protectionId;
+        copy.protection = protection;
+        copy.player = player;
+        copy.x = x;
+        copy.y = y;
+        copy.z = z;
+        copy.type = type;
+        copy.status = status;
+        copy.metadata.putAll(metadata);
+        copy.timestamp = timestamp;
+        copy.exists = exists;
+        copy.original = this;
+        copy.changedKeys = new HashSet<String>();
+
+        return copy;
+    }
+
+    /**
+     * @return true if the history object is a copy of another history object (see {@link #copy()})
+     */
+    public boolean isCopy() {
+        return original != null;
+    }
+
+    /**
+     * Apply the changes made to a copy to the history object it was copied from, and save that history object if
+     * anything changed. Must be called on the main thread
+     */
+    public void applyCopy() {
+        if (original == null || (changedKeys.isEmpty() && !statusChanged)) {
+            return;
+        }
+
+        for (String key : changedKeys) {
+            if (metadata.containsKey(key)) {
+                original.putMetaData(key, metadata.get(key));
+            } else if (original.metadata.containsKey(key)) {
+                original.metadata.remove(key);
+                original.metaDataChanged(key);
+            }
+        }
+
+        if (statusChanged) {
+            original.setStatus(status);
+        }
+
+        changedKeys.clear();
+        statusChanged = false;
+        original.saveNow();
     }
 
     /**
@@ -335,7 +613,7 @@ public class History {
      */
     public void save() {
         // if it was not modified, no point in saving it :-)
-        if (!modified || saving) {
+        if (!modified || saving || original != null) {
             return;
         }
 
@@ -361,10 +639,39 @@ public class History {
     }
 
     /**
-     * Force the history object to be saved immediately
+     * Save the history object as soon as possible. It is queued to be written with the next batch of history
+     * by the database thread, or written immediately if it cannot be queued. A full queue is written by the
+     * thread that filled it
      */
     public void saveNow() {
-        LWC.getInstance().getPhysicalDatabase().saveHistory(this);
+        // copies are applied to the history object they were copied from instead
+        if (original != null) {
+            return;
+        }
+
+        LWC lwc = LWC.getInstance();
+        DatabaseThread databaseThread = lwc.getDatabaseThread();
+
+        if (databaseThread != null) {
+            HistoryWriter writer = databaseThread.getHistoryWriter();
+
+            if (writer.queue(this)) {
+                if (writer.isFull() && !databaseThread.isCurrentThread()) {
+                    writer.flush(lwc.getPhysicalDatabase(), lwc.getPhysicalDatabase().getConnection());
+                }
+
+                return;
+            }
+        }
+
+        lwc.getPhysicalDatabase().saveHistory(this);
+        markSaved();
+    }
+
+    /**
+     * Mark the history object as written to the database
+     */
+    public void markSaved() {
         this.modified = false;
         this.saving = false;
     }
@@ -381,7 +688,20 @@ public class History {
      * TODO: broadcast an event
      */
     public void remove() {
-        LWC.getInstance().getPhysicalDatabase().removeHistory(id);
+        if (original != null) {
+            return;
+        }
+
+        LWC lwc = LWC.getInstance();
+        DatabaseThread databaseThread = lwc.getDatabaseThread();
+
+        // a queued history object must not be inserted after it was removed
+        if (databaseThread != null) {
+            databaseThread.getHistoryWriter().remove(this, lwc.getPhysicalDatabase());
+        } else {
+            lwc.getPhysicalDatabase().removeHistory(id);
+        }
+
         this.modified = false;
     }
 
@@ -418,7 +738,14 @@ public class History {
     }
 
     public String[] getMetaData() {
-        return metadata;
+        String[] result = new String[metadata.size()];
+        int index = 0;
+
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            result[index++] = toString(entry);
+        }
+
+        return result;
     }
 
     public long getTimestamp() {
@@ -464,11 +791,27 @@ public class History {
     public void setStatus(Status status) {
         this.status = status;
         this.modified = true;
+
+        if (original != null) {
+            statusChanged = true;
+        }
     }
 
     public void setMetaData(String[] metadata) {
-        this.metadata = metadata;
+        if (original != null) {
+            changedKeys.addAll(this.metadata.keySet());
+        }
+
+        this.metadata.clear();
+
+        for (String data : metadata) {
+            if (!data.isEmpty()) {
+                addMetaData(data);
+            }
+        }
+
         this.modified = true;
+        this.indexedMetaDataModified = true;
     }
 
     public void setTimestamp(long timestamp) {
@@ -28,6 +28,7 @@
 
 package com.griefcraft.model;
 
+import com.griefcraft.cache.AccessDecisionCache;
 import com.griefcraft.cache.ProtectionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
@@ -45,7 +46,9 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -126,6 +129,23 @@ public class Protection {
      */
     private final Set<Permission> permissions = new HashSet<Permission>();
 
+    /**
+     * The permissions indexed by type and then by their lower case name. Rebuilt from the permissions when
+     * it is null (it is reset whenever the permissions change)
+     */
+    private Map<Permission.Type, Map<String, Permission>> permissionIndex = null;
+
+    /**
+     * The sorted ids of the items that can be used as a key to the protection
+     */
+    private int[] itemKeys = null;
+
+    /**
+     * Changed whenever anything that decides who can access the protection changes, so cached access
+     * decisions made before the change are no longer used
+     */
+    private volatile long accessEpoch = AccessDecisionCache.nextProtectionEpoch();
+
     /**
      * List of flags enabled on the protection
      */
@@ -202,6 +222,11 @@ public class Protection {
      */
     private boolean removing = false;
 
+    /**
+     * If the protection is a read-only copy of a protection (see {@link #snapshot()})
+     */
+    private boolean snapshot = false;
+
     /**
      * True when the protection has been modified and should be saved
      */
@@ -276,6 +301,7 @@ public class Protection {
 
                 if (uuid != null) {
                     permission.setName(uuid.toString());
+                    invalidatePermissionIndex();
                     modified = true;
                     res = true;
                 }
@@ -418,8 +444,8 @@ public class Protection {
      * @return the related history for this protection, which is immutable
      */
     public Set<History> getRelatedHistory() {
-        // cache the database's history if we don't have any yet
-        if (historyCache.size() == 0) {
+        // cache the database's history if we don't have any yet; a snapshot already has copies of it
+        if (historyCache.size() == 0 && !snapshot) {
             historyCache.addAll(LWC.getInstance().getPhysicalDatabase().loadHistory(this));
         }
 
@@ -479,6 +505,7 @@ public class Protection {
 
         if (!flags.containsKey(flag.getType())) {
             flags.put(flag.getType(), flag);
+            invalidateHopperDecisions();
             modified = true;
             return true;
         }
@@ -498,6 +525,7 @@ public class Protection {
         }
 
         flags.remove(flag.getType());
+        invalidateHopperDecisions();
         this.modified = true;
     }
 
@@ -509,13 +537,107 @@ public class Protection {
      * @return the permissions the player has
      */
     public Permission.Access getAccess(String name, Permission.Type type) {
+        if (permissionIndex == null) {
+            buildPermissionIndex();
+        }
+
+        Map<String, Permission> byName = permissionIndex.get(type);
+
+        if (byName == null || name == null) {
+            return Permission.Access.NONE;
+        }
+
+        Permission permission = byName.get(name.toLowerCase());
+        return permission != null ? permission.getAccess() : Permission.Access.NONE;
+    }
+
+    /**
+     * Check if the given item can be used as a key to access the protection
+     *
+     * @param itemId
+     * @return
+     */
+    public boolean isItemKey(int itemId) {
+        if (permissionIndex == null) {
+            buildPermissionIndex();
+        }
+
+        return itemKeys.length > 0 && Arrays.binarySearch(itemKeys, itemId) >= 0;
+    }
+
+    /**
+     * @return true if any item can be used as a key to access the protection
+     */
+    public boolean hasItemKeys() {
+        if (permissionIndex == null) {
+            buildPermissionIndex();
+        }
+
+        return itemKeys.length > 0;
+    }
+
+    /**
+     * @return the current access epoch of the protection
+     */
+    public long getAccessEpoch() {
+        return accessEpoch;
+    }
+
+    /**
+     * Build the permission index and item keys from the permissions
+     */
+    private void buildPermissionIndex() {
+        Map<Permission.Type, Map<String, Permission>> index = new EnumMap<Permission.Type, Map<String, Permission>>(Permission.Type.class);
+        List<Integer> keys = new ArrayList<Integer>();
+
         for (Permission permission : permissions) {
-            if (permission.getType() == type && permission.getName().equalsIgnoreCase(name)) {
-                return permission.getAccess();
+            Permission.Type type = permission.getType();
+            String name = permission.getName();
+
+            if (type == null || name == null) {
+                continue;
+            }
+
+            Map<String, Permission> byName = index.get(type);
+
+            if (byName == null) {
+                byName = new HashMap<String, Permission>();
+                index.put(type, byName);
+            }
+
+            String key = name.toLowerCase();
+
+            if (!byName.containsKey(key)) {
+                byName.put(key, permission);
             }
+
+            if (type == Permission.Type.ITEM) {
+                try {
+                    keys.add(Integer.parseInt(name));
+                } catch (NumberFormatException e) {
+                    // not a valid item id, it can never match
+                }
+            }
+        }
+
+        int[] itemKeys = new int[keys.size()];
+
+        for (int i = 0; i < itemKeys.length; i++) {
+            itemKeys[i] = keys.get(i);
         }
 
-        return Permission.Access.NONE;
+        Arrays.sort(itemKeys);
+        this.itemKeys = itemKeys;
+        permissionIndex = index;
+    }
+
+    /**
+     * Reset the permission index so it is rebuilt on the next lookup
+     */
+    private void invalidatePermissionIndex() {
+        permissionIndex = null;
+        itemKeys = null;
+        accessEpoch = AccessDecisionCache.nextProtectionEpoch();
     }
 
     /**
@@ -536,6 +658,7 @@ public class Protection {
 
             if (permission.isVolatile()) {
                 iter.remove();
+                invalidatePermissionIndex();
             }
         }
     }
@@ -555,6 +678,7 @@ public class Protection {
 
         // now we can safely add it
         permissions.add(permission);
+        invalidatePermissionIndex();
         modified = true;
     }
 
@@ -576,6 +700,7 @@ public class Protection {
 
             if ((permission.getName().equals(name) || name.equals("*")) && permission.getType() == type) {
                 iter.remove();
+                invalidatePermissionIndex();
                 modified = true;
             }
         }
@@ -586,6 +711,7 @@ public class Protection {
      */
     public void removeAllPermissions() {
         permissions.clear();
+        invalidatePermissionIndex();
         modified = true;
     }
 
@@ -665,6 +791,11 @@ public class Protection {
             return;
         }
 
+        // keep the known owner counts in sync for protections that already exist
+        if (this.owner != null && this.blockId != blockId && id > 0 && LWC.getInstance().getPhysicalDatabase() != null) {
+            LWC.getInstance().getPhysicalDatabase().getOwnerProtectionCounts().move(this.owner, this.blockId, this.owner, blockId);
+        }
+
         this.blockId = blockId;
         this.modified = true;
     }
@@ -701,7 +832,13 @@ public class Protection {
             return;
         }
 
+        // keep the known owner counts in sync for protections that already exist
+        if (this.owner != null && !this.owner.equals(owner) && id > 0 && LWC.getInstance().getPhysicalDatabase() != null) {
+            LWC.getInstance().getPhysicalDatabase().getOwnerProtectionCounts().move(this.owner, blockId, owner, blockId);
+        }
+
         this.owner = owner;
+        invalidateHopperDecisions();
         this.modified = true;
     }
 
@@ -710,7 +847,13 @@ public class Protection {
             return;
         }
 
+        // keep the known protection counters in sync for protections that already exist
+        if (this.type != null && this.type != type && id > 0 && LWC.getInstance().getPhysicalDatabase() != null) {
+            LWC.getInstance().getPhysicalDatabase().changeProtectionCountType(this.type, type);
+        }
+
         this.type = type;
+        invalidateHopperDecisions();
         this.modified = true;
     }
 
@@ -781,7 +924,7 @@ public class Protection {
      * Remove the protection from the database
      */
     public void remove() {
-        if (removed) {
+        if (removed || snapshot) {
             return;
         }
 
@@ -813,23 +956,114 @@ public class Protection {
 
         // and now finally remove it from the database
         lwc.getDatabaseThread().removeProtection(this);
-        lwc.getPhysicalDatabase().removeProtection(id);
+        lwc.getPhysicalDatabase().removeProtection(this);
         removeCache();
     }
 
+    /**
+     * Copy the protection so it can be read off the main thread. The copy is never saved, removed or cached;
+     * changes to it are ignored. Its history objects are copies (see {@link History#copy()}) whose changes can be
+     * applied to the protection's history on the main thread. Must be called on the main thread
+     *
+     * @return a read-only copy of the protection
+     */
+    public Protection snapshot() {
+        Protection copy = new Protection();
+
+        copy.id = id;
+        copy.blockId = blockId;
+        copy.type = type;
+        copy.owner = owner;
+        copy.password = password;
+        copy.world = world;
+        copy.x = x;
+        copy.y = y;
+        copy.z = z;
+        copy.creation = creation;
+        copy.lastAccessed = lastAccessed;
+        copy.data.putAll(data);
+        copy.permissions.addAll(permissions);
+        copy.flags.putAll(flags);
+        copy.removed = removed;
+        copy.snapshot = true;
+
+        for (History history : getRelatedHistory()) {
+            History historyCopy = history.copy();
+            historyCopy.setProtection(copy);
+            copy.historyCache.add(historyCopy);
+        }
+
+        return copy;
+    }
+
+    /**
+     * @return true if the protection is a read-only copy of a protection
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true if the protection has been removed
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
     /**
      * Remove the protection from cache
      */
     public void removeCache() {
+        if (snapshot) {
+            return;
+        }
+
         LWC lwc = LWC.getInstance();
         lwc.getProtectionCache().removeProtection(this);
         radiusRemoveCache();
+        accessEpoch = AccessDecisionCache.nextProtectionEpoch();
+        forgetHopperDecisions();
+    }
+
+    /**
+     * Called when the protection changes. Hopper transfer decisions are only made on the main thread with cached
+     * protections, so they are only forgotten when the cached protection itself changes and not while a copy of it
+     * is being loaded or changed on another thread
+     */
+    private void invalidateHopperDecisions() {
+        // the same changes decide who can access the protection
+        accessEpoch = AccessDecisionCache.nextProtectionEpoch();
+
+        if (id <= 0 || snapshot || !Bukkit.isPrimaryThread()) {
+            return;
+        }
+
+        LWC lwc = LWC.getInstance();
+
+        if (lwc != null && lwc.getProtectionCache() != null && lwc.getProtectionCache().getProtectionById(id) == this) {
+            forgetHopperDecisions();
+        }
+    }
+
+    /**
+     * Forget any cached hopper transfer decisions that involve the protection. Only called on the main thread
+     */
+    private void forgetHopperDecisions() {
+        LWC lwc = LWC.getInstance();
+
+        if (!snapshot && id > 0 && lwc != null && lwc.getHopperTransferCache() != null && Bukkit.isPrimaryThread()) {
+            lwc.getHopperTransferCache().invalidate(this);
+        }
     }
 
     /**
      * Remove blocks around the protection in a radius of 3, to account for broken known / null blocks
      */
     public void radiusRemoveCache() {
+        if (snapshot) {
+            return;
+        }
+
         ProtectionCache cache = LWC.getInstance().getProtectionCache();
 
         for (int x = -3; x <= 3; x++) {
@@ -853,7 +1087,7 @@ public class Protection {
      * Queue the protection to be saved
      */
     public void save() {
-        if (removed) {
+        if (removed || snapshot) {
             return;
         }
 
@@ -864,7 +1098,7 @@ public class Protection {
      * Force a protection update to the live database
      */
     public void saveNow() {
-        if (removed) {
+        if (removed || snapshot) {
             return;
         }
 
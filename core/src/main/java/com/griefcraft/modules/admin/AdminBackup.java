@@ -30,10 +30,10 @@ package com.griefcraft.modules.admin;
 
 import com.griefcraft.io.Backup;
 import com.griefcraft.io.BackupManager;
+import com.griefcraft.io.BackupRegion;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCCommandEvent;
-import com.griefcraft.util.StringUtil;
 import org.bukkit.command.CommandSender;
 
 public class AdminBackup extends JavaModule {
@@ -68,24 +68,40 @@ public class AdminBackup extends JavaModule {
         String action = args[1].toLowerCase();
 
         if (action.equals("create")) {
+            if (args.length > 2 && args[2].equalsIgnoreCase("incremental")) {
+                lwc.getBackupManager().createIncrementalBackup();
+                sender.sendMessage("Incremental backup is being created now.");
+                return;
+            }
+
             // Dumb code for now
             Backup created = lwc.getBackupManager().createBackup();
             sender.sendMessage("Backup is being created now.");
         } else if (action.equals("restore")) {
             if (args.length < 3) {
-                lwc.sendSimpleUsage(sender, "/lwc admin backup restore <BackupName>");
+                lwc.sendSimpleUsage(sender, "/lwc admin backup restore <BackupName> [world]");
                 return;
             }
 
-            final String backupName = StringUtil.join(args, 2);
-            sender.sendMessage("Restoring backup " + backupName);
+            final String backupName = args[2];
+            final BackupRegion region = args.length > 3 ? new BackupRegion(args[3]) : null;
+            sender.sendMessage("Restoring backup " + backupName + (region == null ? "" : " in " + region.getWorld()));
 
             lwc.getPlugin().getServer().getScheduler().scheduleAsyncDelayedTask(lwc.getPlugin(), new Runnable() {
                 public void run() {
-                    BackupManager.Result result = lwc.getBackupManager().restoreBackup(backupName);
+                    BackupManager.Result result = lwc.getBackupManager().restoreBackup(backupName, region);
                     sender.sendMessage("Result: " + result);
                 }
             });
+        } else if (action.equals("status")) {
+            String progress = lwc.getBackupManager().getRestoreProgress();
+            sender.sendMessage(progress == null ? "No backup is being restored." : "Restoring: " + progress);
+        } else if (action.equals("cancel")) {
+            if (lwc.getBackupManager().cancelRestore()) {
+                sender.sendMessage("Cancelling the restore. What was restored so far is kept.");
+            } else {
+                sender.sendMessage("No backup is being restored.");
+            }
         }
     }
 
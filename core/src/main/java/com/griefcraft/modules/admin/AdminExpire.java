@@ -28,6 +28,7 @@
 
 package com.griefcraft.modules.admin;
 
+import com.griefcraft.jobs.RemoveProtectionsJob;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCCommandEvent;
@@ -74,16 +75,8 @@ public class AdminExpire extends JavaModule {
 
         int threshold = (int) ((System.currentTimeMillis() / 1000L) - time);
 
-        // remove the protections
-        int completed = lwc.fastRemoveProtections(sender, "last_accessed <= " + threshold + " AND last_accessed >= 0", shouldRemoveBlocks);
-
-        // reset the cache
-        if (completed > 0) {
-            LWC.getInstance().getPhysicalDatabase().precache();
-        }
-
-        lwc.sendLocale(sender, "protection.admin.expire.removed", "count", completed);
-
+        // remove the protections in the background; the job reports how many were removed
+        lwc.getJobManager().submit(RemoveProtectionsJob.expire(sender.getName(), threshold, shouldRemoveBlocks), sender);
     }
 
 }
\ No newline at end of file
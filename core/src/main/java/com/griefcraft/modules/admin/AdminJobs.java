@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.modules.admin;
+
+import com.griefcraft.jobs.Job;
+import com.griefcraft.jobs.JobManager;
+import com.griefcraft.jobs.JobRecord;
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.util.Colors;
+import org.bukkit.command.CommandSender;
+
+import java.util.List;
+
+public class AdminJobs extends JavaModule {
+
+    @Override
+    public void onCommand(LWCCommandEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+
+        if (!event.hasFlag("a", "admin")) {
+            return;
+        }
+
+        LWC lwc = event.getLWC();
+        CommandSender sender = event.getSender();
+        String[] args = event.getArgs();
+
+        if (!args[0].equals("jobs")) {
+            return;
+        }
+
+        // we have the right command
+        event.setCancelled(true);
+        JobManager manager = lwc.getJobManager();
+
+        if (args.length < 2) {
+            List<Job> jobs = manager.getJobs();
+
+            if (jobs.isEmpty()) {
+                sender.sendMessage(Colors.Yellow + "There are no jobs.");
+                return;
+            }
+
+            for (Job job : jobs) {
+                sendJob(sender, job);
+            }
+
+            return;
+        }
+
+        String action = args[1].toLowerCase();
+
+        if (args.length < 3 || !(action.equals("pause") || action.equals("resume") || action.equals("cancel"))) {
+            lwc.sendSimpleUsage(sender, "/lwc admin jobs [pause|resume|cancel <id>]");
+            return;
+        }
+
+        Job job;
+
+        try {
+            job = manager.getJob(Integer.parseInt(args[2]));
+        } catch (NumberFormatException e) {
+            job = null;
+        }
+
+        if (job == null) {
+            sender.sendMessage(Colors.Red + "No job has the id " + args[2]);
+            return;
+        }
+
+        boolean changed;
+
+        if (action.equals("pause")) {
+            changed = manager.pause(job);
+        } else if (action.equals("resume")) {
+            changed = manager.resume(job);
+        } else {
+            changed = manager.cancel(job);
+        }
+
+        if (changed) {
+            sendJob(sender, job);
+        } else {
+            sender.sendMessage(Colors.Red + "Job #" + job.getId() + " is " + job.getStatus().toString().toLowerCase() + " and can not be changed that way.");
+        }
+    }
+
+    /**
+     * Send a job's progress to a player
+     *
+     * @param sender
+     * @param job
+     */
+    private void sendJob(CommandSender sender, Job job) {
+        JobRecord record = job.getRecord();
+        String progress = record.getProcessed() + (record.getTotal() > 0 ? "/" + record.getTotal() : "");
+        String message = record.getMessage().isEmpty() ? "" : Colors.White + " - " + record.getMessage();
+
+        sender.sendMessage(Colors.Yellow + "#" + job.getId() + " " + Colors.White + job.getStatus().toString().toLowerCase() + " "
+                + Colors.Green + job.describe() + Colors.White + ": " + progress + " (" + job.getRate() + "/s)" + message);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.modules.admin;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.ModuleLoader;
+import com.griefcraft.scripting.ModuleProfiler;
+import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.util.Colors;
+import org.bukkit.command.CommandSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class AdminProfile extends JavaModule {
+
+    /**
+     * The amount of entries shown in-game
+     */
+    private static final int SHOWN_ENTRIES = 10;
+
+    @Override
+    public void onCommand(LWCCommandEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+
+        if (!event.hasFlag("a", "admin")) {
+            return;
+        }
+
+        LWC lwc = event.getLWC();
+        CommandSender sender = event.getSender();
+        String[] args = event.getArgs();
+
+        if (!args[0].equals("profile")) {
+            return;
+        }
+
+        // we have the right command
+        event.setCancelled(true);
+        ModuleProfiler profiler = lwc.getModuleLoader().getProfiler();
+
+        if (args.length < 2) {
+            sendResults(sender, profiler);
+            return;
+        }
+
+        String cmd = args[1].toLowerCase();
+
+        if (cmd.equals("start")) {
+            profiler.start();
+            sender.sendMessage(Colors.Green + "Module profiling started.");
+        } else if (cmd.equals("stop")) {
+            profiler.stop();
+            sender.sendMessage(Colors.Green + "Module profiling stopped.");
+        } else if (cmd.equals("reset")) {
+            profiler.reset();
+            sender.sendMessage(Colors.Green + "Module profiling results cleared.");
+        } else if (cmd.equals("export")) {
+            File file = new File(ModuleLoader.ROOT_PATH + "profile-" + System.currentTimeMillis() + ".csv");
+
+            try {
+                profiler.export(file);
+                sender.sendMessage(Colors.Green + "Exported module profiling results to: " + file.getAbsolutePath());
+            } catch (IOException e) {
+                sender.sendMessage("Error: " + e.getMessage());
+            }
+        } else {
+            lwc.sendSimpleUsage(sender, "/lwc admin profile <start|stop|reset|export>");
+        }
+    }
+
+    /**
+     * Send the slowest module handlers to a player
+     *
+     * @param sender
+     * @param profiler
+     */
+    private void sendResults(CommandSender sender, ModuleProfiler profiler) {
+        List<ModuleProfiler.Samples> samples = profiler.getSamples();
+
+        sender.sendMessage(Colors.Yellow + "Module profiling is " + (profiler.isEnabled() ? Colors.Green + "running" : Colors.Red + "stopped")
+                + Colors.Yellow + " (" + (profiler.getElapsed() / 1000) + "s sampled)");
+
+        if (samples.isEmpty()) {
+            sender.sendMessage(Colors.Yellow + "No samples. Use /lwc admin profile start");
+            return;
+        }
+
+        sender.sendMessage(Colors.Yellow + "Module / event: " + Colors.White + "calls, total, mean, p99, max");
+
+        for (int index = 0; index < Math.min(SHOWN_ENTRIES, samples.size()); index++) {
+            ModuleProfiler.Samples sample = samples.get(index);
+            String module = sample.getModule().substring(sample.getModule().lastIndexOf('.') + 1);
+
+            sender.sendMessage(Colors.Green + module + Colors.Yellow + " / " + sample.getEvent() + ": " + Colors.White
+                    + sample.getCount() + ", " + formatNanos(sample.getTotal()) + ", " + formatNanos(sample.getMean())
+                    + ", " + formatNanos(sample.getPercentile(0.99)) + ", " + formatNanos(sample.getMax()));
+        }
+    }
+
+    /**
+     * Format a duration in nanoseconds as milliseconds
+     *
+     * @param nanos
+     * @return
+     */
+    private String formatNanos(long nanos) {
+        return String.format("%.3fms", nanos / 1000000D);
+    }
+
+}
@@ -28,6 +28,7 @@
 
 package com.griefcraft.modules.admin;
 
+import com.griefcraft.jobs.RemoveProtectionsJob;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCCommandEvent;
@@ -69,12 +70,8 @@ public class AdminPurge extends JavaModule {
             if (toRemove.contains("'")) continue; // bad me
 
             // Remove all of them
-            lwc.fastRemoveProtectionsByPlayer(sender, toRemove, shouldRemoveBlocks);
-            lwc.sendLocale(sender, "protection.admin.purge.finalize", "player", toRemove);
+            lwc.getJobManager().submit(RemoveProtectionsJob.purge(sender.getName(), toRemove, shouldRemoveBlocks), sender);
         }
-
-        // reload the cache!
-        LWC.getInstance().getPhysicalDatabase().precache();
     }
 
 }
\ No newline at end of file
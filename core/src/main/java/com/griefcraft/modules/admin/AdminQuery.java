@@ -28,6 +28,7 @@
 
 package com.griefcraft.modules.admin;
 
+import com.griefcraft.jobs.RemoveProtectionsJob;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.JavaModule;
@@ -43,6 +44,11 @@ import java.sql.Statement;
 
 public class AdminQuery extends JavaModule {
 
+    /**
+     * The longest condition deleteprotections can save with its job
+     */
+    private static final int MAX_CONDITION_LENGTH = 255;
+
     @Override
     public void onCommand(LWCCommandEvent event) {
         if (event.isCancelled()) {
@@ -99,9 +105,13 @@ public class AdminQuery extends JavaModule {
                     int affected = statement.executeUpdate("UPDATE " + database.getPrefix() + "protections " + where);
                     sender.sendMessage(Colors.Green + "Affected rows: " + affected);
                 } else if (args[0].startsWith("delete")) {
-                    int affected = statement.executeUpdate("DELETE FROM " + database.getPrefix() + "protections WHERE " + where);
-                    sender.sendMessage(Colors.Green + "Affected rows: " + affected);
-                    database.precache();
+                    // the job is saved with the condition, which must fit in the jobs table
+                    if (where.length() > MAX_CONDITION_LENGTH) {
+                        sender.sendMessage(Colors.Red + "The condition is too long (max " + MAX_CONDITION_LENGTH + " characters).");
+                    } else {
+                        // removed in batches on the job thread so exactly the removed protections are evicted from the cache
+                        lwc.getJobManager().submit(RemoveProtectionsJob.query(sender.getName(), where), sender);
+                    }
                 } else if (args[0].startsWith("select")) {
                     ResultSet set = statement.executeQuery("SELECT * FROM " + database.getPrefix() + "protections WHERE " + where);
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.modules.admin;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.util.Colors;
+import com.griefcraft.util.HistoryRetention;
+import org.bukkit.command.CommandSender;
+
+public class AdminRetention extends JavaModule {
+
+    @Override
+    public void onCommand(LWCCommandEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+
+        if (!event.hasFlag("a", "admin")) {
+            return;
+        }
+
+        LWC lwc = event.getLWC();
+        CommandSender sender = event.getSender();
+        String[] args = event.getArgs();
+
+        if (!args[0].equals("retention")) {
+            return;
+        }
+
+        // we have the right command
+        event.setCancelled(true);
+        HistoryRetention retention = lwc.getDatabaseThread().getHistoryRetention();
+
+        if (args.length < 2) {
+            sendReport(sender, "Current run", retention.getCurrentReport());
+            sendReport(sender, "Last run", retention.getLastReport());
+            return;
+        }
+
+        if (args[1].equalsIgnoreCase("run")) {
+            retention.runNow();
+            sender.sendMessage(Colors.Green + "History retention will run shortly. The result is logged to the console.");
+        } else {
+            lwc.sendSimpleUsage(sender, "/lwc admin retention [run]");
+        }
+    }
+
+    /**
+     * Send the result of a retention run to a player
+     *
+     * @param sender
+     * @param name
+     * @param report
+     */
+    private void sendReport(CommandSender sender, String name, HistoryRetention.Report report) {
+        if (report == null) {
+            sender.sendMessage(Colors.Yellow + name + ": " + Colors.White + "none");
+            return;
+        }
+
+        long end = report.isRunning() ? System.currentTimeMillis() : report.getEnded();
+        String state = report.isRunning() ? "running" : (report.hasFailed() ? Colors.Red + "stopped early" : "finished");
+
+        sender.sendMessage(Colors.Yellow + name + ": " + Colors.White + state + Colors.White + ", " + report.getRows() + " rows (about "
+                + (report.getBytes() / 1024) + " KB) removed in " + ((end - report.getStarted()) / 1000) + "s");
+    }
+
+}
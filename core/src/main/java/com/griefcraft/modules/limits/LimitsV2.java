@@ -46,6 +46,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 public class LimitsV2 extends JavaModule {
 
@@ -82,9 +83,16 @@ public class LimitsV2 extends JavaModule {
     /**
      * A map mapping string representations of materials to their Material counterpart
      */
-    private final Map<String, Material> materialCache = new HashMap<String, Material>();
+    private static final Map<String, Material> materialCache = new HashMap<String, Material>();
 
-    {
+    /**
+     * The limits compiled for each online player. Players are weakly referenced so their limits are dropped when
+     * they quit. They are compiled again after the player joins, changes world or has their groups refreshed, and
+     * when the limits are reloaded
+     */
+    private final Map<Player, CompiledLimits> compiledLimits = Collections.synchronizedMap(new WeakHashMap<Player, CompiledLimits>());
+
+    static {
         for (Material material : Material.values()) {
             String materialName = LWC.normalizeMaterialName(material);
 
@@ -135,7 +143,7 @@ public class LimitsV2 extends JavaModule {
 
         @Override
         public int getProtectionCount(Player player, Material material) {
-            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player.getName());
+            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player);
         }
 
     }
@@ -154,7 +162,7 @@ public class LimitsV2 extends JavaModule {
 
         @Override
         public int getProtectionCount(Player player, Material material) {
-            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player.getName(), material.getId());
+            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player, material.getId());
         }
 
         /**
@@ -175,8 +183,47 @@ public class LimitsV2 extends JavaModule {
         @Override
         public int getProtectionCount(Player player, Material material) {
             LWC lwc = LWC.getInstance();
-            return lwc.getPhysicalDatabase().getProtectionCount(player.getName(), Material.SIGN_POST.getId())
-                    + lwc.getPhysicalDatabase().getProtectionCount(player.getName(), Material.WALL_SIGN.getId());
+            return lwc.getPhysicalDatabase().getProtectionCount(player, Material.SIGN_POST.getId())
+                    + lwc.getPhysicalDatabase().getProtectionCount(player, Material.WALL_SIGN.getId());
+        }
+
+    }
+
+    /**
+     * The limits that apply to a player, resolved for every material
+     */
+    private final class CompiledLimits {
+
+        /**
+         * The limits that apply to the player
+         */
+        private final List<Limit> limits;
+
+        /**
+         * The effective limit for each material, indexed by the material's ordinal
+         */
+        private final Limit[] effective = new Limit[Material.values().length];
+
+        /**
+         * The effective limit when no material is given
+         */
+        private final Limit defaultLimit;
+
+        public CompiledLimits(List<Limit> limits) {
+            this.limits = Collections.unmodifiableList(limits);
+            this.defaultLimit = LimitsV2.this.getEffectiveLimit(limits, null);
+
+            for (Material material : Material.values()) {
+                effective[material.ordinal()] = LimitsV2.this.getEffectiveLimit(limits, material);
+            }
+        }
+
+        /**
+         * @param material
+         * @return
+         */
+        public Limit getEffectiveLimit(Material material) {
+            return material == null ? defaultLimit : effective[material.ordinal()];
         }
 
     }
@@ -270,6 +317,7 @@ public class LimitsV2 extends JavaModule {
      */
     public void reload() {
         loadLimits();
+        compiledLimits.clear();
     }
 
     /**
@@ -339,6 +387,10 @@ public class LimitsV2 extends JavaModule {
         // Get the effective limit placed upon them
         int neverPassThisNumber = limit.getLimit();
 
+        if (neverPassThisNumber == UNLIMITED) {
+            return false;
+        }
+
         // get the amount of protections the player has
         int protections = limit.getProtectionCount(player, material);
 
@@ -362,7 +414,7 @@ public class LimitsV2 extends JavaModule {
                 continue;
             }
 
-            String[] split = permission.substring("lwc.protect.".length()).split(".");
+            String[] split = permission.substring("lwc.protect.".length()).split("\\.");
 
             if (split.length != 2) {
                 continue;
@@ -404,7 +456,45 @@ public class LimitsV2 extends JavaModule {
      * @return
      */
     public List<Limit> getPlayerLimits(Player player) {
-        LWC lwc = LWC.getInstance();
+        return getCompiledLimits(player).limits;
+    }
+
+    /**
+     * Forget the limits compiled for a player so they are compiled again the next time they are used. Called when
+     * the player's groups or permissions may have changed
+     *
+     * @param player
+     */
+    public void invalidate(Player player) {
+        compiledLimits.remove(player);
+    }
+
+    /**
+     * Get the limits compiled for a player, compiling them if they have not been yet
+     *
+     * @param player
+     * @return
+     */
+    private CompiledLimits getCompiledLimits(Player player) {
+        CompiledLimits compiled = compiledLimits.get(player);
+
+        if (compiled == null) {
+            List<String> groups = LWC.getInstance().getPermissions().getGroups(player);
+            compiled = new CompiledLimits(resolvePlayerLimits(player, groups));
+            compiledLimits.put(player, compiled);
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Resolve the list of limits that may apply to the player
+     *
+     * @param player
+     * @param groups the player's groups
+     * @return
+     */
+    private List<Limit> resolvePlayerLimits(Player player, List<String> groups) {
         List<Limit> limits = new LinkedList<Limit>();
 
         // get all of their own limits
@@ -428,7 +518,7 @@ public class LimitsV2 extends JavaModule {
         }
 
         // Look over the group limits
-        for (String group : lwc.getPermissions().getGroups(player)) {
+        for (String group : groups) {
             if (groupLimits.containsKey(group.toLowerCase())) {
                 for (Limit limit : groupLimits.get(group.toLowerCase())) {
                     // try to match one already inside what we found
@@ -468,7 +558,7 @@ public class LimitsV2 extends JavaModule {
      * @return
      */
     public Limit getEffectiveLimit(Player player, Material material) {
-        return getEffectiveLimit(getPlayerLimits(player), material);
+        return getCompiledLimits(player).getEffectiveLimit(material);
     }
 
     /**
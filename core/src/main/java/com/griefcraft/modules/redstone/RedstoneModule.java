@@ -36,7 +36,6 @@ import com.griefcraft.scripting.event.LWCRedstoneEvent;
 import com.griefcraft.util.ProtectionFinder;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
 import org.bukkit.entity.Player;
 
 public class RedstoneModule extends JavaModule {
@@ -54,8 +53,11 @@ public class RedstoneModule extends JavaModule {
         ProtectionFinder finder = protection.getProtectionFinder();
 
         if (finder != null) {
-            for (BlockState found : finder.getBlocks()) {
-                if (found.getType() == Material.STONE_PLATE || found.getType() == Material.WOOD_PLATE) {
+            for (int index = 0; index < finder.getBlockCount(); index++) {
+                Block found = finder.getBlock(index);
+                Material type = found.getType();
+
+                if (type == Material.STONE_PLATE || type == Material.WOOD_PLATE) {
                     // find a player that is using it
                     int x = found.getX();
                     int y = found.getY();
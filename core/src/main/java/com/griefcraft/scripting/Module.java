@@ -119,14 +119,15 @@ public interface Module {
     public void onRegisterProtection(LWCProtectionRegisterEvent event);
 
     /**
-     * Called after a protection is registered
+     * Called after a protection is registered. Runs off the main thread if the handler is marked {@link AsyncSafe}.
      *
      * @param event
      */
     public void onPostRegistration(LWCProtectionRegistrationPostEvent event);
 
     /**
-     * Called after a protection is removed (the Protection class given is immutable.)
+     * Called after a protection is removed (the Protection class given is immutable.) Runs off the main thread
+     * if the handler is marked {@link AsyncSafe}.
      *
      * @param event
      */
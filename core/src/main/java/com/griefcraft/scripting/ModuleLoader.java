@@ -31,6 +31,8 @@ package com.griefcraft.scripting;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCInfo;
+import com.griefcraft.model.History;
+import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.event.LWCAccessEvent;
 import com.griefcraft.scripting.event.LWCBlockInteractEvent;
 import com.griefcraft.scripting.event.LWCCommandEvent;
@@ -48,11 +50,20 @@ import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ModuleLoader {
@@ -171,11 +182,51 @@ public class ModuleLoader {
     private final Map<Plugin, List<MetaData>> pluginModules = Collections.synchronizedMap(new LinkedHashMap<Plugin, List<MetaData>>());
 
     /**
-     * A cache used to get a list of modules for any given event. Reflection is used to find which events modules implement.
-     * This was mainly added for backwards compatibility reasons (vs events to be individually registered). This still
-     * achieves the same effect by using reflection.
+     * The modules that handle each event, indexed by the event's ordinal. Reflection is used to find which events
+     * modules implement. This was mainly added for backwards compatibility reasons (vs events to be individually
+     * registered). The arrays are replaced, never modified, so events can be dispatched without copying them.
      */
-    private final Map<Event, List<Module>> fastModuleCache = new HashMap<Event, List<Module>>();
+    private volatile Module[][] handlers;
+
+    /**
+     * The modules that handle each event off the main thread (see {@link AsyncSafe}), indexed by the event's ordinal
+     */
+    private volatile Module[][] asyncHandlers;
+
+    /**
+     * The thread async event handlers are run on. Created when first needed
+     */
+    private ExecutorService asyncExecutor;
+
+    /**
+     * The event each module method parameter is dispatched for
+     */
+    private static final Map<Class<?>, Event> EVENT_PARAMETERS = new HashMap<Class<?>, Event>();
+
+    /**
+     * Used for events no module handles
+     */
+    private static final Module[] NO_MODULES = new Module[0];
+
+    static {
+        EVENT_PARAMETERS.put(LWCAccessEvent.class, Event.ACCESS_REQUEST);
+        EVENT_PARAMETERS.put(LWCBlockInteractEvent.class, Event.INTERACT_BLOCK);
+        EVENT_PARAMETERS.put(LWCCommandEvent.class, Event.COMMAND);
+        EVENT_PARAMETERS.put(LWCDropItemEvent.class, Event.DROP_ITEM);
+        EVENT_PARAMETERS.put(LWCProtectionDestroyEvent.class, Event.DESTROY_PROTECTION);
+        EVENT_PARAMETERS.put(LWCProtectionInteractEvent.class, Event.INTERACT_PROTECTION);
+        EVENT_PARAMETERS.put(LWCProtectionRegisterEvent.class, Event.REGISTER_PROTECTION);
+        EVENT_PARAMETERS.put(LWCProtectionRemovePostEvent.class, Event.POST_REMOVAL);
+        EVENT_PARAMETERS.put(LWCProtectionRegistrationPostEvent.class, Event.POST_REGISTRATION);
+        EVENT_PARAMETERS.put(LWCSendLocaleEvent.class, Event.SEND_LOCALE);
+        EVENT_PARAMETERS.put(LWCRedstoneEvent.class, Event.REDSTONE);
+        EVENT_PARAMETERS.put(LWCReloadEvent.class, Event.RELOAD_EVENT);
+    }
+
+    /**
+     * Times module event handlers when enabled
+     */
+    private final ModuleProfiler profiler = new ModuleProfiler();
 
     /**
      * Toasty caches for doesObjectOverrideMethod
@@ -191,9 +242,10 @@ public class ModuleLoader {
      * Populate the fast module cache
      */
     private void populateFastModuleCache() {
-        for (Event event : Event.values()) {
-            fastModuleCache.put(event, new ArrayList<Module>(10));
-        }
+        Module[][] handlers = new Module[Event.values().length][];
+        Arrays.fill(handlers, NO_MODULES);
+        this.handlers = handlers;
+        asyncHandlers = handlers.clone();
     }
 
     /**
@@ -216,6 +268,8 @@ public class ModuleLoader {
         }
         // The methods that are possible to implement
         Method[] methods = superclass.getDeclaredMethods();
+        Set<Event> events = EnumSet.noneOf(Event.class);
+        Set<Event> asyncEvents = EnumSet.noneOf(Event.class);
 
         // Now check each method to see if the module implements it
         for (Method method : methods) {
@@ -231,43 +285,120 @@ public class ModuleLoader {
                     continue;
                 }
 
-                // Start comparing on the parameter to find the event type
-                Event event = null;
-                Class<?> parameter = parameters[0];
-
-                if (parameter == LWCAccessEvent.class) {
-                    event = Event.ACCESS_REQUEST;
-                } else if (parameter == LWCBlockInteractEvent.class) {
-                    event = Event.INTERACT_BLOCK;
-                } else if (parameter == LWCCommandEvent.class) {
-                    event = Event.COMMAND;
-                } else if (parameter == LWCDropItemEvent.class) {
-                    event = Event.DROP_ITEM;
-                } else if (parameter == LWCProtectionDestroyEvent.class) {
-                    event = Event.DESTROY_PROTECTION;
-                } else if (parameter == LWCProtectionInteractEvent.class) {
-                    event = Event.INTERACT_PROTECTION;
-                } else if (parameter == LWCProtectionRegisterEvent.class) {
-                    event = Event.REGISTER_PROTECTION;
-                } else if (parameter == LWCProtectionRemovePostEvent.class) {
-                    event = Event.POST_REMOVAL;
-                } else if (parameter == LWCProtectionRegistrationPostEvent.class) {
-                    event = Event.POST_REGISTRATION;
-                } else if (parameter == LWCSendLocaleEvent.class) {
-                    event = Event.SEND_LOCALE;
-                } else if (parameter == LWCRedstoneEvent.class) {
-                    event = Event.REDSTONE;
-                } else if (parameter == LWCReloadEvent.class) {
-                    event = Event.RELOAD_EVENT;
-                }
+                Event event = EVENT_PARAMETERS.get(parameters[0]);
 
                 // ok!
                 if (event != null) {
-                    List<Module> modules = fastModuleCache.get(event);
-                    modules.add(module);
+                    if ((event == Event.POST_REGISTRATION || event == Event.POST_REMOVAL) && isAsyncSafe(module, method)) {
+                        asyncEvents.add(event);
+                    } else {
+                        events.add(event);
+                    }
                 }
             }
         }
+
+        if (events.isEmpty() && asyncEvents.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            handlers = addHandler(handlers, events, module);
+            asyncHandlers = addHandler(asyncHandlers, asyncEvents, module);
+        }
+    }
+
+    /**
+     * Add a module to the handlers of events
+     *
+     * @param handlers
+     * @param events
+     * @param module
+     * @return the updated handlers
+     */
+    private Module[][] addHandler(Module[][] handlers, Set<Event> events, Module module) {
+        if (events.isEmpty()) {
+            return handlers;
+        }
+
+        Module[][] updated = handlers.clone();
+
+        for (Event event : events) {
+            Module[] modules = updated[event.ordinal()];
+            Module[] added = Arrays.copyOf(modules, modules.length + 1);
+            added[modules.length] = module;
+            updated[event.ordinal()] = added;
+        }
+
+        return updated;
+    }
+
+    /**
+     * Check if a module's handler is marked as safe to run off the main thread
+     *
+     * @param module
+     * @param method the handler as declared by the module's superclass
+     * @return
+     */
+    private boolean isAsyncSafe(Module module, Method method) {
+        try {
+            return module.getClass().getMethod(method.getName(), method.getParameterTypes()).isAnnotationPresent(AsyncSafe.class);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remove modules from the fast cache
+     *
+     * @param removed
+     */
+    private void unregisterFastCache(Collection<Module> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            handlers = removeHandlers(handlers, removed);
+            asyncHandlers = removeHandlers(asyncHandlers, removed);
+        }
+    }
+
+    /**
+     * Remove modules from the handlers of every event
+     *
+     * @param handlers
+     * @param removed
+     * @return the updated handlers
+     */
+    private Module[][] removeHandlers(Module[][] handlers, Collection<Module> removed) {
+        Module[][] updated = handlers.clone();
+
+        for (int index = 0; index < updated.length; index++) {
+            List<Module> remaining = new ArrayList<Module>(updated[index].length);
+
+            for (Module module : updated[index]) {
+                if (!removed.contains(module)) {
+                    remaining.add(module);
+                }
+            }
+
+            if (remaining.size() != updated[index].length) {
+                updated[index] = remaining.isEmpty() ? NO_MODULES : remaining.toArray(new Module[remaining.size()]);
+            }
+        }
+
+        return updated;
+    }
+
+    /**
+     * Check if any module handles an event. Used to avoid creating events nothing will receive.
+     *
+     * @param event
+     * @return
+     */
+    public boolean hasListeners(Event event) {
+        return handlers[event.ordinal()].length > 0 || asyncHandlers[event.ordinal()].length > 0;
     }
 
     /**
@@ -315,7 +446,8 @@ public class ModuleLoader {
     }
 
     /**
-     * Dispatch an event
+     * Dispatch an event. Handlers marked {@link AsyncSafe} are run on the module worker thread after the other
+     * handlers have been called.
      *
      * @param event
      */
@@ -324,41 +456,217 @@ public class ModuleLoader {
             return;
         }
 
+        Module[] modules = handlers[event.getEventType().ordinal()];
+
+        if (modules.length > 0) {
+            if (profiler.isEnabled()) {
+                dispatchProfiledEvent(modules, event);
+            } else {
+                dispatchEvent(modules, event);
+            }
+        }
+
+        Module[] asyncModules = asyncHandlers[event.getEventType().ordinal()];
+
+        if (asyncModules.length > 0) {
+            dispatchAsyncEvent(asyncModules, event);
+        }
+    }
+
+    /**
+     * Dispatch an event to each module
+     *
+     * @param modules
+     * @param event
+     */
+    private void dispatchEvent(Module[] modules, LWCEvent event) {
         try {
-            List<Module> modules = fastModuleCache.get(event.getEventType());
-            Event type = event.getEventType();
             for (Module module : modules) {
-                if (type == Event.INTERACT_PROTECTION) {
-                    module.onProtectionInteract((LWCProtectionInteractEvent) event);
-                } else if (type == Event.INTERACT_BLOCK) {
-                    module.onBlockInteract((LWCBlockInteractEvent) event);
-                } else if (type == Event.SEND_LOCALE) {
-                    module.onSendLocale((LWCSendLocaleEvent) event);
-                } else if (type == Event.ACCESS_REQUEST) {
-                    module.onAccessRequest((LWCAccessEvent) event);
-                } else if (type == Event.COMMAND) {
-                    module.onCommand((LWCCommandEvent) event);
-                } else if (type == Event.DROP_ITEM) {
-                    module.onDropItem((LWCDropItemEvent) event);
-                } else if (type == Event.DESTROY_PROTECTION) {
-                    module.onDestroyProtection((LWCProtectionDestroyEvent) event);
-                }else if (type == Event.REGISTER_PROTECTION) {
-                    module.onRegisterProtection((LWCProtectionRegisterEvent) event);
-                } else if (type == Event.POST_REMOVAL) {
-                    module.onPostRemoval((LWCProtectionRemovePostEvent) event);
-                } else if (type == Event.POST_REGISTRATION) {
-                    module.onPostRegistration((LWCProtectionRegistrationPostEvent) event);
-                } else if (type == Event.REDSTONE) {
-                    module.onRedstone((LWCRedstoneEvent) event);
-                } else if (type == Event.RELOAD_EVENT) {
-                    module.onReload((LWCReloadEvent) event);
-                }
+                invoke(module, event);
+            }
+        } catch (Throwable throwable) {
+            throw new ModuleException("LWC Module threw an uncaught exception! LWC version: " + LWCInfo.FULL_VERSION, throwable);
+        }
+    }
+
+    /**
+     * Dispatch an event to each module while timing how long the module takes to handle it
+     *
+     * @param modules
+     * @param event
+     */
+    private void dispatchProfiledEvent(Module[] modules, LWCEvent event) {
+        Event type = event.getEventType();
+
+        try {
+            for (Module module : modules) {
+                long start = System.nanoTime();
+
+                invoke(module, event);
+
+                profiler.record(module, type, System.nanoTime() - start);
             }
         } catch (Throwable throwable) {
             throw new ModuleException("LWC Module threw an uncaught exception! LWC version: " + LWCInfo.FULL_VERSION, throwable);
         }
     }
 
+    /**
+     * Dispatch an event to modules on the module worker thread. The modules receive a copy of the event with a
+     * snapshot of the protection. Changes they make to the snapshot's history are then applied to the protection's
+     * history on the main thread
+     *
+     * @param modules
+     * @param event
+     */
+    private void dispatchAsyncEvent(final Module[] modules, LWCEvent event) {
+        final Protection protection = getProtection(event).snapshot();
+        final LWCEvent snapshot = snapshotEvent(event, protection);
+
+        getAsyncExecutor().execute(new Runnable() {
+            public void run() {
+                for (Module module : modules) {
+                    long start = System.nanoTime();
+
+                    try {
+                        invoke(module, snapshot);
+                    } catch (Throwable throwable) {
+                        logger.log(Level.SEVERE, "LWC Module threw an uncaught exception! LWC version: " + LWCInfo.FULL_VERSION, throwable);
+                    }
+
+                    if (profiler.isEnabled()) {
+                        profiler.record(module, snapshot.getEventType(), System.nanoTime() - start);
+                    }
+                }
+
+                Runnable apply = new Runnable() {
+                    public void run() {
+                        for (History history : protection.getRelatedHistory()) {
+                            history.applyCopy();
+                        }
+                    }
+                };
+
+                if (lwc.getPlugin().isEnabled()) {
+                    lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), apply);
+                } else {
+                    // LWC is shutting down and the main thread is waiting for the handlers to finish
+                    apply.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the protection of an event that can be handled off the main thread
+     *
+     * @param event
+     * @return
+     */
+    private Protection getProtection(LWCEvent event) {
+        switch (event.getEventType()) {
+            case POST_REGISTRATION:
+                return ((LWCProtectionRegistrationPostEvent) event).getProtection();
+
+            case POST_REMOVAL:
+                return ((LWCProtectionRemovePostEvent) event).getProtection();
+
+            default:
+                throw new IllegalArgumentException("Event cannot be handled off the main thread: " + event.getEventType());
+        }
+    }
+
+    /**
+     * Copy an event that can be handled off the main thread so it refers to a snapshot of its protection
+     *
+     * @param event
+     * @param snapshot
+     * @return
+     */
+    private LWCEvent snapshotEvent(LWCEvent event, Protection snapshot) {
+        switch (event.getEventType()) {
+            case POST_REGISTRATION:
+                return new LWCProtectionRegistrationPostEvent(snapshot);
+
+            case POST_REMOVAL:
+                return new LWCProtectionRemovePostEvent(snapshot);
+
+            default:
+                throw new IllegalArgumentException("Event cannot be handled off the main thread: " + event.getEventType());
+        }
+    }
+
+    /**
+     * @return the executor async event handlers are run on
+     */
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LWC Module Worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return asyncExecutor;
+    }
+
+    /**
+     * Call a module's handler for an event
+     *
+     * @param module
+     * @param event
+     */
+    private void invoke(Module module, LWCEvent event) {
+        switch (event.getEventType()) {
+            case INTERACT_PROTECTION:
+                module.onProtectionInteract((LWCProtectionInteractEvent) event);
+                break;
+            case INTERACT_BLOCK:
+                module.onBlockInteract((LWCBlockInteractEvent) event);
+                break;
+            case SEND_LOCALE:
+                module.onSendLocale((LWCSendLocaleEvent) event);
+                break;
+            case ACCESS_REQUEST:
+                module.onAccessRequest((LWCAccessEvent) event);
+                break;
+            case COMMAND:
+                module.onCommand((LWCCommandEvent) event);
+                break;
+            case DROP_ITEM:
+                module.onDropItem((LWCDropItemEvent) event);
+                break;
+            case DESTROY_PROTECTION:
+                module.onDestroyProtection((LWCProtectionDestroyEvent) event);
+                break;
+            case REGISTER_PROTECTION:
+                module.onRegisterProtection((LWCProtectionRegisterEvent) event);
+                break;
+            case POST_REMOVAL:
+                module.onPostRemoval((LWCProtectionRemovePostEvent) event);
+                break;
+            case POST_REGISTRATION:
+                module.onPostRegistration((LWCProtectionRegistrationPostEvent) event);
+                break;
+            case REDSTONE:
+                module.onRedstone((LWCRedstoneEvent) event);
+                break;
+            case RELOAD_EVENT:
+                module.onReload((LWCReloadEvent) event);
+                break;
+        }
+    }
+
+    /**
+     * @return the profiler for module event handlers
+     */
+    public ModuleProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Shutdown the plugin loader
      *
@@ -366,6 +674,24 @@ public class ModuleLoader {
      */
     public void shutdown() {
         pluginModules.clear();
+        populateFastModuleCache();
+
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+
+                // let queued handlers finish before the database is closed
+                try {
+                    if (!asyncExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                        logger.warning("Timed out waiting for async module handlers to finish");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                asyncExecutor = null;
+            }
+        }
     }
 
     /**
@@ -465,6 +791,9 @@ public class ModuleLoader {
 
         // Populate the fast cache
         registerFastCache(module);
+
+        // the module may decide access differently
+        lwc.getAccessDecisionCache().invalidateAll();
     }
 
     /**
@@ -473,7 +802,19 @@ public class ModuleLoader {
      * @param plugin
      */
     public void removeModules(Plugin plugin) {
-        pluginModules.remove(plugin);
+        List<MetaData> removed = pluginModules.remove(plugin);
+
+        if (removed != null) {
+            List<Module> modules = new ArrayList<Module>(removed.size());
+
+            for (MetaData metaData : removed) {
+                modules.add(metaData.getModule());
+            }
+
+            unregisterFastCache(modules);
+        }
+
+        lwc.getAccessDecisionCache().invalidateAll();
     }
 
 }
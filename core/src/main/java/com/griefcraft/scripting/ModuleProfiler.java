@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.scripting;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long each module spends handling each event. Profiling is off by default; when it is off the
+ * only cost to dispatching an event is checking {@link #isEnabled()}.
+ */
+public class ModuleProfiler {
+
+    /**
+     * The amount of histogram buckets. Bucket n holds handler calls that took less than 2^n nanoseconds
+     * (the last bucket holds anything slower)
+     */
+    public static final int BUCKETS = 40;
+
+    /**
+     * If handler calls are being timed
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * When profiling was last started
+     */
+    private long startedAt = 0;
+
+    /**
+     * The total time profiling has been enabled for, not counting the current run
+     */
+    private long elapsed = 0;
+
+    /**
+     * The samples for each module and event
+     */
+    private final Map<Key, Samples> samples = new HashMap<Key, Samples>();
+
+    /**
+     * @return true if handler calls are being timed
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start timing handler calls
+     */
+    public synchronized void start() {
+        if (!enabled) {
+            startedAt = System.currentTimeMillis();
+            enabled = true;
+        }
+    }
+
+    /**
+     * Stop timing handler calls. The samples are kept until {@link #reset()} is called
+     */
+    public synchronized void stop() {
+        if (enabled) {
+            enabled = false;
+            elapsed += System.currentTimeMillis() - startedAt;
+        }
+    }
+
+    /**
+     * Forget all samples
+     */
+    public synchronized void reset() {
+        samples.clear();
+        elapsed = 0;
+        startedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return how long profiling has been enabled for, in milliseconds
+     */
+    public synchronized long getElapsed() {
+        return enabled ? elapsed + System.currentTimeMillis() - startedAt : elapsed;
+    }
+
+    /**
+     * Record how long a module took to handle an event
+     *
+     * @param module
+     * @param event
+     * @param nanos
+     */
+    public synchronized void record(Module module, ModuleLoader.Event event, long nanos) {
+        Key key = new Key(module.getClass().getName(), event);
+        Samples sample = samples.get(key);
+
+        if (sample == null) {
+            sample = new Samples(key);
+            samples.put(key, sample);
+        }
+
+        sample.add(nanos);
+    }
+
+    /**
+     * Get a copy of the samples, the slowest (by total time) first
+     *
+     * @return
+     */
+    public synchronized List<Samples> getSamples() {
+        List<Samples> result = new ArrayList<Samples>(samples.size());
+
+        for (Samples sample : samples.values()) {
+            result.add(sample.copy());
+        }
+
+        Collections.sort(result, new Comparator<Samples>() {
+            public int compare(Samples o1, Samples o2) {
+                return Long.compare(o2.getTotal(), o1.getTotal());
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Write the samples to a CSV file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void export(File file) throws IOException {
+        List<Samples> samples = getSamples();
+        Writer writer = new FileWriter(file);
+
+        try {
+            writer.write("module,event,count,total_ns,min_ns,max_ns,mean_ns,p50_ns,p99_ns");
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                writer.write(",lt_2^" + bucket);
+            }
+
+            writer.write("\n");
+
+            for (Samples sample : samples) {
+                writer.write(sample.getModule() + "," + sample.getEvent() + "," + sample.getCount() + "," + sample.getTotal()
+                        + "," + sample.getMin() + "," + sample.getMax() + "," + sample.getMean()
+                        + "," + sample.getPercentile(0.5) + "," + sample.getPercentile(0.99));
+
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    writer.write("," + sample.getBucket(bucket));
+                }
+
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The timings for one module handling one event
+     */
+    public static class Samples {
+
+        private final Key key;
+        private final long[] histogram = new long[BUCKETS];
+        private long count = 0;
+        private long total = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        private Samples(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Add a sample
+         *
+         * @param nanos
+         */
+        private void add(long nanos) {
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+            histogram[Math.min(bucket, BUCKETS - 1)]++;
+            count++;
+            total += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * @return a copy of the samples
+         */
+        private Samples copy() {
+            Samples copy = new Samples(key);
+            System.arraycopy(histogram, 0, copy.histogram, 0, BUCKETS);
+            copy.count = count;
+            copy.total = total;
+            copy.min = min;
+            copy.max = max;
+            return copy;
+        }
+
+        /**
+         * @return the class name of the module
+         */
+        public String getModule() {
+            return key.module;
+        }
+
+        /**
+         * @return the event the module handled
+         */
+        public ModuleLoader.Event getEvent() {
+            return key.event;
+        }
+
+        /**
+         * @return the amount of times the module handled the event
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the total time the module spent handling the event, in nanoseconds
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the fastest the module handled the event, in nanoseconds
+         */
+        public long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        /**
+         * @return the slowest the module handled the event, in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the average time the module took to handle the event, in nanoseconds
+         */
+        public long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * Get the amount of samples in a histogram bucket
+         *
+         * @param bucket
+         * @return
+         */
+        public long getBucket(int bucket) {
+            return histogram[bucket];
+        }
+
+        /**
+         * Estimate a percentile from the histogram. The result is the upper bound of the bucket the percentile falls in
+         *
+         * @param percentile between 0 and 1
+         * @return the estimate in nanoseconds
+         */
+        public long getPercentile(double percentile) {
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += histogram[bucket];
+
+                if (seen >= target && seen > 0) {
+                    return Math.min(1L << bucket, max);
+                }
+            }
+
+            return max;
+        }
+
+    }
+
+    /**
+     * A module class and an event
+     */
+    private static final class Key {
+
+        private final String module;
+        private final ModuleLoader.Event event;
+
+        Key(String module, ModuleLoader.Event event) {
+            this.module = module;
+            this.event = event;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return event == other.event && module.equals(other.module);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * module.hashCode() + event.hashCode();
+        }
+
+    }
+
+}
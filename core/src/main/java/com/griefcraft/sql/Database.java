@@ -100,6 +100,11 @@ public abstract class Database {
      */
     protected Connection connection = null;
 
+    /**
+     * The JDBC drivers loaded for each engine, so each driver is only loaded once
+     */
+    private static final Map<Type, Driver> drivers = new HashMap<Type, Driver>();
+
     /**
      * The default database engine being used. This is set via config
      *
@@ -214,25 +219,29 @@ public abstract class Database {
             return false;
         }
 
-        // load the database jar
-        ClassLoader classLoader;
-
-        if (currentType == Type.SQLite) {
-            classLoader = new URLClassLoader(new URL[]{new URL("jar:file:" + new File(Updater.DEST_LIBRARY_FOLDER + currentType.getDriver()).getPath() + "!/")});
-        } else {
-            classLoader = Bukkit.getServer().getClass().getClassLoader();
-        }
+        // Connect to the database
+        try {
+            connection = openConnection();
+            connected = true;
+            return true;
+        } catch (SQLException e) {
+            log("Failed to connect to " + currentType + ": " + e.getErrorCode() + " - " + e.getMessage());
 
-        // What class should we try to load?
-        String className = "";
-        if (currentType == Type.MySQL) {
-            className = "com.mysql.jdbc.Driver";
-        } else {
-            className = "org.sqlite.JDBC";
+            if (e.getCause() != null) {
+                log("Connection failure cause: " + e.getCause().getMessage());
+            }
+            return false;
         }
+    }
 
-        // Load the driver class
-        Driver driver = (Driver) classLoader.loadClass(className).newInstance();
+    /**
+     * Open a new connection to the database, separate from the shared one. Threads that write in transactions of
+     * their own use one so other threads' queries are not made part of their transactions
+     *
+     * @return the connection, which the caller must close
+     */
+    public Connection openConnection() throws Exception {
+        Driver driver = loadDriver();
 
         // Create the properties to pass to the driver
         Properties properties = new Properties();
@@ -243,20 +252,65 @@ public abstract class Database {
             properties.put("autoReconnect", "true");
             properties.put("user", lwc.getConfiguration().getString("database.username"));
             properties.put("password", lwc.getConfiguration().getString("database.password"));
+        } else {
+            // wait for the other connections' transactions instead of failing
+            properties.put("busy_timeout", "10000");
         }
 
-        // Connect to the database
-        try {
-            connection = driver.connect("jdbc:" + currentType.toString().toLowerCase() + ":" + getDatabasePath(), properties);
-            connected = true;
-            return true;
-        } catch (SQLException e) {
-            log("Failed to connect to " + currentType + ": " + e.getErrorCode() + " - " + e.getMessage());
+        Connection connection = driver.connect("jdbc:" + currentType.toString().toLowerCase() + ":" + getDatabasePath(), properties);
 
-            if (e.getCause() != null) {
-                log("Connection failure cause: " + e.getCause().getMessage());
+        if (connection == null) {
+            throw new SQLException("The " + currentType + " driver did not accept the database path");
+        }
+
+        if (currentType == Type.SQLite) {
+            // let readers and the writer work at the same time, so only writes wait for the other connections
+            Statement statement = connection.createStatement();
+
+            try {
+                statement.execute("PRAGMA journal_mode=WAL");
+            } finally {
+                statement.close();
             }
-            return false;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Load the JDBC driver for the current database engine
+     *
+     * @return
+     */
+    private Driver loadDriver() throws Exception {
+        synchronized (drivers) {
+            Driver driver = drivers.get(currentType);
+
+            if (driver != null) {
+                return driver;
+            }
+
+            // load the database jar
+            ClassLoader classLoader;
+
+            if (currentType == Type.SQLite) {
+                classLoader = new URLClassLoader(new URL[]{new URL("jar:file:" + new File(Updater.DEST_LIBRARY_FOLDER + currentType.getDriver()).getPath() + "!/")});
+            } else {
+                classLoader = Bukkit.getServer().getClass().getClassLoader();
+            }
+
+            // What class should we try to load?
+            String className = "";
+            if (currentType == Type.MySQL) {
+                className = "com.mysql.jdbc.Driver";
+            } else {
+                className = "org.sqlite.JDBC";
+            }
+
+            // Load the driver class
+            driver = (Driver) classLoader.loadClass(className).newInstance();
+            drivers.put(currentType, driver);
+            return driver;
         }
     }
 
@@ -29,7 +29,10 @@
 package com.griefcraft.sql;
 
 import com.griefcraft.cache.LRUCache;
+import com.griefcraft.cache.OwnerProtectionCounts;
+import com.griefcraft.cache.ProtectedChunks;
 import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.jobs.JobRecord;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Flag;
 import com.griefcraft.model.History;
@@ -37,6 +40,7 @@ import com.griefcraft.model.Permission;
 import com.griefcraft.model.Protection;
 import com.griefcraft.modules.limits.LimitsModule;
 import com.griefcraft.scripting.Module;
+import com.griefcraft.util.DatabaseThread;
 import com.griefcraft.util.UUIDRegistry;
 import com.griefcraft.util.config.Configuration;
 import org.bukkit.Material;
@@ -45,15 +49,23 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class PhysDB extends Database {
 
@@ -62,6 +74,11 @@ public class PhysDB extends Database {
      */
     private final JSONParser jsonParser = new JSONParser();
 
+    /**
+     * The most protections written in one transaction on a connection of its own when using SQLite
+     */
+    private static final int SQLITE_TRANSACTION_SIZE = 100;
+
     /**
      * The database version
      */
@@ -70,7 +87,17 @@ public class PhysDB extends Database {
     /**
      * The number of protections that should exist
      */
-    private int protectionCount = 0;
+    private final AtomicInteger protectionCount = new AtomicInteger(0);
+
+    /**
+     * The number of protections that should exist for each protection type, indexed by the type's ordinal
+     */
+    private final AtomicIntegerArray protectionTypeCounts = new AtomicIntegerArray(Protection.Type.values().length);
+
+    /**
+     * The number of protections each loaded owner has
+     */
+    private final OwnerProtectionCounts ownerProtectionCounts = new OwnerProtectionCounts();
 
     public PhysDB() {
         super();
@@ -81,10 +108,247 @@ public class PhysDB extends Database {
     }
 
     /**
-     * Decrement the known protection counter
+     * Increment the known protection counters for a newly created protection
+     *
+     * @param type
+     */
+    public void incrementProtectionCount(Protection.Type type) {
+        protectionCount.incrementAndGet();
+
+        if (type != null) {
+            protectionTypeCounts.incrementAndGet(type.ordinal());
+        }
+    }
+
+    /**
+     * Decrement the known protection counters for a removed protection
+     *
+     * @param type the type of the removed protection, or null if it is not known
+     */
+    public void decrementProtectionCount(Protection.Type type) {
+        decrementProtectionCount(type, 1);
+    }
+
+    /**
+     * Decrement the known protection counters by the given amount of removed protections
+     *
+     * @param type the type of the removed protections, or null if it is not known
+     * @param amount
+     */
+    public void decrementProtectionCount(Protection.Type type, int amount) {
+        if (amount <= 0) {
+            return;
+        }
+
+        protectionCount.addAndGet(-amount);
+
+        if (type != null) {
+            protectionTypeCounts.addAndGet(type.ordinal(), -amount);
+        }
+    }
+
+    /**
+     * Move a protection from one type counter to another when its type is changed
+     *
+     * @param from
+     * @param to
+     */
+    public void changeProtectionCountType(Protection.Type from, Protection.Type to) {
+        if (from == null || to == null || from == to) {
+            return;
+        }
+
+        protectionTypeCounts.decrementAndGet(from.ordinal());
+        protectionTypeCounts.incrementAndGet(to.ordinal());
+    }
+
+    /**
+     * Reload the known protection counters from the database. This is done once when the database is
+     * loaded and then periodically to correct any drift caused by changes made outside of LWC.
+     *
+     * @return true if the counters were out of sync with the database
      */
-    public void decrementProtectionCount() {
-        protectionCount --;
+    public boolean reconcileProtectionCounts() {
+        int[] counts = new int[Protection.Type.values().length];
+        int total = 0;
+
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet set = statement.executeQuery("SELECT type, COUNT(*) AS count FROM " + prefix + "protections GROUP BY type");
+
+            while (set.next()) {
+                int type = set.getInt("type");
+                int count = set.getInt("count");
+
+                if (type >= 0 && type < counts.length) {
+                    counts[type] = count;
+                }
+
+                total += count;
+            }
+
+            set.close();
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+            return false;
+        }
+
+        boolean outOfSync = protectionCount.getAndSet(total) != total;
+
+        for (int index = 0; index < counts.length; index++) {
+            if (protectionTypeCounts.getAndSet(index, counts[index]) != counts[index]) {
+                outOfSync = true;
+            }
+        }
+
+        return outOfSync;
+    }
+
+    /**
+     * @return the number of protections each loaded owner has
+     */
+    public OwnerProtectionCounts getOwnerProtectionCounts() {
+        return ownerProtectionCounts;
+    }
+
+    /**
+     * Load the protection counts of the given owners from the database, replacing any that were loaded
+     *
+     * @param owners
+     */
+    public void loadOwnerProtectionCounts(Collection<String> owners) {
+        Map<String, Map<Integer, Integer>> counts = queryOwnerProtectionCounts(owners);
+
+        for (Map.Entry<String, Map<Integer, Integer>> entry : counts.entrySet()) {
+            ownerProtectionCounts.load(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Correct the protection counts of every loaded owner with the database. Owners that are unloaded in the
+     * meantime are not loaded again, and protections counted while the database is queried are kept.
+     */
+    public void reconcileOwnerProtectionCounts() {
+        List<String> owners = ownerProtectionCounts.getLoadedOwners();
+
+        for (int index = 0; index < owners.size(); index += 100) {
+            // take the known counts right before querying, so the difference is only what the database adds
+            List<OwnerProtectionCounts.Snapshot> snapshots = ownerProtectionCounts.snapshot(owners.subList(index, Math.min(owners.size(), index + 100)));
+            List<String> loaded = new ArrayList<String>(snapshots.size());
+
+            for (OwnerProtectionCounts.Snapshot snapshot : snapshots) {
+                loaded.add(snapshot.getOwner());
+            }
+
+            Map<String, Map<Integer, Integer>> counts = queryOwnerProtectionCounts(loaded);
+            Map<String, Map<Integer, Integer>> lowercase = new HashMap<String, Map<Integer, Integer>>();
+
+            for (Map.Entry<String, Map<Integer, Integer>> entry : counts.entrySet()) {
+                lowercase.put(entry.getKey().toLowerCase(), entry.getValue());
+            }
+
+            for (OwnerProtectionCounts.Snapshot snapshot : snapshots) {
+                Map<Integer, Integer> actual = lowercase.get(snapshot.getOwner().toLowerCase());
+
+                if (actual != null) {
+                    ownerProtectionCounts.reconcile(snapshot, actual);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the protections of the given owners of each block id
+     *
+     * @param owners
+     * @return the amount of protections of each block id, keyed by the owner as given. Empty if it failed
+     */
+    private Map<String, Map<Integer, Integer>> queryOwnerProtectionCounts(Collection<String> owners) {
+        Map<String, Map<Integer, Integer>> result = new HashMap<String, Map<Integer, Integer>>();
+
+        if (owners.isEmpty()) {
+            return result;
+        }
+
+        Map<String, Map<Integer, Integer>> counts = new HashMap<String, Map<Integer, Integer>>();
+        StringBuilder query = new StringBuilder("SELECT owner, blockId, COUNT(*) AS count FROM " + prefix + "protections WHERE owner IN (");
+
+        List<String> bind = new ArrayList<String>();
+
+        for (String owner : owners) {
+            if (counts.put(owner.toLowerCase(), new HashMap<Integer, Integer>()) == null) {
+                query.append(bind.isEmpty() ? "?" : ", ?");
+                bind.add(owner);
+            }
+        }
+
+        query.append(") GROUP BY owner, blockId");
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(query.toString());
+
+            for (int index = 0; index < bind.size(); index++) {
+                statement.setString(index + 1, bind.get(index));
+            }
+
+            ResultSet set = statement.executeQuery();
+
+            while (set.next()) {
+                Map<Integer, Integer> blockCounts = counts.get(set.getString("owner").toLowerCase());
+
+                if (blockCounts != null) {
+                    int blockId = set.getInt("blockId");
+                    Integer count = blockCounts.get(blockId);
+                    blockCounts.put(blockId, (count == null ? 0 : count) + set.getInt("count"));
+                }
+            }
+
+            set.close();
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+            return result;
+        }
+
+        for (String owner : bind) {
+            result.put(owner, counts.get(owner.toLowerCase()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Rebuild the set of chunks that contain protections from the database. This is done once when the
+     * database is loaded and then periodically to forget chunks whose protections have all been removed.
+     *
+     * @return true if the chunks were rebuilt
+     */
+    public boolean reloadProtectedChunks() {
+        ProtectedChunks protectedChunks = LWC.getInstance().getProtectionCache().getProtectedChunks();
+        String chunkX = currentType == Type.MySQL ? "FLOOR(x / 16)" : "(x >> 4)";
+        String chunkZ = currentType == Type.MySQL ? "FLOOR(z / 16)" : "(z >> 4)";
+
+        protectedChunks.beginRebuild();
+
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet set = statement.executeQuery("SELECT DISTINCT world, " + chunkX + " AS chunkX, " + chunkZ + " AS chunkZ FROM " + prefix + "protections");
+
+            while (set.next()) {
+                protectedChunks.addRebuiltChunk(set.getString("world"), set.getInt("chunkX"), set.getInt("chunkZ"));
+            }
+
+            set.close();
+            statement.close();
+        } catch (SQLException e) {
+            protectedChunks.abortRebuild();
+            printException(e);
+            return false;
+        }
+
+        protectedChunks.finishRebuild();
+        return true;
     }
 
     /**
@@ -95,7 +359,7 @@ public class PhysDB extends Database {
     public boolean hasAllProtectionsCached() {
         ProtectionCache cache = LWC.getInstance().getProtectionCache();
 
-        return cache.size() >= protectionCount;
+        return cache.size() >= protectionCount.get();
     }
 
     /**
@@ -132,20 +396,32 @@ public class PhysDB extends Database {
     }
 
     /**
-     * Get the total amount of protections
+     * Get the total amount of protections. This uses the known protection counter and does not query the database.
+     *
      * @return the number of protections
      */
     public int getProtectionCount() {
-        return Integer.decode(fetch("SELECT COUNT(*) AS count FROM " + prefix + "protections", "count").toString());
+        return protectionCount.get();
     }
 
     /**
-     * Get the amount of protections for the given protection type
+     * Get the amount of protections for the given protection type. This uses the known protection counters and
+     * does not query the database.
+     *
      * @param type
      * @return the number of protected chests
      */
     public int getProtectionCount(Protection.Type type) {
-        return Integer.decode(fetch("SELECT COUNT(*) AS count FROM " + prefix + "protections WHERE type = " + type.ordinal(), "count").toString());
+        return protectionTypeCounts.get(type.ordinal());
+    }
+
+    /**
+     * Count the total amount of protections directly in the database
+     *
+     * @return the number of protections
+     */
+    public int countProtections() {
+        return Integer.decode(fetch("SELECT COUNT(*) AS count FROM " + prefix + "protections", "count").toString());
     }
 
     /**
@@ -182,6 +458,49 @@ public class PhysDB extends Database {
         return count;
     }
 
+    /**
+     * Get the amount of protections an online player owns, by their UUID or their name. This uses the known
+     * owner counts, which are loaded from the database the first time they are needed.
+     *
+     * @param player
+     * @return the amount of protections they have
+     */
+    public int getProtectionCount(Player player) {
+        String uuid = player.getUniqueId().toString();
+        String name = player.getName();
+        loadOwnerProtectionCounts(uuid, name);
+
+        return Math.max(0, ownerProtectionCounts.get(uuid)) + Math.max(0, ownerProtectionCounts.get(name));
+    }
+
+    /**
+     * Get the amount of protections an online player owns of a specific block id, by their UUID or their name.
+     * This uses the known owner counts, which are loaded from the database the first time they are needed.
+     *
+     * @param player
+     * @param blockId
+     * @return the amount of protections they have of blockId
+     */
+    public int getProtectionCount(Player player, int blockId) {
+        String uuid = player.getUniqueId().toString();
+        String name = player.getName();
+        loadOwnerProtectionCounts(uuid, name);
+
+        return Math.max(0, ownerProtectionCounts.get(uuid, blockId)) + Math.max(0, ownerProtectionCounts.get(name, blockId));
+    }
+
+    /**
+     * Load the protection counts of a player's UUID and name if they are not loaded yet
+     *
+     * @param uuid
+     * @param name
+     */
+    private void loadOwnerProtectionCounts(String uuid, String name) {
+        if (!ownerProtectionCounts.isLoaded(uuid) || !ownerProtectionCounts.isLoaded(name)) {
+            loadOwnerProtectionCounts(Arrays.asList(uuid, name));
+        }
+    }
+
     /**
      * Get the amount of protections a player has
      *
@@ -325,6 +644,10 @@ public class PhysDB extends Database {
             column = new Column("last_accessed");
             column.setType("INTEGER");
             protections.add(column);
+
+            column = new Column("changed");
+            column.setType("BIGINT");
+            protections.add(column);
         }
 
         Table history = new Table(this, "history");
@@ -371,6 +694,122 @@ public class PhysDB extends Database {
             history.add(column);
         }
 
+        Table historyMeta = new Table(this, "history_meta");
+        {
+            column = new Column("historyId");
+            column.setType("INTEGER");
+            historyMeta.add(column);
+
+            column = new Column("name");
+            column.setType("VARCHAR(40)");
+            historyMeta.add(column);
+
+            column = new Column("value");
+            column.setType("VARCHAR(255)");
+            historyMeta.add(column);
+        }
+
+        Table historyArchive = new Table(this, "history_archive");
+        {
+            column = new Column("id");
+            column.setType("INTEGER");
+            column.setPrimary(true);
+            historyArchive.add(column);
+
+            // SQLite reuses the ids of removed history, so the archive cannot be keyed by them
+            column = new Column("historyId");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("protectionId");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("player");
+            column.setType("VARCHAR(255)");
+            historyArchive.add(column);
+
+            column = new Column("x");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("y");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("z");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("type");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("status");
+            column.setType("INTEGER");
+            historyArchive.add(column);
+
+            column = new Column("metadata");
+            column.setType("VARCHAR(255)");
+            historyArchive.add(column);
+
+            column = new Column("timestamp");
+            column.setType("long");
+            historyArchive.add(column);
+
+            column = new Column("archived");
+            column.setType("long");
+            historyArchive.add(column);
+        }
+
+        Table jobs = new Table(this, "jobs");
+        {
+            column = new Column("id");
+            column.setType("INTEGER");
+            column.setPrimary(true);
+            jobs.add(column);
+
+            column = new Column("type");
+            column.setType("VARCHAR(40)");
+            jobs.add(column);
+
+            column = new Column("status");
+            column.setType("INTEGER");
+            jobs.add(column);
+
+            column = new Column("arguments");
+            column.setType("VARCHAR(255)");
+            jobs.add(column);
+
+            column = new Column("checkpoint");
+            column.setType("VARCHAR(255)");
+            jobs.add(column);
+
+            column = new Column("processed");
+            column.setType("BIGINT");
+            jobs.add(column);
+
+            column = new Column("total");
+            column.setType("BIGINT");
+            jobs.add(column);
+
+            column = new Column("owner");
+            column.setType("VARCHAR(255)");
+            jobs.add(column);
+
+            column = new Column("message");
+            column.setType("VARCHAR(255)");
+            jobs.add(column);
+
+            column = new Column("created");
+            column.setType("BIGINT");
+            jobs.add(column);
+
+            column = new Column("updated");
+            column.setType("BIGINT");
+            jobs.add(column);
+        }
+
         Table internal = new Table(this, "internal");
         {
             column = new Column("name");
@@ -386,6 +825,9 @@ public class PhysDB extends Database {
 
         protections.execute();
         history.execute();
+        historyMeta.execute();
+        historyArchive.execute();
+        jobs.execute();
         internal.execute();
 
         // Load the database version
@@ -395,7 +837,10 @@ public class PhysDB extends Database {
         performDatabaseUpdates();
 
         // get the amount of protections
-        protectionCount = getProtectionCount();
+        reconcileProtectionCounts();
+
+        // find the chunks that contain protections
+        reloadProtectedChunks();
 
         loaded = true;
     }
@@ -489,6 +934,35 @@ public class PhysDB extends Database {
             incrementDatabaseVersion();
         }
 
+        if (databaseVersion == 6) {
+            log("Indexing history metadata (One time, may take a while!)");
+            createIndex("history_meta", "history_meta_main", "historyId");
+            createIndex("history_meta", "history_meta_value", "name, value");
+            indexExistingHistoryMetaData();
+            incrementDatabaseVersion();
+        }
+
+        if (databaseVersion == 7) {
+            // when each protection was last created or saved, used by incremental backups
+            addColumn(prefix + "protections", "changed", "BIGINT");
+            createIndex("protections", "protections_changed", "changed");
+            incrementDatabaseVersion();
+        }
+
+        if (databaseVersion == 8) {
+            // archived history is no longer keyed by its history id
+            if (!addColumn(prefix + "history_archive", "historyId", "INTEGER")) {
+                executeUpdateNoException("UPDATE " + prefix + "history_archive SET historyId = id");
+
+                if (currentType == Type.MySQL) {
+                    executeUpdateNoException("ALTER TABLE " + prefix + "history_archive MODIFY id INTEGER AUTO_INCREMENT");
+                }
+            }
+
+            createIndex("history_archive", "history_archive_main", "historyId");
+            incrementDatabaseVersion();
+        }
+
     }
 
     /**
@@ -936,6 +1410,48 @@ public class PhysDB extends Database {
         return null;
     }
 
+    /**
+     * Load the next protections after an id, in id order
+     *
+     * @param connection the connection to read with
+     * @param afterId only protections with a greater id are loaded
+     * @param count the most protections to load
+     * @param condition an extra condition the protections must match, or null
+     * @param parameters the condition's parameters
+     * @return
+     * @throws SQLException if the protections could not be read, so a job reading them fails instead of finishing
+     */
+    public List<Protection> loadProtectionsAfter(Connection connection, int afterId, int count, String condition, Object... parameters) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE id > ?"
+                + (condition == null ? "" : " AND (" + condition + ")") + " ORDER BY id LIMIT ?");
+
+        try {
+            int parameter = 1;
+            statement.setInt(parameter++, afterId);
+
+            for (Object value : parameters) {
+                statement.setObject(parameter++, value);
+            }
+
+            statement.setInt(parameter, count);
+            ResultSet set = statement.executeQuery();
+            List<Protection> protections = new ArrayList<Protection>();
+
+            while (set.next()) {
+                Protection protection = resolveProtection(set);
+
+                if (protection != null) {
+                    protections.add(protection);
+                }
+            }
+
+            set.close();
+            return protections;
+        } finally {
+            statement.close();
+        }
+    }
+
     /**
      * Load all protections (use sparingly !!)
      *
@@ -1146,7 +1662,7 @@ public class PhysDB extends Database {
         ProtectionCache cache = LWC.getInstance().getProtectionCache();
 
         try {
-            PreparedStatement statement = prepare("INSERT INTO " + prefix + "protections (blockId, type, world, owner, password, x, y, z, date, last_accessed) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            PreparedStatement statement = prepare("INSERT INTO " + prefix + "protections (blockId, type, world, owner, password, x, y, z, date, last_accessed, changed) VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
             statement.setInt(1, blockId);
             statement.setInt(2, type.ordinal());
@@ -1158,6 +1674,7 @@ public class PhysDB extends Database {
             statement.setInt(8, z);
             statement.setString(9, new Timestamp(new Date().getTime()).toString());
             statement.setLong(10, System.currentTimeMillis() / 1000L);
+            statement.setLong(11, System.currentTimeMillis());
 
             statement.executeUpdate();
 
@@ -1175,7 +1692,7 @@ public class PhysDB extends Database {
                 transaction.setStatus(History.Status.ACTIVE);
 
                 // store the player that created the protection
-                transaction.addMetaData("creator=" + player);
+                transaction.setString("creator", player);
 
                 // now sync the history object to the database
                 transaction.saveNow();
@@ -1184,7 +1701,11 @@ public class PhysDB extends Database {
             // Cache it
             if (protection != null) {
                 cache.addProtection(protection);
-                protectionCount ++;
+                incrementProtectionCount(type);
+                ownerProtectionCounts.add(player, blockId);
+
+                // transfers to or from the block may have been allowed because it was not protected
+                LWC.getInstance().getHopperTransferCache().invalidateLocation(world, x, y, z);
             }
 
             // return the newly created protection
@@ -1196,6 +1717,135 @@ public class PhysDB extends Database {
         return null;
     }
 
+    /**
+     * Insert a batch of new protections in short transactions, e.g when restoring a backup. Each protection is given
+     * its id. Unlike {@link #registerProtection(int, Protection.Type, String, String, String, int, int, int)} the
+     * protections are not cached; their data is written as-is. Any protections already cached at their locations
+     * are evicted on the main thread.
+     *
+     * @param connection the connection to write with, see {@link #openConnection()}
+     * @param protections
+     * @return the amount of protections inserted
+     */
+    public int registerProtections(Connection connection, List<Protection> protections) {
+        int inserted = 0;
+
+        for (List<Protection> transaction : splitTransactions(protections)) {
+            inserted += registerProtectionBatch(connection, transaction);
+        }
+
+        return inserted;
+    }
+
+    /**
+     * Insert a batch of new protections in one transaction
+     *
+     * @param connection
+     * @param protections
+     * @return the amount of protections inserted
+     */
+    private int registerProtectionBatch(Connection connection, List<Protection> protections) {
+        if (protections.isEmpty()) {
+            return 0;
+        }
+
+        LWC lwc = LWC.getInstance();
+        long changed = System.currentTimeMillis();
+        List<Protection> inserted = new ArrayList<Protection>(protections.size());
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO " + prefix + "protections (blockId, type, world, data, owner, password, x, y, z, date, last_accessed, changed) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+
+                for (Protection protection : protections) {
+                    statement.setInt(1, protection.getBlockId());
+                    statement.setInt(2, protection.getType().ordinal());
+                    statement.setString(3, protection.getWorld());
+                    statement.setString(4, protection.getData().toJSONString());
+                    statement.setString(5, protection.getOwner());
+                    statement.setString(6, protection.getPassword());
+                    statement.setInt(7, protection.getX());
+                    statement.setInt(8, protection.getY());
+                    statement.setInt(9, protection.getZ());
+                    statement.setString(10, protection.getCreation());
+                    statement.setLong(11, protection.getLastAccessed());
+                    statement.setLong(12, changed);
+
+                    if (currentType == Type.MySQL) {
+                        statement.addBatch();
+                    } else if (statement.executeUpdate() > 0) {
+                        // SQLite only returns the last key so insert them one at a time (still in one transaction)
+                        ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                        if (generatedKeys.next()) {
+                            protection.setId(generatedKeys.getInt(1));
+                            inserted.add(protection);
+                        }
+
+                        generatedKeys.close();
+                    }
+                }
+
+                if (currentType == Type.MySQL) {
+                    // MySQL returns the keys of every row in a batch
+                    statement.executeBatch();
+                    ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                    for (Protection protection : protections) {
+                        if (!generatedKeys.next()) {
+                            break;
+                        }
+
+                        protection.setId(generatedKeys.getInt(1));
+                        inserted.add(protection);
+                    }
+
+                    generatedKeys.close();
+                }
+
+                statement.close();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            printException(e);
+            return 0;
+        }
+
+        ProtectionCache cache = lwc.getProtectionCache();
+        List<History> transactions = new ArrayList<History>();
+
+        for (Protection protection : inserted) {
+            cache.getProtectedChunks().add(protection.getWorld(), protection.getX(), protection.getZ());
+            incrementProtectionCount(protection.getType());
+            ownerProtectionCounts.add(protection.getOwner(), protection.getBlockId());
+
+            if (lwc.isHistoryEnabled()) {
+                History transaction = protection.createHistoryObject();
+                transaction.setPlayer(protection.getOwner());
+                transaction.setType(History.Type.TRANSACTION);
+                transaction.setStatus(History.Status.ACTIVE);
+                transaction.setString("creator", protection.getOwner());
+                transactions.add(transaction);
+            }
+        }
+
+        if (!transactions.isEmpty()) {
+            saveHistory(connection, transactions);
+        }
+
+        // the blocks may be known as unprotected
+        cache.publishRegistrations(inserted);
+        return inserted.size();
+    }
+
     /**
      * Sync a History object to the database or save a newly created one
      *
@@ -1212,37 +1862,375 @@ public class PhysDB extends Database {
                 history.setTimestamp(System.currentTimeMillis() / 1000L);
             }
 
-            statement.setInt(1, history.getProtectionId());
-            statement.setString(2, history.getPlayer());
-            statement.setInt(3, history.getX());
-            statement.setInt(4, history.getY());
-            statement.setInt(5, history.getZ());
-            statement.setInt(6, history.getType().ordinal());
-            statement.setInt(7, history.getStatus().ordinal());
-            statement.setString(8, history.getSafeMetaData());
-            statement.setLong(9, history.getTimestamp());
+            bindHistory(statement, history);
+
+            int affectedRows = statement.executeUpdate();
+
+            // set the history id if inserting
+            if (!history.doesExist()) {
+                if (affectedRows > 0) {
+                    ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                    // get the key inserted
+                    if (generatedKeys.next()) {
+                        history.setId(generatedKeys.getInt(1));
+                    }
+
+                    generatedKeys.close();
+                }
+            }
+
+            if (history.isIndexedMetaDataModified() && history.doesExist()) {
+                saveIndexedMetaData(connection, Collections.singletonList(history));
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Write a batch of History objects to the database in one transaction. New history objects are given their id.
+     *
+     * @param connection the connection to write with, see {@link #openConnection()}
+     * @param histories
+     */
+    public void saveHistory(Connection connection, List<History> histories) {
+        List<History> inserts = new ArrayList<History>();
+        List<History> updates = new ArrayList<History>();
+
+        for (History history : histories) {
+            if (history.doesExist()) {
+                updates.add(history);
+            } else {
+                inserts.add(history);
+            }
+        }
+
+        long timestamp = System.currentTimeMillis() / 1000L;
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                if (!updates.isEmpty()) {
+                    PreparedStatement statement = connection.prepareStatement("UPDATE " + prefix + "history SET protectionId = ?, player = ?, x = ?, y = ?, z = ?, type = ?, status = ?, metadata = ?, timestamp = ? WHERE id = ?");
+
+                    for (History history : updates) {
+                        bindHistory(statement, history);
+                        statement.addBatch();
+                    }
+
+                    statement.executeBatch();
+                    statement.close();
+                }
+
+                if (!inserts.isEmpty()) {
+                    PreparedStatement statement = connection.prepareStatement("INSERT INTO " + prefix + "history (protectionId, player, x, y, z, type, status, metadata, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+
+                    for (History history : inserts) {
+                        history.setTimestamp(timestamp);
+                    }
+
+                    if (currentType == Type.MySQL) {
+                        // MySQL returns the keys of every row in a batch
+                        for (History history : inserts) {
+                            bindHistory(statement, history);
+                            statement.addBatch();
+                        }
+
+                        statement.executeBatch();
+                        ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                        for (History history : inserts) {
+                            if (!generatedKeys.next()) {
+                                break;
+                            }
+
+                            history.setId(generatedKeys.getInt(1));
+                        }
+
+                        generatedKeys.close();
+                    } else {
+                        // SQLite only returns the last key so insert them one at a time (still in one transaction)
+                        for (History history : inserts) {
+                            bindHistory(statement, history);
+
+                            if (statement.executeUpdate() > 0) {
+                                ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                                if (generatedKeys.next()) {
+                                    history.setId(generatedKeys.getInt(1));
+                                }
+
+                                generatedKeys.close();
+                            }
+                        }
+                    }
+
+                    statement.close();
+                }
+
+                List<History> indexed = new ArrayList<History>();
+
+                for (History history : histories) {
+                    if (history.isIndexedMetaDataModified() && history.doesExist()) {
+                        indexed.add(history);
+                    }
+                }
+
+                saveIndexedMetaData(connection, indexed);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+
+                // ids given out before the rollback are not valid
+                for (History history : inserts) {
+                    history.setExists(false);
+                }
+
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+
+            for (History history : histories) {
+                history.markSaved();
+            }
+        } catch (SQLException e) {
+            printException(e);
+
+            // the batch was rolled back, fall back to saving them one at a time
+            for (History history : histories) {
+                saveHistory(history);
+                history.markSaved();
+            }
+        }
+    }
+
+    /**
+     * Replace the rows in history_meta for the indexed metadata of History objects. Does not commit.
+     *
+     * @param connection
+     * @param histories
+     * @throws SQLException
+     */
+    private void saveIndexedMetaData(Connection connection, List<History> histories) throws SQLException {
+        if (histories.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement delete = connection.prepareStatement("DELETE FROM " + prefix + "history_meta WHERE historyId = ?");
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO " + prefix + "history_meta (historyId, name, value) VALUES (?, ?, ?)");
+        boolean inserted = false;
+
+        for (History history : histories) {
+            delete.setInt(1, history.getId());
+            delete.addBatch();
+
+            for (Map.Entry<String, String> entry : history.getMetaDataMap().entrySet()) {
+                if (entry.getValue() != null && History.INDEXED_KEYS.contains(entry.getKey())) {
+                    insert.setInt(1, history.getId());
+                    insert.setString(2, entry.getKey());
+                    insert.setString(3, entry.getValue());
+                    insert.addBatch();
+                    inserted = true;
+                }
+            }
+        }
+
+        delete.executeBatch();
+
+        if (inserted) {
+            insert.executeBatch();
+        }
+
+        delete.close();
+        insert.close();
+
+        for (History history : histories) {
+            history.markIndexedMetaDataSaved();
+        }
+    }
+
+    /**
+     * Fill history_meta from the metadata of the history already in the database
+     */
+    private void indexExistingHistoryMetaData() {
+        int lastId = 0;
+        int indexed = 0;
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                PreparedStatement select = connection.prepareStatement("SELECT id, metadata FROM " + prefix + "history WHERE id > ? ORDER BY id LIMIT 1000");
+
+                while (true) {
+                    select.setInt(1, lastId);
+                    ResultSet set = select.executeQuery();
+                    List<History> batch = new ArrayList<History>();
+
+                    while (set.next()) {
+                        History history = new History();
+                        history.setId(set.getInt("id"));
+                        history.setSafeMetaData(set.getString("metadata"));
+                        batch.add(history);
+                        lastId = history.getId();
+                    }
+
+                    set.close();
+
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+
+                    saveIndexedMetaData(connection, batch);
+                    connection.commit();
+                    indexed += batch.size();
+                }
+
+                select.close();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        log("Indexed the metadata of " + indexed + " history objects");
+    }
+
+    /**
+     * Count a player's history that has all of the given indexed metadata values
+     *
+     * @param player
+     * @param type
+     * @param status the status the history must have, or null for any status
+     * @param metadata the indexed metadata keys (see {@link History#INDEXED_KEYS}) and the values they must have
+     * @return
+     */
+    public int getHistoryCount(String player, History.Type type, History.Status status, Map<String, String> metadata) {
+        if (!LWC.getInstance().isHistoryEnabled()) {
+            return 0;
+        }
+
+        // history waiting to be written is counted as it is now instead of as it is in the database
+        List<History> queued = Collections.emptyList();
+        DatabaseThread databaseThread = LWC.getInstance().getDatabaseThread();
+
+        if (databaseThread != null) {
+            queued = databaseThread.getHistoryWriter().getQueued(player, type);
+        }
+
+        List<Integer> queuedIds = new ArrayList<Integer>();
+        int queuedCount = 0;
+
+        for (History history : queued) {
+            if (history.doesExist()) {
+                queuedIds.add(history.getId());
+            }
+
+            if (matchesHistory(history, status, metadata)) {
+                queuedCount++;
+            }
+        }
+
+        StringBuilder query = new StringBuilder("SELECT COUNT(*) AS count FROM " + prefix + "history h");
+
+        for (int index = 0; index < metadata.size(); index++) {
+            query.append(" INNER JOIN ").append(prefix).append("history_meta m").append(index)
+                    .append(" ON m").append(index).append(".historyId = h.id AND m").append(index)
+                    .append(".name = ? AND m").append(index).append(".value = ?");
+        }
+
+        query.append(" WHERE LOWER(h.player) = LOWER(?) AND h.type = ?");
+
+        if (status != null) {
+            query.append(" AND h.status = ?");
+        }
+
+        for (int index = 0; index < queuedIds.size(); index++) {
+            query.append(index == 0 ? " AND h.id NOT IN (" : ", ").append(queuedIds.get(index));
+        }
+
+        if (!queuedIds.isEmpty()) {
+            query.append(")");
+        }
+
+        try {
+            PreparedStatement statement = prepare(query.toString());
+            int parameter = 1;
+
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                statement.setString(parameter++, entry.getKey());
+                statement.setString(parameter++, entry.getValue());
+            }
+
+            statement.setString(parameter++, player);
+            statement.setInt(parameter++, type.ordinal());
+
+            if (status != null) {
+                statement.setInt(parameter, status.ordinal());
+            }
+
+            ResultSet set = statement.executeQuery();
+            int count = set.next() ? set.getInt("count") : 0;
+            set.close();
+
+            return count + queuedCount;
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return queuedCount;
+    }
+
+    /**
+     * Check if a history object has a status and all of the given metadata values
+     *
+     * @param history
+     * @param status the status the history must have, or null for any status
+     * @param metadata
+     * @return
+     */
+    private boolean matchesHistory(History history, History.Status status, Map<String, String> metadata) {
+        if (status != null && history.getStatus() != status) {
+            return false;
+        }
+
+        Map<String, String> values = history.getMetaDataMap();
 
-            if (history.doesExist()) {
-                statement.setInt(10, history.getId());
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (!entry.getValue().equals(values.get(entry.getKey()))) {
+                return false;
             }
+        }
 
-            int affectedRows = statement.executeUpdate();
-
-            // set the history id if inserting
-            if (!history.doesExist()) {
-                if (affectedRows > 0) {
-                    ResultSet generatedKeys = statement.getGeneratedKeys();
+        return true;
+    }
 
-                    // get the key inserted
-                    if (generatedKeys.next()) {
-                        history.setId(generatedKeys.getInt(1));
-                    }
+    /**
+     * Bind the values of a History object to an INSERT or UPDATE statement
+     *
+     * @param statement
+     * @param history
+     * @throws SQLException
+     */
+    private void bindHistory(PreparedStatement statement, History history) throws SQLException {
+        statement.setInt(1, history.getProtectionId());
+        statement.setString(2, history.getPlayer());
+        statement.setInt(3, history.getX());
+        statement.setInt(4, history.getY());
+        statement.setInt(5, history.getZ());
+        statement.setInt(6, history.getType().ordinal());
+        statement.setInt(7, history.getStatus().ordinal());
+        statement.setString(8, history.getSafeMetaData());
+        statement.setLong(9, history.getTimestamp());
 
-                    generatedKeys.close();
-                }
-            }
-        } catch (SQLException e) {
-            printException(e);
+        if (history.doesExist()) {
+            statement.setInt(10, history.getId());
         }
     }
 
@@ -1263,6 +2251,25 @@ public class PhysDB extends Database {
        }
     }
 
+    /**
+     * Invalidate all history for the given player, using a connection other than the shared one
+     *
+     * @param connection
+     * @param player
+     */
+    public void invalidateHistory(Connection connection, String player) {
+        try {
+            PreparedStatement statement = connection.prepareStatement("UPDATE " + prefix + "history SET status = ? WHERE Lower(player) = Lower(?)");
+            statement.setInt(1, History.Status.INACTIVE.ordinal());
+            statement.setString(2, player);
+
+            statement.executeUpdate();
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
     /**
      * Resolve 1 history object from the result set but do not close it
      *
@@ -1281,7 +2288,7 @@ public class PhysDB extends Database {
         String player = set.getString("player");
         int type_ord = set.getInt("type");
         int status_ord = set.getInt("status");
-        String[] metadata = set.getString("metadata").split(",");
+        String metadata = set.getString("metadata");
         long timestamp = set.getLong("timestamp");
 
         History.Type type = History.Type.values()[type_ord];
@@ -1295,7 +2302,8 @@ public class PhysDB extends Database {
         history.setY(y);
         history.setZ(z);
         history.setStatus(status);
-        history.setMetaData(metadata);
+        history.setSafeMetaData(metadata);
+        history.markIndexedMetaDataSaved();
         history.setTimestamp(timestamp);
 
         return history;
@@ -1320,11 +2328,41 @@ public class PhysDB extends Database {
 
             ResultSet set = statement.executeQuery();
 
+            // history that is waiting to be written is newer than what is in the database
+            Map<Integer, History> queuedById = new HashMap<Integer, History>();
+            List<History> queuedNew = new ArrayList<History>();
+            DatabaseThread databaseThread = LWC.getInstance().getDatabaseThread();
+
+            if (databaseThread != null) {
+                for (History queued : databaseThread.getHistoryWriter().getQueued(protection.getId())) {
+                    if (queued.doesExist()) {
+                        queuedById.put(queued.getId(), queued);
+                    } else {
+                        queuedNew.add(queued);
+                    }
+                }
+            }
+
+            // queued history that has not been inserted yet is the newest
+            for (History queued : queuedNew) {
+                protection.checkHistory(queued);
+                temp.add(queued);
+            }
+
             while (set.next()) {
-                History history = resolveHistory(protection.createHistoryObject(), set);
+                History history = resolveHistory(new History(), set);
 
                 if (history != null) {
+                    History queued = queuedById.get(history.getId());
+
+                    if (queued != null) {
+                        history = queued;
+                    } else {
+                        history.setProtection(protection);
+                    }
+
                     // seems ok
+                    protection.checkHistory(history);
                     temp.add(history);
                 }
             }
@@ -1659,7 +2697,7 @@ public class PhysDB extends Database {
      */
     public void saveProtection(Protection protection) {
         try {
-            PreparedStatement statement = prepare("REPLACE INTO " + prefix + "protections (id, type, blockId, world, data, owner, password, x, y, z, date, last_accessed) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            PreparedStatement statement = prepare("REPLACE INTO " + prefix + "protections (id, type, blockId, world, data, owner, password, x, y, z, date, last_accessed, changed) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
             statement.setInt(1, protection.getId());
             statement.setInt(2, protection.getType().ordinal());
@@ -1673,38 +2711,189 @@ public class PhysDB extends Database {
             statement.setInt(10, protection.getZ());
             statement.setString(11, protection.getCreation());
             statement.setLong(12, protection.getLastAccessed());
+            statement.setLong(13, System.currentTimeMillis());
 
             statement.executeUpdate();
+
+            // the protection may have been moved or restored
+            LWC.getInstance().getProtectionCache().getProtectedChunks().add(protection.getWorld(), protection.getX(), protection.getZ());
         } catch (SQLException e) {
             printException(e);
         }
     }
 
+    /**
+     * Free a chest from protection
+     *
+     * @param protection the protection
+     */
+    public void removeProtection(Protection protection) {
+        int removed = deleteProtection(protection.getId());
+        decrementProtectionCount(protection.getType(), removed);
+
+        if (removed > 0) {
+            ownerProtectionCounts.remove(protection.getOwner(), protection.getBlockId());
+        }
+    }
+
     /**
      * Free a chest from protection
      *
      * @param protectionId the protection Id
      */
     public void removeProtection(int protectionId) {
+        // look up the protection so its owner's counts are kept, without caching it
+        Protection protection = LWC.getInstance().getProtectionCache().getProtectionById(protectionId);
+
+        if (protection == null) {
+            try {
+                PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE id = ?");
+                statement.setInt(1, protectionId);
+
+                protection = resolveProtection(statement);
+            } catch (SQLException e) {
+                printException(e);
+            }
+        }
+
+        if (protection != null) {
+            removeProtection(protection);
+        }
+
+        // removeProtectionHistory(protectionId);
+    }
+
+    /**
+     * Remove a batch of protections in short transactions, keeping the protection counts and the cache up to date.
+     * Their active transactions are marked as inactive.
+     *
+     * @param connection the connection to write with, see {@link #openConnection()}
+     * @param protections
+     * @return the amount of protections removed
+     */
+    public int removeProtections(Connection connection, List<Protection> protections) {
+        int removed = 0;
+
+        for (List<Protection> transaction : splitTransactions(protections)) {
+            removed += removeProtectionBatch(connection, transaction);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Remove a batch of protections in one transaction
+     *
+     * @param connection
+     * @param protections
+     * @return the amount of protections removed
+     */
+    private int removeProtectionBatch(Connection connection, List<Protection> protections) {
+        if (protections.isEmpty()) {
+            return 0;
+        }
+
+        int[] results;
+
         try {
-            PreparedStatement statement = prepare("DELETE FROM " + prefix + "protections WHERE id = ?");
-            statement.setInt(1, protectionId);
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
 
-            int affected = statement.executeUpdate();
+            try {
+                PreparedStatement statement = connection.prepareStatement("DELETE FROM " + prefix + "protections WHERE id = ?");
+                PreparedStatement history = connection.prepareStatement("UPDATE " + prefix + "history SET status = ? WHERE protectionId = ? AND status = ?");
+
+                for (Protection protection : protections) {
+                    statement.setInt(1, protection.getId());
+                    statement.addBatch();
+
+                    // mark related transactions as inactive
+                    history.setInt(1, History.Status.INACTIVE.ordinal());
+                    history.setInt(2, protection.getId());
+                    history.setInt(3, History.Status.ACTIVE.ordinal());
+                    history.addBatch();
+                }
 
-            if (affected >= 1) {
-                protectionCount -= affected;
+                results = statement.executeBatch();
+                history.executeBatch();
+                statement.close();
+                history.close();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
         } catch (SQLException e) {
             printException(e);
+            return 0;
         }
 
-        // removeProtectionHistory(protectionId);
+        List<Protection> removed = new ArrayList<Protection>(protections.size());
+
+        for (int index = 0; index < protections.size(); index++) {
+            Protection protection = protections.get(index);
+
+            // drivers may not report the count of each statement in a batch
+            if (index < results.length && results[index] == 0) {
+                continue;
+            }
+
+            decrementProtectionCount(protection.getType());
+            ownerProtectionCounts.remove(protection.getOwner(), protection.getBlockId());
+            removed.add(protection);
+        }
+
+        // evict only the removed protections from the cache
+        LWC.getInstance().getProtectionCache().publishRemovals(removed);
+        return removed.size();
+    }
+
+    /**
+     * Split a batch of protections into the transactions it is written in. SQLite has one writer at a time, so its
+     * transactions are kept short to not hold up the writes of the main thread
+     *
+     * @param protections
+     * @return the protections of each transaction
+     */
+    private List<List<Protection>> splitTransactions(List<Protection> protections) {
+        int size = currentType == Type.SQLite ? SQLITE_TRANSACTION_SIZE : Math.max(1, protections.size());
+        List<List<Protection>> transactions = new ArrayList<List<Protection>>();
+
+        for (int index = 0; index < protections.size(); index += size) {
+            transactions.add(protections.subList(index, Math.min(protections.size(), index + size)));
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Delete a protection row from the database
+     *
+     * @param protectionId
+     * @return the amount of rows removed
+     */
+    private int deleteProtection(int protectionId) {
+        try {
+            PreparedStatement statement = prepare("DELETE FROM " + prefix + "protections WHERE id = ?");
+            statement.setInt(1, protectionId);
+
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return 0;
     }
 
     public void removeProtectionHistory(int protectionId) {
         try {
-            PreparedStatement statement = prepare("DELETE FROM " + prefix + "history WHERE protectionId = ?");
+            PreparedStatement statement = prepare("DELETE FROM " + prefix + "history_meta WHERE historyId IN (SELECT id FROM " + prefix + "history WHERE protectionId = ?)");
+            statement.setInt(1, protectionId);
+            statement.executeUpdate();
+
+            statement = prepare("DELETE FROM " + prefix + "history WHERE protectionId = ?");
             statement.setInt(1, protectionId);
 
             statement.executeUpdate();
@@ -1715,7 +2904,11 @@ public class PhysDB extends Database {
 
     public void removeHistory(int historyId) {
         try {
-            PreparedStatement statement = prepare("DELETE FROM " + prefix + "history WHERE id = ?");
+            PreparedStatement statement = prepare("DELETE FROM " + prefix + "history_meta WHERE historyId = ?");
+            statement.setInt(1, historyId);
+            statement.executeUpdate();
+
+            statement = prepare("DELETE FROM " + prefix + "history WHERE id = ?");
             statement.setInt(1, historyId);
 
             statement.executeUpdate();
@@ -1724,6 +2917,256 @@ public class PhysDB extends Database {
         }
     }
 
+    /**
+     * Load the oldest history with the given status and type that was created before the given time
+     *
+     * @param connection the connection to read with
+     * @param status the status the history must have, or null for any status
+     * @param type the type the history must have, or null for any type
+     * @param before the time (in seconds) the history must have been created before
+     * @param afterId only history with an id greater than this is loaded
+     * @param count the maximum amount of history to load
+     * @return
+     */
+    public List<History> loadExpiredHistory(Connection connection, History.Status status, History.Type type, long before, int afterId, int count) {
+        List<History> temp = new ArrayList<History>();
+        StringBuilder query = new StringBuilder("SELECT * FROM " + prefix + "history WHERE id > ? AND timestamp < ?");
+
+        if (status != null) {
+            query.append(" AND status = ?");
+        }
+
+        if (type != null) {
+            query.append(" AND type = ?");
+        }
+
+        query.append(" ORDER BY id LIMIT ?");
+
+        try {
+            PreparedStatement statement = connection.prepareStatement(query.toString());
+            int parameter = 1;
+            statement.setInt(parameter++, afterId);
+            statement.setLong(parameter++, before);
+
+            if (status != null) {
+                statement.setInt(parameter++, status.ordinal());
+            }
+
+            if (type != null) {
+                statement.setInt(parameter++, type.ordinal());
+            }
+
+            statement.setInt(parameter, count);
+            ResultSet set = statement.executeQuery();
+
+            while (set.next()) {
+                History history = resolveHistory(new History(), set);
+
+                if (history != null) {
+                    temp.add(history);
+                }
+            }
+
+            set.close();
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return temp;
+    }
+
+    /**
+     * Remove a batch of history in one transaction, optionally copying it into the history_archive table first
+     *
+     * @param connection the connection to write with, see {@link #openConnection()}
+     * @param histories
+     * @param archive true to copy the history into history_archive before removing it
+     * @return true if the history was removed
+     */
+    public boolean removeHistory(Connection connection, List<History> histories, boolean archive) {
+        if (histories.isEmpty()) {
+            return true;
+        }
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                if (archive) {
+                    PreparedStatement statement = connection.prepareStatement("INSERT INTO " + prefix + "history_archive (historyId, protectionId, player, x, y, z, type, status, metadata, timestamp, archived) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                    long archived = System.currentTimeMillis() / 1000L;
+
+                    for (History history : histories) {
+                        statement.setInt(1, history.getId());
+                        statement.setInt(2, history.getProtectionId());
+                        statement.setString(3, history.getPlayer());
+                        statement.setInt(4, history.getX());
+                        statement.setInt(5, history.getY());
+                        statement.setInt(6, history.getZ());
+                        statement.setInt(7, history.getType().ordinal());
+                        statement.setInt(8, history.getStatus().ordinal());
+                        statement.setString(9, history.getSafeMetaData());
+                        statement.setLong(10, history.getTimestamp());
+                        statement.setLong(11, archived);
+                        statement.addBatch();
+                    }
+
+                    statement.executeBatch();
+                    statement.close();
+                }
+
+                PreparedStatement deleteMeta = connection.prepareStatement("DELETE FROM " + prefix + "history_meta WHERE historyId = ?");
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM " + prefix + "history WHERE id = ?");
+
+                for (History history : histories) {
+                    deleteMeta.setInt(1, history.getId());
+                    deleteMeta.addBatch();
+                    delete.setInt(1, history.getId());
+                    delete.addBatch();
+                }
+
+                deleteMeta.executeBatch();
+                delete.executeBatch();
+                deleteMeta.close();
+                delete.close();
+
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+
+            return true;
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Save a job, inserting it and giving it its id if it is new. The statements are not cached so jobs can be
+     * saved from the job thread and the main thread at once
+     *
+     * @param connection the connection to write with
+     * @param record
+     */
+    public void saveJob(Connection connection, JobRecord record) {
+        try {
+            PreparedStatement statement;
+            record.setUpdated(System.currentTimeMillis());
+
+            if (record.getId() == 0) {
+                statement = connection.prepareStatement("INSERT INTO " + prefix + "jobs (type, status, arguments, checkpoint, processed, total, owner, message, created, updated) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            } else {
+                statement = connection.prepareStatement("UPDATE " + prefix + "jobs SET type = ?, status = ?, arguments = ?, checkpoint = ?, processed = ?, total = ?, owner = ?, message = ?, created = ?, updated = ? WHERE id = ?");
+                statement.setInt(11, record.getId());
+            }
+
+            statement.setString(1, record.getType());
+            statement.setInt(2, record.getStatus().ordinal());
+            statement.setString(3, record.getArguments());
+            statement.setString(4, record.getCheckpoint());
+            statement.setLong(5, record.getProcessed());
+            statement.setLong(6, record.getTotal());
+            statement.setString(7, record.getOwner());
+            statement.setString(8, record.getMessage());
+            statement.setLong(9, record.getCreated());
+            statement.setLong(10, record.getUpdated());
+
+            int affected = statement.executeUpdate();
+
+            if (record.getId() == 0 && affected > 0) {
+                ResultSet generatedKeys = statement.getGeneratedKeys();
+
+                if (generatedKeys.next()) {
+                    record.setId(generatedKeys.getInt(1));
+                }
+
+                generatedKeys.close();
+            }
+
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Load every job, oldest first
+     *
+     * @return
+     */
+    public List<JobRecord> loadJobs() {
+        List<JobRecord> records = new ArrayList<JobRecord>();
+
+        try {
+            PreparedStatement statement = prepare("SELECT id, type, status, arguments, checkpoint, processed, total, owner, message, created, updated FROM " + prefix + "jobs ORDER BY id");
+            ResultSet set = statement.executeQuery();
+
+            while (set.next()) {
+                JobRecord record = new JobRecord(set.getString("type"), set.getString("arguments"), set.getString("owner"));
+                record.setId(set.getInt("id"));
+                record.setStatus(JobRecord.Status.values()[set.getInt("status")]);
+                record.setCheckpoint(set.getString("checkpoint"));
+                record.setProcessed(set.getLong("processed"));
+                record.setTotal(set.getLong("total"));
+                record.setMessage(set.getString("message"));
+                record.setCreated(set.getLong("created"));
+                record.setUpdated(set.getLong("updated"));
+                records.add(record);
+            }
+
+            set.close();
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return records;
+    }
+
+    /**
+     * Remove jobs that finished before the given time
+     *
+     * @param before milliseconds since the epoch
+     */
+    public void removeFinishedJobs(long before) {
+        try {
+            PreparedStatement statement = prepare("DELETE FROM " + prefix + "jobs WHERE status IN (?, ?, ?) AND updated < ?");
+            statement.setInt(1, JobRecord.Status.COMPLETED.ordinal());
+            statement.setInt(2, JobRecord.Status.CANCELLED.ordinal());
+            statement.setInt(3, JobRecord.Status.FAILED.ordinal());
+            statement.setLong(4, before);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Give the space freed by removed rows back to the file system. On SQLite this rebuilds the whole database
+     * and locks it while doing so.
+     */
+    public void compactDatabase() {
+        try {
+            Statement statement = connection.createStatement();
+
+            if (currentType == Type.MySQL) {
+                statement.executeQuery("OPTIMIZE TABLE " + prefix + "history, " + prefix + "history_meta").close();
+            } else {
+                statement.executeUpdate("VACUUM");
+            }
+
+            statement.close();
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
     /**
      * Remove **<b>ALL</b>** all of the protections registered by LWC
      */
@@ -1731,8 +3174,13 @@ public class PhysDB extends Database {
         try {
             Statement statement = connection.createStatement();
             statement.executeUpdate("DELETE FROM " + prefix + "protections");
-            protectionCount = 0;
             statement.close();
+
+            protectionCount.set(0);
+            ownerProtectionCounts.clear();
+            for (int index = 0; index < protectionTypeCounts.length(); index++) {
+                protectionTypeCounts.set(index, 0);
+            }
         } catch (SQLException e) {
             printException(e);
         }
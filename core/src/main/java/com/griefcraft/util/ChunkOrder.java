@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.model.Protection;
+
+import java.util.Comparator;
+
+/**
+ * Orders blocks by world and then by chunk, so work on many blocks can be done one chunk at a time
+ */
+public class ChunkOrder {
+
+    /**
+     * Orders protections by world and chunk
+     */
+    public static final Comparator<Protection> PROTECTIONS = new Comparator<Protection>() {
+        public int compare(Protection o1, Protection o2) {
+            return ChunkOrder.compare(o1.getWorld(), o1.getX(), o1.getZ(), o2.getWorld(), o2.getX(), o2.getZ());
+        }
+    };
+
+    /**
+     * Compare two block locations by world and then by chunk
+     *
+     * @param world1
+     * @param x1
+     * @param z1
+     * @param world2
+     * @param x2
+     * @param z2
+     * @return
+     */
+    public static int compare(String world1, int x1, int z1, String world2, int x2, int z2) {
+        int compare = world1.compareTo(world2);
+
+        if (compare == 0) {
+            compare = Integer.compare(x1 >> 4, x2 >> 4);
+        }
+
+        if (compare == 0) {
+            compare = Integer.compare(z1 >> 4, z2 >> 4);
+        }
+
+        return compare;
+    }
+
+}
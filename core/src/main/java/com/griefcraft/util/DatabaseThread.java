@@ -32,6 +32,8 @@ import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
 import com.griefcraft.sql.Database;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -48,11 +50,31 @@ public class DatabaseThread implements Runnable {
      */
     private final Queue<Protection> updateQueue = new ConcurrentLinkedQueue<Protection>();
 
+    /**
+     * The history objects waiting to be written to the database
+     */
+    private final HistoryWriter historyWriter = new HistoryWriter();
+
+    /**
+     * Moves old history out of the history table
+     */
+    private final HistoryRetention historyRetention;
+
     /**
      * The thread we are running in
      */
     private final Thread thread = new Thread(this);
 
+    /**
+     * How long (in milliseconds) to wait for the thread to finish when stopping
+     */
+    private static final long STOP_WAIT = 10000L;
+
+    /**
+     * The connection history is written and removed with, so those transactions are not shared with other threads
+     */
+    private Connection connection;
+
     /**
      * If the database thread is active and running
      */
@@ -63,6 +85,11 @@ public class DatabaseThread implements Runnable {
      */
     private long lastFlush = -1L;
 
+    /**
+     * When the protection flush in progress was started, or 0 if no flush is in progress
+     */
+    private volatile long flushStarted = 0L;
+
     /**
      * The time the next keepalive packet will be sent at
      */
@@ -73,12 +100,25 @@ public class DatabaseThread implements Runnable {
      */
     private int pingInterval = 0;
 
+    /**
+     * The time the known protection counts will next be reconciled with the database at
+     */
+    private long nextCountReconcile = 0;
+
+    /**
+     * Interval between reconciling the known protection counts with the database
+     */
+    private int countReconcileInterval = 0;
+
     public DatabaseThread(LWC lwc) {
         this.lwc = lwc;
+        this.historyRetention = new HistoryRetention(lwc);
         this.running = true;
         this.lastFlush = System.currentTimeMillis();
         this.thread.start();
         pingInterval = lwc.getConfiguration().getInt("database.ping_interval", 300);
+        countReconcileInterval = lwc.getConfiguration().getInt("core.countReconcileInterval", 3600);
+        nextCountReconcile = System.currentTimeMillis() + (countReconcileInterval * 1000L);
     }
 
     /**
@@ -108,6 +148,27 @@ public class DatabaseThread implements Runnable {
         return updateQueue.size();
     }
 
+    /**
+     * @return true if called from the database thread
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the queue of history objects waiting to be written to the database
+     */
+    public HistoryWriter getHistoryWriter() {
+        return historyWriter;
+    }
+
+    /**
+     * @return the history retention job, which is run by this thread
+     */
+    public HistoryRetention getHistoryRetention() {
+        return historyRetention;
+    }
+
     /**
      * Stop the database thread
      */
@@ -118,8 +179,35 @@ public class DatabaseThread implements Runnable {
             thread.interrupt();
         }
 
-        // Flush the rest of the entries
+        // let the current flush finish before flushing from this thread
+        try {
+            thread.join(STOP_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Flush the rest of the entries; history saved from now on is written immediately
+        historyWriter.close();
         flushDatabase();
+        historyRetention.close();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+            }
+
+            connection = null;
+        }
+    }
+
+    /**
+     * Protections saved by the flush in progress are not committed until it finishes
+     *
+     * @return when the flush in progress was started, or 0 if no flush is in progress
+     */
+    public long getFlushStarted() {
+        return flushStarted;
     }
 
     /**
@@ -135,22 +223,31 @@ public class DatabaseThread implements Runnable {
     private void flushDatabase() {
         if (!updateQueue.isEmpty()) {
             Database database = lwc.getPhysicalDatabase();
-            database.setAutoCommit(false);
-            database.setUseStatementCache(false);
-
-            // Begin iterating through the queue
-            Iterator<Protection> iter = updateQueue.iterator();
-            while (iter.hasNext()) {
-                Protection protection = iter.next();
-                iter.remove();
-                protection.saveNow();
-            }
+            flushStarted = System.currentTimeMillis();
 
-            // Commit the changes to the database
-            database.setUseStatementCache(true);
-            database.setAutoCommit(true);
+            try {
+                database.setAutoCommit(false);
+                database.setUseStatementCache(false);
+
+                // Begin iterating through the queue
+                Iterator<Protection> iter = updateQueue.iterator();
+                while (iter.hasNext()) {
+                    Protection protection = iter.next();
+                    iter.remove();
+                    protection.saveNow();
+                }
+
+                // Commit the changes to the database
+                database.setUseStatementCache(true);
+                database.setAutoCommit(true);
+            } finally {
+                flushStarted = 0L;
+            }
         }
 
+        // write the history saved by the protections (and anything else queued)
+        flushHistory();
+
         // update the time we last flushed at
         lastFlush = System.currentTimeMillis();
 
@@ -158,6 +255,46 @@ public class DatabaseThread implements Runnable {
             nextKeepalivePacket = System.currentTimeMillis() + (pingInterval * 1000);
             lwc.getPhysicalDatabase().pingDatabase();
         }
+
+        if (countReconcileInterval > 0 && System.currentTimeMillis() > nextCountReconcile && lwc.getPhysicalDatabase().isConnected()) {
+            nextCountReconcile = System.currentTimeMillis() + (countReconcileInterval * 1000L);
+
+            if (lwc.getPhysicalDatabase().reconcileProtectionCounts()) {
+                lwc.log("Protection counts were out of sync with the database and have been corrected");
+            }
+
+            lwc.getPhysicalDatabase().reloadProtectedChunks();
+            lwc.getPhysicalDatabase().reconcileOwnerProtectionCounts();
+        }
+    }
+
+    /**
+     * Write the queued history. It stays queued if there is no connection to write it with
+     */
+    private void flushHistory() {
+        Connection connection = getConnection();
+
+        if (connection != null) {
+            historyWriter.flush(lwc.getPhysicalDatabase(), connection);
+        }
+    }
+
+    /**
+     * Get the database thread's connection, opening it if needed
+     *
+     * @return the connection, or null if it could not be opened
+     */
+    private Connection getConnection() {
+        try {
+            if (connection == null || connection.isClosed()) {
+                connection = lwc.getPhysicalDatabase().openConnection();
+            }
+        } catch (Exception e) {
+            lwc.log("Failed to open a database connection for the database thread: " + e.getMessage());
+            connection = null;
+        }
+
+        return connection;
     }
 
     public void run() {
@@ -175,6 +312,17 @@ public class DatabaseThread implements Runnable {
             // compare the current time to the last flush
             if (currentTime - lastFlush > intervalMilliseconds) {
                 flushDatabase();
+            } else if (historyWriter.size() > 0) {
+                // history is written sooner than protections so new history objects get their ids quickly
+                flushHistory();
+            }
+
+            if (lwc.getPhysicalDatabase().isConnected()) {
+                Connection connection = getConnection();
+
+                if (connection != null) {
+                    historyRetention.step(lwc.getPhysicalDatabase(), connection);
+                }
             }
 
             try {
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.History;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.util.config.Configuration;
+import com.griefcraft.util.config.ConfigurationNode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves old history out of the history table in the background. A run goes through each configured policy and
+ * removes the matching history in batches, using the database for at most a time budget each time it is stepped
+ * by the database thread, so a large backlog is spread over many seconds instead of stalling the database.
+ */
+public class HistoryRetention {
+
+    /**
+     * The folder archive files are written to
+     */
+    public static String ARCHIVE_FOLDER = "plugins/LWC/history/";
+
+    /**
+     * The date format archive files are named with
+     */
+    private static final String DATE_FORMAT = "yyyy-MM-dd-HHmm";
+
+    /**
+     * Estimated size of the fixed width columns of a history row, in bytes
+     */
+    private static final int ROW_SIZE = 48;
+
+    /**
+     * Where removed history goes
+     */
+    public enum Mode {
+
+        /**
+         * Copied into the history_archive table
+         */
+        TABLE,
+
+        /**
+         * Written to a gzipped file in the archive folder
+         */
+        FILE,
+
+        /**
+         * Not kept
+         */
+        DELETE
+
+    }
+
+    /**
+     * Which history is removed by a run
+     */
+    public static class Policy {
+
+        /**
+         * The name of the policy in the config
+         */
+        private final String name;
+
+        /**
+         * The status history must have, or null for any status
+         */
+        private final History.Status status;
+
+        /**
+         * The type history must have, or null for any type
+         */
+        private final History.Type type;
+
+        /**
+         * The age (in seconds) history must reach
+         */
+        private final long age;
+
+        public Policy(String name, History.Status status, History.Type type, long age) {
+            this.name = name;
+            this.status = status;
+            this.type = type;
+            this.age = age;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public History.Status getStatus() {
+            return status;
+        }
+
+        public History.Type getType() {
+            return type;
+        }
+
+        public long getAge() {
+            return age;
+        }
+
+    }
+
+    /**
+     * The result of a run
+     */
+    public static class Report {
+
+        /**
+         * When the run started
+         */
+        private final long started = System.currentTimeMillis();
+
+        /**
+         * When the run ended, or 0 while it is running
+         */
+        private volatile long ended = 0L;
+
+        /**
+         * The amount of rows removed from the history table
+         */
+        private volatile int rows = 0;
+
+        /**
+         * Estimated amount of bytes the removed rows used
+         */
+        private volatile long bytes = 0L;
+
+        /**
+         * If the run stopped because of an error
+         */
+        private volatile boolean failed = false;
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getEnded() {
+            return ended;
+        }
+
+        public boolean isRunning() {
+            return ended == 0L;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public boolean hasFailed() {
+            return failed;
+        }
+
+    }
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * If a run was requested to start now
+     */
+    private volatile boolean requested = false;
+
+    /**
+     * The time the next run starts at
+     */
+    private long nextRun;
+
+    /**
+     * The policies of the current run
+     */
+    private List<Policy> policies = new ArrayList<Policy>();
+
+    /**
+     * Where the current run puts removed history
+     */
+    private Mode mode = Mode.TABLE;
+
+    /**
+     * How long (in milliseconds) each step of the current run may take
+     */
+    private int timeBudget = 250;
+
+    /**
+     * How many rows the current run removes at once
+     */
+    private int batchSize = 500;
+
+    /**
+     * If the database is compacted when the current run removed history
+     */
+    private boolean compact = false;
+
+    /**
+     * The time (in seconds) the current run started at; policy ages are relative to it
+     */
+    private long now;
+
+    /**
+     * The policy the current run is on
+     */
+    private int policyIndex;
+
+    /**
+     * The id of the last row the current policy went through
+     */
+    private int lastId;
+
+    /**
+     * The archive file of the current run, opened when the first row is written to it
+     */
+    private BufferedWriter archive = null;
+
+    /**
+     * The file the archive is written to, used to sync it to disk
+     */
+    private FileOutputStream archiveFile = null;
+
+    /**
+     * The current run, or null if one is not running
+     */
+    private volatile Report current = null;
+
+    /**
+     * The last run that ended
+     */
+    private volatile Report last = null;
+
+    public HistoryRetention(LWC lwc) {
+        this.lwc = lwc;
+        // give the server time to start before the first run
+        this.nextRun = System.currentTimeMillis() + 300000L;
+    }
+
+    /**
+     * Start a run the next time the database thread steps, even if retention is disabled
+     */
+    public void runNow() {
+        requested = true;
+    }
+
+    /**
+     * @return the current run, or null if one is not running
+     */
+    public Report getCurrentReport() {
+        return current;
+    }
+
+    /**
+     * @return the last run that ended, or null if none has
+     */
+    public Report getLastReport() {
+        return last;
+    }
+
+    /**
+     * Continue the current run, or start one when it is due. Must only be called from the database thread.
+     *
+     * @param database
+     * @param connection the database thread's connection to read and remove the history with
+     */
+    public synchronized void step(PhysDB database, Connection connection) {
+        if (current == null) {
+            Configuration configuration = lwc.getConfiguration();
+            boolean enabled = configuration.getBoolean("history.retention.enabled", false);
+
+            if (!requested && (!enabled || System.currentTimeMillis() < nextRun)) {
+                return;
+            }
+
+            requested = false;
+            nextRun = System.currentTimeMillis() + (configuration.getInt("history.retention.interval", 86400) * 1000L);
+
+            if (!begin(configuration)) {
+                return;
+            }
+        }
+
+        Report report = current;
+        long deadline = System.currentTimeMillis() + timeBudget;
+
+        while (System.currentTimeMillis() < deadline) {
+            if (policyIndex >= policies.size()) {
+                end(database, false);
+                return;
+            }
+
+            Policy policy = policies.get(policyIndex);
+            List<History> batch = database.loadExpiredHistory(connection, policy.getStatus(), policy.getType(), now - policy.getAge(), lastId, batchSize);
+
+            if (batch.isEmpty()) {
+                policyIndex++;
+                lastId = 0;
+                continue;
+            }
+
+            lastId = batch.get(batch.size() - 1).getId();
+
+            if (mode == Mode.FILE) {
+                try {
+                    writeArchive(batch);
+                } catch (IOException e) {
+                    lwc.log("Failed to write the history archive: " + e.getMessage());
+                    end(database, true);
+                    return;
+                }
+            }
+
+            if (!database.removeHistory(connection, batch, mode == Mode.TABLE)) {
+                end(database, true);
+                return;
+            }
+
+            long bytes = 0L;
+
+            for (History history : batch) {
+                bytes += estimateSize(history);
+            }
+
+            report.rows += batch.size();
+            report.bytes += bytes;
+        }
+    }
+
+    /**
+     * Close the archive file of the current run. The run is abandoned.
+     */
+    public synchronized void close() {
+        closeArchive();
+        current = null;
+    }
+
+    /**
+     * Start a run with the current configuration
+     *
+     * @param configuration
+     * @return false if there is nothing to run
+     */
+    private boolean begin(Configuration configuration) {
+        policies = loadPolicies(configuration);
+
+        if (policies.isEmpty()) {
+            return false;
+        }
+
+        try {
+            mode = Mode.valueOf(configuration.getString("history.retention.archive", "table").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            lwc.log("Unknown history archive mode: " + configuration.getString("history.retention.archive") + ". Using table");
+            mode = Mode.TABLE;
+        }
+
+        timeBudget = Math.max(10, configuration.getInt("history.retention.timeBudget", 250));
+        batchSize = Math.max(1, configuration.getInt("history.retention.batchSize", 500));
+        compact = configuration.getBoolean("history.retention.compact", false);
+        now = System.currentTimeMillis() / 1000L;
+        policyIndex = 0;
+        lastId = 0;
+        current = new Report();
+        return true;
+    }
+
+    /**
+     * End the current run and report the result
+     *
+     * @param database
+     * @param failed
+     */
+    private void end(PhysDB database, boolean failed) {
+        Report report = current;
+        closeArchive();
+
+        if (!failed && compact && report.rows > 0) {
+            database.compactDatabase();
+        }
+
+        report.failed = failed;
+        report.ended = System.currentTimeMillis();
+        current = null;
+        last = report;
+
+        lwc.log(String.format("History retention %s: removed %d rows (about %d KB) in %.1fs", failed ? "stopped early" : "finished",
+                report.rows, report.bytes / 1024, (report.ended - report.started) / 1000D));
+    }
+
+    /**
+     * Load the retention policies from the configuration
+     *
+     * @param configuration
+     * @return
+     */
+    private List<Policy> loadPolicies(Configuration configuration) {
+        List<Policy> result = new ArrayList<Policy>();
+        Map<String, ConfigurationNode> nodes = configuration.getNodes("history.retention.policies");
+
+        if (nodes == null) {
+            return result;
+        }
+
+        for (Map.Entry<String, ConfigurationNode> entry : nodes.entrySet()) {
+            ConfigurationNode node = entry.getValue();
+            String status = node.getString("status", "inactive");
+            String type = node.getString("type", "any");
+            long age = TimeUtil.parseTime(node.getString("age", ""));
+
+            if (age <= 0) {
+                lwc.log("History retention policy " + entry.getKey() + " has no age and is ignored");
+                continue;
+            }
+
+            try {
+                result.add(new Policy(entry.getKey(),
+                        status.equalsIgnoreCase("any") ? null : History.Status.valueOf(status.toUpperCase()),
+                        type.equalsIgnoreCase("any") ? null : History.Type.valueOf(type.toUpperCase()), age));
+            } catch (IllegalArgumentException e) {
+                lwc.log("History retention policy " + entry.getKey() + " has an unknown status or type and is ignored");
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Append history to the archive file of the current run
+     *
+     * @param histories
+     * @throws IOException
+     */
+    private void writeArchive(List<History> histories) throws IOException {
+        if (archive == null) {
+            File folder = new File(ARCHIVE_FOLDER);
+
+            if (!folder.exists() && !folder.mkdirs()) {
+                throw new IOException("Could not create " + folder.getPath());
+            }
+
+            File file = new File(folder, "history-" + new SimpleDateFormat(DATE_FORMAT).format(new Date()) + ".tsv.gz");
+            archiveFile = new FileOutputStream(file, true);
+
+            // sync flushing empties the deflater on each flush so every batch is in the file before it is removed
+            archive = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(archiveFile, true), "UTF-8"));
+            archive.write("id\tprotectionId\tplayer\tx\ty\tz\ttype\tstatus\ttimestamp\tmetadata");
+            archive.newLine();
+        }
+
+        for (History history : histories) {
+            archive.write(history.getId() + "\t" + history.getProtectionId() + "\t" + history.getPlayer() + "\t" + history.getX()
+                    + "\t" + history.getY() + "\t" + history.getZ() + "\t" + history.getType() + "\t" + history.getStatus()
+                    + "\t" + history.getTimestamp() + "\t" + history.getSafeMetaData());
+            archive.newLine();
+        }
+
+        // the rows are removed from the database after this returns
+        archive.flush();
+        archiveFile.getFD().sync();
+    }
+
+    /**
+     * Close the archive file of the current run
+     */
+    private void closeArchive() {
+        if (archive == null) {
+            return;
+        }
+
+        try {
+            archive.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        archive = null;
+        archiveFile = null;
+    }
+
+    /**
+     * Estimate how many bytes a history row and its indexed metadata use
+     *
+     * @param history
+     * @return
+     */
+    private long estimateSize(History history) {
+        long size = ROW_SIZE + length(history.getPlayer()) + length(history.getSafeMetaData());
+
+        for (Map.Entry<String, String> entry : history.getMetaDataMap().entrySet()) {
+            if (History.INDEXED_KEYS.contains(entry.getKey())) {
+                size += 4 + entry.getKey().length() + length(entry.getValue());
+            }
+        }
+
+        return size;
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+
+}
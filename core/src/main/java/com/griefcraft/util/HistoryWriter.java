@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.model.History;
+import com.griefcraft.sql.PhysDB;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queues history objects so they are written to the database in batches by the database thread instead of one
+ * query each on the thread that saved them. A history object that is saved again before it was written is only
+ * written once, with its latest values. New history objects get their id when the batch is written.
+ */
+public class HistoryWriter {
+
+    /**
+     * The maximum amount of history objects waiting to be written. When the queue is full it is written by the
+     * thread saving a history object (see {@link #isFull()})
+     */
+    private static final int MAX_QUEUED = 5000;
+
+    /**
+     * Held while history is written or removed, so a history object is never written by two threads at once
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The history objects waiting to be written, in the order they were first saved
+     */
+    private List<History> queue = new ArrayList<History>();
+
+    /**
+     * The history objects in the queue
+     */
+    private Map<History, Boolean> queued = new IdentityHashMap<History, Boolean>();
+
+    /**
+     * The history objects being written
+     */
+    private List<History> writing = Collections.emptyList();
+
+    /**
+     * If history objects can be queued
+     */
+    private boolean accepting = true;
+
+    /**
+     * Queue a history object to be written
+     *
+     * @param history
+     * @return false if the writer is closed and the history object must be written by the caller
+     */
+    public synchronized boolean queue(History history) {
+        if (queued.containsKey(history)) {
+            return true;
+        }
+
+        if (!accepting) {
+            return false;
+        }
+
+        queue.add(history);
+        queued.put(history, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Get the history objects for a protection that are queued or being written
+     *
+     * @param protectionId
+     * @return
+     */
+    public synchronized List<History> getQueued(int protectionId) {
+        if (queue.isEmpty() && writing.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<History> result = new ArrayList<History>();
+
+        for (History history : writing) {
+            if (history.getProtectionId() == protectionId) {
+                result.add(history);
+            }
+        }
+
+        for (History history : queue) {
+            if (history.getProtectionId() == protectionId) {
+                result.add(history);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get a player's history objects of a type that are queued or being written
+     *
+     * @param player
+     * @param type
+     * @return
+     */
+    public synchronized List<History> getQueued(String player, History.Type type) {
+        if (queue.isEmpty() && writing.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<History> result = new ArrayList<History>();
+
+        for (History history : writing) {
+            if (history.getType() == type && player.equalsIgnoreCase(history.getPlayer())) {
+                result.add(history);
+            }
+        }
+
+        for (History history : queue) {
+            if (history.getType() == type && player.equalsIgnoreCase(history.getPlayer())) {
+                result.add(history);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the amount of history objects waiting to be written
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return true if the queue is full and should be written by the thread that filled it
+     */
+    public synchronized boolean isFull() {
+        return queue.size() >= MAX_QUEUED;
+    }
+
+    /**
+     * Remove a history object from the queue and from the database. Waits for a batch being written so a new
+     * history object is removed after it was inserted, not before
+     *
+     * @param history
+     * @param database
+     */
+    public void remove(History history, PhysDB database) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (queued.remove(history) != null) {
+                    queue.remove(history);
+                }
+            }
+
+            if (history.doesExist()) {
+                database.removeHistory(history.getId());
+            }
+        }
+    }
+
+    /**
+     * Write the queued history objects to the database
+     *
+     * @param database
+     * @param connection the connection to write with
+     * @return the amount of history objects written
+     */
+    public int flush(PhysDB database, Connection connection) {
+        synchronized (writeLock) {
+            List<History> batch;
+
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    return 0;
+                }
+
+                batch = queue;
+                writing = batch;
+                queue = new ArrayList<History>();
+                queued = new IdentityHashMap<History, Boolean>();
+            }
+
+            try {
+                database.saveHistory(connection, batch);
+            } finally {
+                synchronized (this) {
+                    writing = Collections.emptyList();
+                }
+            }
+
+            return batch.size();
+        }
+    }
+
+    /**
+     * Stop queueing history objects. Any history saved afterwards is written immediately
+     */
+    public synchronized void close() {
+        accepting = false;
+    }
+
+}
@@ -39,9 +39,8 @@ import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -49,6 +48,29 @@ import java.util.List;
  */
 public class ProtectionFinder {
 
+    /**
+     * The initial capacity of the matched blocks array. Most protections match 1-4 blocks; doors with pressure
+     * plates are the largest and the array grows in the rare case it is not enough.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Matchers are stateless so the same instances are shared between every finder
+     */
+    private static final DoorMatcher DOOR_MATCHER = new DoorMatcher();
+    private static final GravityMatcher GRAVITY_MATCHER = new GravityMatcher();
+    private static final WallMatcher WALL_MATCHER = new WallMatcher();
+    private static final DoubleChestMatcher DOUBLE_CHEST_MATCHER = new DoubleChestMatcher();
+
+    /**
+     * The matchers used for each kind of base block
+     */
+    private static final Matcher[] NO_MATCHERS = new Matcher[0];
+    private static final Matcher[] CHEST_MATCHERS = new Matcher[] { DOUBLE_CHEST_MATCHER };
+    private static final Matcher[] GRAVITY_MATCHERS = new Matcher[] { GRAVITY_MATCHER };
+    private static final Matcher[] DOOR_MATCHERS = new Matcher[] { DOOR_MATCHER };
+    private static final Matcher[] DEFAULT_MATCHERS = new Matcher[] { DOOR_MATCHER, GRAVITY_MATCHER, WALL_MATCHER };
+
     /**
      * The LWC object to work with
      */
@@ -57,7 +79,7 @@ public class ProtectionFinder {
     /**
      * The base block to match off of
      */
-    private BlockState baseBlock = null;
+    private Block baseBlock = null;
 
     /**
      * The matched protection if found
@@ -70,14 +92,14 @@ public class ProtectionFinder {
     private boolean searched = false;
 
     /**
-     * All of the matched blocks
+     * All of the matched blocks. The base block is always at index 0
      */
-    private final List<BlockState> blocks = new LinkedList<BlockState>();
+    private Block[] blocks = new Block[INITIAL_CAPACITY];
 
     /**
-     * All of the blocks that are protectables
+     * The amount of matched blocks
      */
-    private final List<BlockState> protectables = new LinkedList<BlockState>();
+    private int blockCount = 0;
 
     public ProtectionFinder(LWC lwc) {
         this.lwc = lwc;
@@ -89,8 +111,8 @@ public class ProtectionFinder {
      * @param baseBlock
      * @return TRUE if a set of blocks was found
      */
-    public boolean matchBlocks(Block baseBlock) {
-        return matchBlocks(baseBlock.getState());
+    public boolean matchBlocks(BlockState baseBlock) {
+        return matchBlocks(baseBlock.getBlock());
     }
 
     /**
@@ -99,7 +121,7 @@ public class ProtectionFinder {
      * @param baseBlock
      * @return TRUE if a set of blocks was found
      */
-    public boolean matchBlocks(BlockState baseBlock) {
+    public boolean matchBlocks(Block baseBlock) {
         // Did we already find a protection?
         if (matchedProtection != null) {
             return true;
@@ -137,12 +159,11 @@ public class ProtectionFinder {
      * Do a full sweeping match of all the blocks for a given protection
      */
     public void fullMatchBlocks() {
-
         // Reset the blocks
-        blocks.clear();
+        clearBlocks();
 
         // Add the base block
-        blocks.add(baseBlock);
+        addBlock(baseBlock);
 
         // Go through each matcher and execute it
         for (Matcher matcher : getProtectionMatchers()) {
@@ -150,11 +171,11 @@ public class ProtectionFinder {
                 break;
             }
         }
-
     }
 
     /**
-     * Get the possible protection matchers that can match the protection
+     * Get the possible protection matchers that can match the protection. The returned array is shared and
+     * must not be modified.
      *
      * @return
      */
@@ -162,39 +183,28 @@ public class ProtectionFinder {
         Material material = baseBlock.getType();
 
         if (material == Material.HOPPER) {
-            return new Matcher[0];
+            return NO_MATCHERS;
         }
 
         // Double chests
         if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(material)) {
-            return new Matcher[] {
-                    new DoubleChestMatcher()
-            };
+            return CHEST_MATCHERS;
         }
 
         // Gravity
         else if (GravityMatcher.PROTECTABLES_POSTS.contains(material)) {
-            return new Matcher[] {
-                    new GravityMatcher()
-            };
+            return GRAVITY_MATCHERS;
         }
 
         // Doors
         else if (DoorMatcher.PROTECTABLES_DOORS.contains(material)) {
-            return new Matcher[] {
-                    new DoorMatcher()
-            };
+            return DOOR_MATCHERS;
         }
 
         // Anything else
         else {
-            return new Matcher[] {
-                    new DoorMatcher(),
-                    new GravityMatcher(),
-                    new WallMatcher()
-            };
+            return DEFAULT_MATCHERS;
         }
-
     }
 
     /**
@@ -202,8 +212,8 @@ public class ProtectionFinder {
      *
      * @param block
      */
-    public void addBlock(Block block) {
-        addBlock(block.getState());
+    public void addBlock(BlockState block) {
+        addBlock(block.getBlock());
     }
 
     /**
@@ -211,10 +221,16 @@ public class ProtectionFinder {
      *
      * @param block
      */
-    public void addBlock(BlockState block) {
-        if (!blocks.contains(block)) {
-            blocks.add(block);
+    public void addBlock(Block block) {
+        if (indexOf(block) != -1) {
+            return;
+        }
+
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length * 2);
         }
+
+        blocks[blockCount++] = block;
     }
 
     /**
@@ -240,11 +256,16 @@ public class ProtectionFinder {
             return matchedProtection;
         }
 
-        // Calculate the protectables
-        calculateProtectables();
         searched = true;
 
-        for (BlockState block : protectables) {
+        // the base block (index 0) was already checked
+        for (int index = 1; index < blockCount; index++) {
+            Block block = blocks[index];
+
+            if (!lwc.isProtectable(block)) {
+                continue;
+            }
+
             if (tryLoadProtection(block, noAutoCache) == Result.E_FOUND) {
                 return matchedProtection;
             }
@@ -260,12 +281,11 @@ public class ProtectionFinder {
      * @param noAutoCache if a match is found, don't cache it to be the protection we use
      * @return
      */
-    protected Result tryLoadProtection(BlockState block, boolean noAutoCache) {
+    protected Result tryLoadProtection(Block block, boolean noAutoCache) {
         if (matchedProtection != null) {
             return Result.E_FOUND;
         }
 
-        LWC lwc = LWC.getInstance();
         ProtectionCache cache = lwc.getProtectionCache();
 
         // Check the cache
@@ -279,9 +299,10 @@ public class ProtectionFinder {
             return Result.E_FOUND;
         }
 
+        Material material = block.getType();
+
         // Manual intervention is required
-        if (block.getType() == Material.REDSTONE_WIRE || block.getType() == Material.REDSTONE_TORCH_OFF ||
-                block.getType() == Material.REDSTONE_TORCH_ON) {
+        if (material == Material.REDSTONE_WIRE || material == Material.REDSTONE_TORCH_OFF || material == Material.REDSTONE_TORCH_ON) {
             return Result.E_ABORT;
         }
 
@@ -330,66 +351,106 @@ public class ProtectionFinder {
      *
      * @return
      */
-    public BlockState getBaseBlock() {
+    public Block getBaseBlock() {
         return baseBlock;
     }
 
     /**
-     * Get an immutable set of the matched blocks
+     * Get the amount of matched blocks
      *
      * @return
      */
-    public List<BlockState> getBlocks() {
-        return Collections.unmodifiableList(blocks);
+    public int getBlockCount() {
+        return blockCount;
     }
 
     /**
-     * Remove a block from the finder
+     * Get a matched block. The base block is always at index 0
      *
-     * @param block
+     * @param index
+     * @return
      */
-    public void removeBlock(BlockState block) {
-        Iterator<BlockState> iter = blocks.iterator();
-
-        while (iter.hasNext()) {
-            if (lwc.blockEquals(block, iter.next())) {
-                iter.remove();
-            }
+    public Block getBlock(int index) {
+        if (index < 0 || index >= blockCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + blockCount);
         }
+
+        return blocks[index];
     }
 
     /**
-     * Reset the matcher state
+     * Get an immutable view of the matched blocks. Prefer {@link #getBlockCount()} and {@link #getBlock(int)}
+     * in frequently called code as they do not allocate.
+     *
+     * @return
      */
-    private void reset() {
-        blocks.clear();
-        protectables.clear();
-        baseBlock = null;
-        searched = false;
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(Arrays.asList(blocks).subList(0, blockCount));
     }
 
     /**
-     * From the matched blocks calculate and store the blocks that are protectable
+     * Remove a block from the finder
+     *
+     * @param block
      */
-    private void calculateProtectables() {
-        // reset the matched protectables
-        protectables.clear();
-        searched = false;
+    public void removeBlock(BlockState block) {
+        removeBlock(block.getBlock());
+    }
 
-        // if there's only 1 block it was already checked (the base block)
-        int size = blocks.size();
-        if (size == 1) {
+    /**
+     * Remove a block from the finder
+     *
+     * @param block
+     */
+    public void removeBlock(Block block) {
+        int index = indexOf(block);
+
+        if (index == -1) {
             return;
         }
 
-        // go through the blocks
-        for (int index = 1; index < size; index++) {
-            BlockState state = blocks.get(index);
+        blockCount--;
+        System.arraycopy(blocks, index + 1, blocks, index, blockCount - index);
+        blocks[blockCount] = null;
+    }
 
-            if (lwc.isProtectable(state)) {
-                protectables.add(state);
+    /**
+     * Get the index of a block in the matched blocks, comparing only the coordinates
+     *
+     * @param block
+     * @return the index of the block or -1 if it was not matched
+     */
+    private int indexOf(Block block) {
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+
+        for (int index = 0; index < blockCount; index++) {
+            Block other = blocks[index];
+
+            if (other.getX() == x && other.getY() == y && other.getZ() == z) {
+                return index;
             }
         }
+
+        return -1;
+    }
+
+    /**
+     * Clear the matched blocks
+     */
+    private void clearBlocks() {
+        Arrays.fill(blocks, 0, blockCount, null);
+        blockCount = 0;
+    }
+
+    /**
+     * Reset the matcher state
+     */
+    private void reset() {
+        clearBlocks();
+        baseBlock = null;
+        searched = false;
     }
 
     /**
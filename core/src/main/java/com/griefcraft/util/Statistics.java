@@ -30,6 +30,8 @@ package com.griefcraft.util;
 
 import com.griefcraft.cache.MethodCounter;
 import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.integration.IPermissions;
+import com.griefcraft.integration.permissions.CachedPermissions;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCInfo;
 import com.griefcraft.scripting.MetaData;
@@ -109,7 +111,13 @@ public class Statistics {
         sender.sendMessage("  Running time: " + Colors.Green + TimeUtil.timeToString(getTimeRunningSeconds()));
         sender.sendMessage("  Players: " + Colors.Green + Bukkit.getServer().getOnlinePlayers().size() + "/" + Bukkit.getServer().getMaxPlayers());
         sender.sendMessage("  Item entities: " + Colors.Green + getEntityCount(Item.class) + "/" + getEntityCount(null));
-        sender.sendMessage("  Permissions API: " + Colors.Green + lwc.getPermissions().getClass().getSimpleName());
+        IPermissions permissions = lwc.getPermissions();
+
+        if (permissions instanceof CachedPermissions) {
+            permissions = ((CachedPermissions) permissions).getDelegate();
+        }
+
+        sender.sendMessage("  Permissions API: " + Colors.Green + permissions.getClass().getSimpleName());
         sender.sendMessage("  Currency API: " + Colors.Green + lwc.getCurrency().getClass().getSimpleName());
         sender.sendMessage(" ");
         sender.sendMessage(Colors.Red + " ==== Modules ====");
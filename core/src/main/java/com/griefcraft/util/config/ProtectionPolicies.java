@@ -0,0 +1,301 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util.config;
+
+import com.griefcraft.lwc.LWC;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The protections.blocks configuration compiled into a table indexed by block id and data value so that
+ * resolving the configuration for a block does not need to build strings or walk the configuration.
+ */
+public class ProtectionPolicies {
+
+    /**
+     * Nodes that are always resolved even if no block sets them
+     */
+    private static final String[] TYPED_NODES = new String[] { "enabled", "autoRegister", "quiet", "denyHoppers", "ignoreBlockDestruction" };
+
+    /**
+     * The amount of data values a block can have
+     */
+    private static final int DATA_VALUES = 16;
+
+    /**
+     * The configuration the table was compiled from
+     */
+    private final Configuration configuration;
+
+    /**
+     * The policy for each material id, ignoring the data value
+     */
+    private final ProtectionPolicy[] byMaterial;
+
+    /**
+     * The policy for each material id and data value. Only materials that have data specific configuration
+     * have an entry, the rest are null and use {@link #byMaterial}
+     */
+    private final ProtectionPolicy[][] byData;
+
+    /**
+     * The policy used for materials that are not in the table
+     */
+    private final ProtectionPolicy defaultPolicy;
+
+    private ProtectionPolicies(Configuration configuration, int size) {
+        this.configuration = configuration;
+        byMaterial = new ProtectionPolicy[size];
+        byData = new ProtectionPolicy[size][];
+        defaultPolicy = new ProtectionPolicy(configuration, new HashMap<String, String>());
+    }
+
+    /**
+     * Compile the protections.blocks configuration
+     *
+     * @param configuration
+     * @return
+     */
+    public static ProtectionPolicies compile(Configuration configuration) {
+        int size = 0;
+
+        for (Material material : Material.values()) {
+            size = Math.max(size, material.getId() + 1);
+        }
+
+        ProtectionPolicies policies = new ProtectionPolicies(configuration, size);
+        Set<String> blockNames = new HashSet<String>();
+        Set<String> nodes = new LinkedHashSet<String>();
+
+        for (String node : TYPED_NODES) {
+            nodes.add(node);
+        }
+
+        List<String> blocks = configuration.getKeys("protections.blocks");
+
+        if (blocks != null) {
+            // keys are not guaranteed to be strings (e.g. a block configured by its id)
+            for (Object key : blocks) {
+                String name = String.valueOf(key);
+                blockNames.add(name);
+                List<String> blockNodes = configuration.getKeys("protections.blocks." + name);
+
+                if (blockNodes != null) {
+                    for (Object node : blockNodes) {
+                        nodes.add(String.valueOf(node));
+                    }
+                }
+            }
+        }
+
+        // identical policies are shared so most materials point at the same few objects
+        Map<Map<String, String>, ProtectionPolicy> interned = new HashMap<Map<String, String>, ProtectionPolicy>();
+
+        for (Material material : Material.values()) {
+            int id = material.getId();
+            policies.byMaterial[id] = policies.intern(interned, policies.resolve(material, -1, nodes));
+
+            if (hasDataSpecificConfiguration(material, blockNames)) {
+                ProtectionPolicy[] dataPolicies = new ProtectionPolicy[DATA_VALUES];
+
+                for (int data = 0; data < DATA_VALUES; data++) {
+                    dataPolicies[data] = policies.intern(interned, policies.resolve(material, data, nodes));
+                }
+
+                policies.byData[id] = dataPolicies;
+            }
+        }
+
+        return policies;
+    }
+
+    /**
+     * Get the policy for a block
+     *
+     * @param block
+     * @return
+     */
+    public ProtectionPolicy get(Block block) {
+        return get(block.getType(), block.getData());
+    }
+
+    /**
+     * Get the policy for a block state
+     *
+     * @param state
+     * @return
+     */
+    public ProtectionPolicy get(BlockState state) {
+        return get(state.getType(), state.getRawData());
+    }
+
+    /**
+     * Get the policy for a material, ignoring any data specific configuration
+     *
+     * @param material
+     * @return
+     */
+    public ProtectionPolicy get(Material material) {
+        if (material == null) {
+            return defaultPolicy;
+        }
+
+        int id = material.getId();
+
+        if (id < 0 || id >= byMaterial.length) {
+            return defaultPolicy;
+        }
+
+        return byMaterial[id];
+    }
+
+    /**
+     * Get the policy for a material and data value
+     *
+     * @param material
+     * @param data
+     * @return
+     */
+    public ProtectionPolicy get(Material material, int data) {
+        if (material == null) {
+            return defaultPolicy;
+        }
+
+        int id = material.getId();
+
+        if (id < 0 || id >= byMaterial.length) {
+            return defaultPolicy;
+        }
+
+        ProtectionPolicy[] dataPolicies = byData[id];
+
+        if (dataPolicies != null) {
+            return dataPolicies[data & (DATA_VALUES - 1)];
+        }
+
+        return byMaterial[id];
+    }
+
+    /**
+     * Resolve every node for a material. The names are checked in the same order LWC has always used, the
+     * last name that sets a node wins.
+     *
+     * @param material
+     * @param data the data value, or -1 to resolve the material only
+     * @param nodes
+     * @return
+     */
+    private Map<String, String> resolve(Material material, int data, Set<String> nodes) {
+        List<String> names = new ArrayList<String>();
+
+        String materialName = LWC.normalizeMaterialName(material);
+
+        // add the name & the block id
+        names.add(materialName);
+        names.add(material.getId() + "");
+
+        if (data >= 0) {
+            names.add(material.getId() + ":" + data);
+            names.add(materialName + ":" + data);
+        }
+
+        if (!materialName.equals(material.toString().toLowerCase())) {
+            names.add(material.toString().toLowerCase());
+        }
+
+        // Add the wildcards last so it can be overriden
+        names.add("*");
+        names.add(material.getId() + ":*");
+
+        Map<String, String> values = new HashMap<String, String>();
+
+        for (String node : nodes) {
+            String value = configuration.getString("protections." + node);
+
+            for (String name : names) {
+                String temp = configuration.getString("protections.blocks." + name + "." + node);
+
+                if (temp != null && !temp.isEmpty()) {
+                    value = temp;
+                }
+            }
+
+            values.put(node, value);
+        }
+
+        return values;
+    }
+
+    /**
+     * Get the shared policy for the given values, creating it if needed
+     *
+     * @param interned
+     * @param values
+     * @return
+     */
+    private ProtectionPolicy intern(Map<Map<String, String>, ProtectionPolicy> interned, Map<String, String> values) {
+        ProtectionPolicy policy = interned.get(values);
+
+        if (policy == null) {
+            policy = new ProtectionPolicy(configuration, values);
+            interned.put(values, policy);
+        }
+
+        return policy;
+    }
+
+    /**
+     * Check if protections.blocks has an entry for a specific data value of the material
+     *
+     * @param material
+     * @param blockNames
+     * @return
+     */
+    private static boolean hasDataSpecificConfiguration(Material material, Set<String> blockNames) {
+        String materialName = LWC.normalizeMaterialName(material);
+
+        for (int data = 0; data < DATA_VALUES; data++) {
+            if (blockNames.contains(material.getId() + ":" + data) || blockNames.contains(materialName + ":" + data)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util.config;
+
+import com.griefcraft.model.Protection;
+
+import java.util.Map;
+
+/**
+ * The resolved protections.blocks configuration for a single block type (and optionally data value)
+ */
+public class ProtectionPolicy {
+
+    /**
+     * The configuration the policy was compiled from, used for nodes no block overrides
+     */
+    private final Configuration configuration;
+
+    /**
+     * Every node that is set by at least one block and its resolved value for this block
+     */
+    private final Map<String, String> values;
+
+    /**
+     * protections.blocks.*.enabled
+     */
+    private final boolean enabled;
+
+    /**
+     * protections.blocks.*.autoRegister -- null if the block is not auto registered
+     */
+    private final Protection.Type autoRegister;
+
+    /**
+     * protections.blocks.*.quiet
+     */
+    private final boolean quiet;
+
+    /**
+     * protections.blocks.*.denyHoppers
+     */
+    private final boolean denyHoppers;
+
+    /**
+     * protections.blocks.*.ignoreBlockDestruction
+     */
+    private final boolean ignoreBlockDestruction;
+
+    public ProtectionPolicy(Configuration configuration, Map<String, String> values) {
+        this.configuration = configuration;
+        this.values = values;
+
+        enabled = Boolean.parseBoolean(getString("enabled"));
+        autoRegister = parseAutoRegister(getString("autoRegister"));
+        quiet = Boolean.parseBoolean(getString("quiet"));
+        denyHoppers = Boolean.parseBoolean(getString("denyHoppers"));
+        ignoreBlockDestruction = Boolean.parseBoolean(getString("ignoreBlockDestruction"));
+    }
+
+    /**
+     * Get the raw value of a node for this block
+     *
+     * @param node
+     * @return
+     */
+    public String getString(String node) {
+        if (values.containsKey(node)) {
+            return values.get(node);
+        }
+
+        // no block sets the node so only the global value can apply
+        return configuration.getString("protections." + node);
+    }
+
+    /**
+     * @return true if the block can be protected
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the type of protection to create when the block is placed, or null if it is not auto registered
+     */
+    public Protection.Type getAutoRegister() {
+        return autoRegister;
+    }
+
+    /**
+     * @return true if protection notices should not be shown for the block
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * @return true if hoppers are denied by default
+     */
+    public boolean isDenyHoppers() {
+        return denyHoppers;
+    }
+
+    /**
+     * @return true if breaking the block should be ignored by LWC
+     */
+    public boolean isIgnoreBlockDestruction() {
+        return ignoreBlockDestruction;
+    }
+
+    /**
+     * Parse the autoRegister value. Only private and public protections can be auto registered.
+     *
+     * @param value
+     * @return
+     */
+    private static Protection.Type parseAutoRegister(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        if (value.equalsIgnoreCase("private")) {
+            return Protection.Type.PRIVATE;
+        } else if (value.equalsIgnoreCase("public")) {
+            return Protection.Type.PUBLIC;
+        }
+
+        return null;
+    }
+
+}
@@ -34,7 +34,6 @@ import com.griefcraft.util.SetUtil;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
 
 import java.util.EnumSet;
 import java.util.Set;
@@ -78,8 +77,8 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
     };
 
     public boolean matches(ProtectionFinder finder) {
-        BlockState baseBlockState = finder.getBaseBlock();
-        Block block = baseBlockState.getBlock();
+        Block block = finder.getBaseBlock();
+        Material baseType = block.getType();
 
         // Get the block above the base block
         Block aboveBaseBlock = block.getRelative(BlockFace.UP);
@@ -88,8 +87,8 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
         Block aboveAboveBaseBlock = aboveBaseBlock.getRelative(BlockFace.UP);
 
         // look for door if they're clicking a pressure plate
-        if (PRESSURE_PLATES.contains(baseBlockState.getType()) || PRESSURE_PLATES.contains(aboveBaseBlock.getType())) {
-            Block pressurePlate = PRESSURE_PLATES.contains(baseBlockState.getType()) ? block : aboveBaseBlock;
+        if (PRESSURE_PLATES.contains(baseType) || PRESSURE_PLATES.contains(aboveBaseBlock.getType())) {
+            Block pressurePlate = PRESSURE_PLATES.contains(baseType) ? block : aboveBaseBlock;
 
             for (BlockFace face : faces) {
                 Block relative = pressurePlate.getRelative(face);
@@ -105,8 +104,8 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
                 // attempt to match the door
                 if (doorFinder.matchBlocks(relative)) {
                     // add the blocks it matched
-                    for (BlockState found : doorFinder.getBlocks()) {
-                        finder.addBlock(found);
+                    for (int index = 0; index < doorFinder.getBlockCount(); index++) {
+                        finder.addBlock(doorFinder.getBlock(index));
                     }
 
                     // add the pressure plate
@@ -133,7 +132,7 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
         }
 
         // Match the top half of the door
-        else if (PROTECTABLES_DOORS.contains(baseBlockState.getType())) {
+        else if (PROTECTABLES_DOORS.contains(baseType)) {
             Block bottomHalf = block.getRelative(BlockFace.DOWN);
 
             finder.addBlock(bottomHalf);
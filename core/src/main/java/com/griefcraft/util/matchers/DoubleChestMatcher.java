@@ -32,7 +32,6 @@ import com.griefcraft.util.ProtectionFinder;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
 
 import java.util.EnumSet;
 import java.util.Set;
@@ -53,11 +52,11 @@ public class DoubleChestMatcher implements ProtectionFinder.Matcher {
     public static final BlockFace[] POSSIBLE_FACES = new BlockFace[]{ BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST };
 
     public boolean matches(ProtectionFinder finder) {
-        BlockState baseBlockState = finder.getBaseBlock();
-        Block block = baseBlockState.getBlock();
+        Block block = finder.getBaseBlock();
+        Material baseType = block.getType();
 
         // is the base block not what we want?
-        if (!PROTECTABLES_CHESTS.contains(baseBlockState.getType())) {
+        if (!PROTECTABLES_CHESTS.contains(baseType)) {
             return false;
         }
 
@@ -65,7 +64,7 @@ public class DoubleChestMatcher implements ProtectionFinder.Matcher {
             Block relative = block.getRelative(face);
 
             // we only want chests
-            if (baseBlockState.getType() == relative.getType()) {
+            if (baseType == relative.getType()) {
                 finder.addBlock(relative);
                 return true;
             }
@@ -31,8 +31,8 @@ package com.griefcraft.lwc;
 import com.griefcraft.bukkit.LWCEconomyPlugin;
 import com.griefcraft.integration.ICurrency;
 import com.griefcraft.model.History;
-import com.griefcraft.model.LWCPlayer;
 import com.griefcraft.model.Protection;
+import com.griefcraft.scripting.AsyncSafe;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCProtectionDestroyEvent;
 import com.griefcraft.scripting.event.LWCProtectionInteractEvent;
@@ -42,7 +42,6 @@ import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
 import com.griefcraft.util.Colors;
 import com.griefcraft.util.config.Configuration;
 import org.bukkit.Bukkit;
-import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.bukkit.event.block.Action;
@@ -99,7 +98,7 @@ public class EconomyModule extends JavaModule {
      * A cache of prices. When a value is inputted, it stays in memory for milliseconds at best.
      * The best way to do this? ha, probably not
      */
-    private Map<Location, String> priceCache = Collections.synchronizedMap(new HashMap<Location, String>());
+    private Map<String, CachedCharge> priceCache = Collections.synchronizedMap(new HashMap<String, CachedCharge>());
 
     /**
      * Our cache
@@ -219,6 +218,7 @@ public class EconomyModule extends JavaModule {
     }
 
     @Override
+    @AsyncSafe
     public void onPostRegistration(LWCProtectionRegistrationPostEvent event) {
         if (!configuration.getBoolean("iConomy.enabled", true)) {
             return;
@@ -231,20 +231,19 @@ public class EconomyModule extends JavaModule {
         Protection protection = event.getProtection();
 
         // we need to inject the iconomy price into the transaction!
-        Block block = protection.getBlock();
+        // (this runs off the main thread, so the protection's cache key is used instead of its block)
+        String location = protection.getCacheKey();
+
+        // okey, get how much they were charged
+        CachedCharge cachedCharge = priceCache.get(location);
 
         // Uh-oh! This REALLY should never happen ... !
-        if (block == null || !priceCache.containsKey(block.getLocation())) {
+        if (cachedCharge == null) {
             return;
         }
 
-        Location location = block.getLocation();
-
-        // okey, get how much they were charged
-        String cachedPrice = priceCache.get(location);
-
-        boolean usedDiscount = cachedPrice.startsWith("d");
-        double charge = Double.parseDouble(usedDiscount ? cachedPrice.substring(1) : cachedPrice);
+        boolean usedDiscount = cachedCharge.discount;
+        double charge = cachedCharge.charge;
 
         // get related transactions..
         List<History> transactions = protection.getRelatedHistory(History.Type.TRANSACTION);
@@ -258,21 +257,21 @@ public class EconomyModule extends JavaModule {
         History history = transactions.get(transactions.size() - 1);
 
         // add the price
-        history.addMetaData("charge=" + charge);
+        history.setDouble("charge", charge);
 
         // was it a discount?
         if (usedDiscount) {
-            history.addMetaData("discount=true");
+            history.setBoolean("discount", true);
 
             // Was the discount's id non-null?
-            String discountId = resolveValue(protection.getBukkitOwner(), "discount.id");
+            String discountId = cachedCharge.discountId;
 
-            if (!discountId.isEmpty()) {
-                history.addMetaData("discountId=" + discountId);
+            if (discountId != null && !discountId.isEmpty()) {
+                history.setString("discountId", discountId);
             }
         }
 
-        // save it immediately
+        // save it; the snapshot's copy is applied to the protection's transaction on the main thread
         history.saveNow();
 
         // we no longer need the value in the price cache :)
@@ -357,6 +356,7 @@ public class EconomyModule extends JavaModule {
 
         // if a discount was used
         boolean usedDiscount = false;
+        String usedDiscountId = null;
 
         // how much to charge the player
         double charge = 0D;
@@ -396,7 +396,7 @@ public class EconomyModule extends JavaModule {
                             break;
 
                         case TOTAL:
-                            currentProtections = lwc.getPhysicalDatabase().getProtectionCount(player.getName());
+                            currentProtections = lwc.getPhysicalDatabase().getProtectionCount(player);
                             break;
 
                         case IN_USE:
@@ -407,6 +407,7 @@ public class EconomyModule extends JavaModule {
                     if (discountedProtections > currentProtections) {
                         charge = discountPrice;
                         usedDiscount = true;
+                        usedDiscountId = discountId;
                     }
                 }
             }
@@ -414,11 +415,11 @@ public class EconomyModule extends JavaModule {
         }
 
         // used for price cache
-        Location location = block.getLocation();
+        String location = lwc.getProtectionCache().cacheKey(block);
 
         // cache the charge momentarily
         if (lwc.isHistoryEnabled()) {
-            priceCache.put(location, (usedDiscount ? "d" : "") + charge);
+            priceCache.put(location, new CachedCharge(charge, usedDiscount, usedDiscountId));
         }
 
         // It's free!
@@ -592,37 +593,47 @@ public class EconomyModule extends JavaModule {
      * @return
      */
     private int countDiscountedProtections(LWC lwc, Player player, double discountPrice, String discountId, boolean onlyCountActiveTransactions) {
-        LWCPlayer lwcPlayer = lwc.wrapPlayer(player);
-        List<History> related = lwcPlayer.getRelatedHistory(History.Type.TRANSACTION);
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("discount", "true");
+        metadata.put("charge", String.valueOf(discountPrice));
 
-        int amount = 0;
+        // Check the other discount id
+        if (discountId != null) {
+            metadata.put("discountId", discountId);
+        }
 
-        for (History history : related) {
-            if (!history.getBoolean("discount")) {
-                continue;
-            }
+        // Are we only looking for valid transactions?
+        History.Status status = onlyCountActiveTransactions ? History.Status.ACTIVE : null;
 
-            // Check the other discount id
-            if (discountId != null) {
-                if (!history.hasKey("discountId") || !history.getString("discountId").equals(discountId)) {
-                    continue;
-                }
-            }
+        return lwc.getPhysicalDatabase().getHistoryCount(player.getName(), History.Type.TRANSACTION, status, metadata);
+    }
 
-            // Are we only looking for valid transactions?
-            if (onlyCountActiveTransactions && history.getStatus() == History.Status.INACTIVE) {
-                continue;
-            }
+    /**
+     * The charge for a protection that is being registered
+     */
+    private static class CachedCharge {
 
-            // obtain the charge
-            double charge = history.getDouble("charge");
+        /**
+         * How much the player was charged
+         */
+        private final double charge;
 
-            if (charge == discountPrice) {
-                amount++;
-            }
+        /**
+         * If a discount was used
+         */
+        private final boolean discount;
+
+        /**
+         * The id of the discount that was used, if any
+         */
+        private final String discountId;
+
+        CachedCharge(double charge, boolean discount, String discountId) {
+            this.charge = charge;
+            this.discount = discount;
+            this.discountId = discountId;
         }
 
-        return amount;
     }
 
 }